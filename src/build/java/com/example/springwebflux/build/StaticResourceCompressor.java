@@ -0,0 +1,86 @@
+package com.example.springwebflux.build;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a {@code .gz} and a {@code .br} variant next to each compressible static resource,
+ * for the resource chain in {@code WebFluxConfig} to serve to clients that accept them. Run
+ * by the build over the copied resources, so each is compressed once, at the highest level,
+ * instead of on every request; it lives in src/build/java so it is not shipped in the jar:
+ * <pre>java StaticResourceCompressor target/classes/static</pre>
+ * A variant is only kept when it is smaller than the resource it stands for.
+ */
+public final class StaticResourceCompressor {
+
+    private static final Set<String> COMPRESSIBLE = Set.of("html", "css", "js", "mjs", "json", "svg", "txt", "xml");
+
+    // Smaller files fit in a packet or two either way
+    private static final long MIN_SIZE = 1024;
+
+    private static final Encoder.Parameters BROTLI = new Encoder.Parameters().setQuality(11).setMode(Encoder.Mode.TEXT);
+
+    private StaticResourceCompressor() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path root = Path.of(args.length > 0 ? args[0] : "target/classes/static");
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        Brotli4jLoader.ensureAvailability();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(StaticResourceCompressor::isCompressible).toList();
+        }
+        for (Path file : files) {
+            byte[] content = Files.readAllBytes(file);
+            write(file, ".gz", content.length, gzip(content));
+            write(file, ".br", content.length, Encoder.compress(content, BROTLI));
+        }
+    }
+
+    static boolean isCompressible(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        try {
+            return dot > 0 && COMPRESSIBLE.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))
+                    && Files.isRegularFile(file) && Files.size(file) >= MIN_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        }) {
+            gzip.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    // Also removes a variant left by an earlier build that no longer pays for itself
+    private static void write(Path file, String extension, int originalSize, byte[] compressed) throws IOException {
+        Path variant = file.resolveSibling(file.getFileName() + extension);
+        if (compressed.length < originalSize) {
+            Files.write(variant, compressed);
+        } else {
+            Files.deleteIfExists(variant);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.springwebflux.benchmark;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.repository.ProductRepository;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Reproducible synthetic catalogs for the benchmarks: the same size always gives the same
+ * ids, names and prices.
+ */
+final class Catalog {
+
+    private static final String[] WORDS = {
+            "Laptop", "Phone", "Headphones", "Keyboard", "Mouse", "Monitor", "Cable", "Charger",
+            "Speaker", "Camera", "Tablet", "Watch", "Router", "Drive", "Stand", "Case"};
+
+    private Catalog() {
+    }
+
+    static String id(int index) {
+        return "p" + index;
+    }
+
+    static Product product(int index, SplittableRandom random) {
+        String name = WORDS[random.nextInt(WORDS.length)] + " " + WORDS[random.nextInt(WORDS.length)]
+                + " " + random.nextInt(1000);
+        return new Product(id(index), name, random.nextInt(200_000) / 100.0);
+    }
+
+    // An in-memory repository holding the sample products plus size generated ones
+    static ProductRepository repository(int size) {
+        ProductRepository repository = new ProductRepository();
+        SplittableRandom random = new SplittableRandom(size);
+        List<Product> batch = new ArrayList<>(10_000);
+        for (int i = 0; i < size; i++) {
+            batch.add(product(i, random));
+            if (batch.size() == 10_000 || i == size - 1) {
+                repository.saveAll(batch).blockLast();
+                batch = new ArrayList<>(10_000);
+            }
+        }
+        return repository;
+    }
+}
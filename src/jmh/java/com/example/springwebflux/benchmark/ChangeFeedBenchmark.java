@@ -0,0 +1,71 @@
+package com.example.springwebflux.benchmark;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.service.ProductChangeFeed;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.Disposable;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishing one change to N live SSE subscribers. Subscribers have unbounded demand, so each
+ * publish delivers the encoded frame to all of them before it returns.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeFeedBenchmark {
+
+    @Param({"1", "10", "100"})
+    int subscribers;
+
+    ProductChangeFeed feed;
+    final List<Disposable> subscriptions = new ArrayList<>();
+    final Product[] versions = {new Product("1", "Laptop", 1299.99), new Product("1", "Laptop", 1199.99)};
+    long published;
+
+    // Written by the publishing thread only, which is the one that delivers to every subscriber
+    long bytesReceived;
+
+    @Setup
+    public void setUp() {
+        feed = new ProductChangeFeed(1024, ProductChangeFeed.OverflowPolicy.DROP_OLDEST, Duration.ZERO,
+                new ObjectMapper());
+        for (int i = 0; i < subscribers; i++) {
+            subscriptions.add(feed.serverSentEvents(null, false, DefaultDataBufferFactory.sharedInstance)
+                    .subscribe(buffer -> bytesReceived += buffer.readableByteCount()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        subscriptions.forEach(Disposable::dispose);
+    }
+
+    @Benchmark
+    public long publish() {
+        // Alternate the price so that every publish is a real change
+        int i = (int) (published++ & 1);
+        feed.publish(versions[i], versions[i ^ 1]);
+        return bytesReceived;
+    }
+}
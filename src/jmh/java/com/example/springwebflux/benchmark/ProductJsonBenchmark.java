@@ -0,0 +1,48 @@
+package com.example.springwebflux.benchmark;
+
+import com.example.springwebflux.model.Product;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jackson encoding and decoding of a single product, as done for every request and response body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProductJsonBenchmark {
+
+    final ObjectMapper objectMapper = new ObjectMapper();
+    final Product product = new Product("3f2b8c1e-9a4d-4c6e-8f0a-1b2c3d4e5f60", "Wireless Noise-Cancelling Headphones", 199.99);
+    byte[] json;
+
+    @Setup
+    public void setUp() throws IOException {
+        json = objectMapper.writeValueAsBytes(product);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return objectMapper.writeValueAsBytes(product);
+    }
+
+    @Benchmark
+    public Product decode() throws IOException {
+        return objectMapper.readValue(json, Product.class);
+    }
+}
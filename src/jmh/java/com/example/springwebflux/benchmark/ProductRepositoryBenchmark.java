@@ -0,0 +1,75 @@
+package com.example.springwebflux.benchmark;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.repository.ProductRepository;
+import com.example.springwebflux.repository.ProductWrite;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Repository reads and writes. Lookups and writes run on four threads at once, over random
+ * ids and over a single hot id, to show how they behave under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProductRepositoryBenchmark {
+
+    @Param({"1000", "100000"})
+    int size;
+
+    ProductRepository repository;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        final SplittableRandom random = new SplittableRandom(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Setup
+    public void setUp() {
+        repository = Catalog.repository(size);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void findAll(Blackhole blackhole) {
+        repository.findAll().subscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Product findById(Writer writer) {
+        return repository.findById(Catalog.id(writer.random.nextInt(size))).block();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public ProductWrite save(Writer writer) {
+        return repository.upsert(Catalog.product(writer.random.nextInt(size), writer.random)).block();
+    }
+
+    // Every thread writes the same product
+    @Benchmark
+    @Threads(4)
+    public ProductWrite saveHotKey(Writer writer) {
+        return repository.upsert(Catalog.product(0, writer.random)).block();
+    }
+}
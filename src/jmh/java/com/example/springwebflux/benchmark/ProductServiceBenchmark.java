@@ -0,0 +1,55 @@
+package com.example.springwebflux.benchmark;
+
+import com.example.springwebflux.service.ProductChangeFeed;
+import com.example.springwebflux.service.ProductService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ordered service reads over growing catalogs. The price filter matches about a tenth of
+ * the catalog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ProductServiceBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    int size;
+
+    ProductService service;
+
+    @Setup
+    public void setUp() {
+        service = new ProductService(Catalog.repository(size),
+                new ProductChangeFeed(1024, ProductChangeFeed.OverflowPolicy.DROP_OLDEST, Duration.ZERO,
+                        new ObjectMapper()));
+    }
+
+    @Benchmark
+    public void getAllProductsSorted(Blackhole blackhole) {
+        service.getAllProductsSorted().subscribe(blackhole::consume);
+    }
+
+    @Benchmark
+    public void getProductsCheaperThan(Blackhole blackhole) {
+        service.getProductsCheaperThan(200).subscribe(blackhole::consume);
+    }
+}
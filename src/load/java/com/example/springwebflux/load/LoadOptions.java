@@ -0,0 +1,105 @@
+package com.example.springwebflux.load;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command line options of the load test, all given as {@code --name=value}. Any option not
+ * listed here (for example {@code --products.storage.type=off-heap}) is passed on to the
+ * application under test.
+ */
+final class LoadOptions {
+
+    /**
+     * The two ways the same API is exposed, and where each one is mounted.
+     */
+    enum Stack {
+        ANNOTATED("/api/products"),
+        FUNCTIONAL("/api/functional/products");
+
+        final String basePath;
+
+        Stack(String basePath) {
+            this.basePath = basePath;
+        }
+    }
+
+    List<Stack> stacks = List.of(Stack.ANNOTATED, Stack.FUNCTIONAL);
+    // Requests per second across all operations
+    double rate = 200;
+    Duration warmup = Duration.ofSeconds(10);
+    Duration duration = Duration.ofSeconds(30);
+    Map<Operation, Integer> mix = parseMix("get:70,list:10,post:10,put:10");
+    int sseSubscribers = 10;
+    int products = 1000;
+    int connections = 500;
+    int maxInFlight = 10_000;
+    // Where to write full percentile distributions (.hgrm), if anywhere
+    Path output;
+    final List<String> applicationArgs = new ArrayList<>();
+
+    static LoadOptions parse(String[] args) {
+        LoadOptions options = new LoadOptions();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value: " + arg);
+            }
+            String value = arg.substring(equals + 1);
+            switch (arg.substring(2, equals)) {
+                case "stacks" -> options.stacks = parseStacks(value);
+                case "rate" -> options.rate = positive("rate", Double.parseDouble(value));
+                case "warmup" -> options.warmup = DurationStyle.detectAndParse(value);
+                case "duration" -> options.duration = DurationStyle.detectAndParse(value);
+                case "mix" -> options.mix = parseMix(value);
+                case "sse" -> options.sseSubscribers = Integer.parseInt(value);
+                case "products" -> options.products = (int) positive("products", Integer.parseInt(value));
+                case "connections" -> options.connections = (int) positive("connections", Integer.parseInt(value));
+                case "max-in-flight" -> options.maxInFlight = (int) positive("max-in-flight", Integer.parseInt(value));
+                case "output" -> options.output = Path.of(value);
+                default -> options.applicationArgs.add(arg);
+            }
+        }
+        return options;
+    }
+
+    private static List<Stack> parseStacks(String value) {
+        List<Stack> stacks = new ArrayList<>();
+        for (String name : value.split(",")) {
+            stacks.add(Stack.valueOf(name.trim().toUpperCase()));
+        }
+        return stacks;
+    }
+
+    // Relative weights, e.g. "get:80,put:20"
+    private static Map<Operation, Integer> parseMix(String value) {
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String entry : value.split(",")) {
+            String[] parts = entry.split(":");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected operation:weight in mix: " + entry);
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            if (weight > 0) {
+                mix.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Mix has no operation with a positive weight: " + value);
+        }
+        return mix;
+    }
+
+    private static double positive(String name, double value) {
+        if (!(value > 0)) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,171 @@
+package com.example.springwebflux.load;
+
+import com.example.springwebflux.SpringWebfluxApplication;
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.performance.PerformanceExample;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test for the annotated and functional APIs: starts the application on a random port,
+ * seeds it, then drives each stack in turn with the same open-loop mix of requests (see
+ * {@link OpenLoopGenerator}) while SSE subscribers listen to its change feed.
+ * <p>
+ * Run with {@code mvn -Pload test-compile exec:exec -Dload.args="--rate=500 --duration=60s"}.
+ * The generator shares the JVM with the application, so keep the rate well below what
+ * saturates the machine, or the generator's own delays show up as server latency.
+ */
+public final class LoadTest {
+
+    private static final Duration DRAIN_TIMEOUT = Duration.ofSeconds(30);
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        LoadOptions options = LoadOptions.parse(args);
+
+        // Devtools would restart the context in a new class loader by re-running this main method
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        List<String> applicationArgs = new ArrayList<>(List.of("--server.port=0", "--logging.level.com.example=INFO"));
+        applicationArgs.addAll(options.applicationArgs);
+
+        ConnectionProvider connections = ConnectionProvider.builder("load-test")
+                .maxConnections(options.connections)
+                .pendingAcquireMaxCount(-1)
+                .build();
+        try (ConfigurableApplicationContext context = SpringApplication.run(SpringWebfluxApplication.class,
+                applicationArgs.toArray(String[]::new))) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            WebClient client = PerformanceExample.createOptimizedWebClient().mutate()
+                    .baseUrl("http://localhost:" + port)
+                    .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connections)))
+                    .build();
+
+            List<String> ids = seed(client, options.products);
+            for (LoadOptions.Stack stack : options.stacks) {
+                run(client, stack, ids, options);
+            }
+        } finally {
+            connections.dispose();
+        }
+    }
+
+    // Both stacks share one repository, so the products are created once
+    private static List<String> seed(WebClient client, int count) {
+        SplittableRandom random = new SplittableRandom(count);
+        List<Product> products = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            products.add(Operation.randomProduct(null, random));
+        }
+        return Flux.fromIterable(products)
+                .flatMap(product -> client.post()
+                        .uri(LoadOptions.Stack.ANNOTATED.basePath)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .bodyValue(product)
+                        .retrieve()
+                        .bodyToMono(Product.class), 64)
+                .map(Product::getId)
+                .collectList()
+                .block();
+    }
+
+    private static void run(WebClient client, LoadOptions.Stack stack, List<String> ids, LoadOptions options)
+            throws IOException {
+        LongAdder events = new LongAdder();
+        List<Disposable> subscribers = new ArrayList<>(options.sseSubscribers);
+        for (int i = 0; i < options.sseSubscribers; i++) {
+            subscribers.add(client.get()
+                    .uri(stack.basePath + "/events")
+                    .accept(MediaType.TEXT_EVENT_STREAM)
+                    .retrieve()
+                    .bodyToFlux(new ParameterizedTypeReference<ServerSentEvent<String>>() {
+                    })
+                    .subscribe(event -> events.increment(), error -> { }));
+        }
+
+        try {
+            OpenLoopGenerator generator = new OpenLoopGenerator(client, stack.basePath, ids, options.mix,
+                    options.maxInFlight);
+            if (!options.warmup.isZero()) {
+                generator.run(options.rate, options.warmup, DRAIN_TIMEOUT);
+            }
+            events.reset();
+            Map<Operation, OpenLoopGenerator.Stats> stats = generator.run(options.rate, options.duration,
+                    DRAIN_TIMEOUT);
+            report(System.out, stack, options, stats, events.sum(), generator.getInFlight());
+            if (options.output != null) {
+                write(options.output, stack, stats);
+            }
+        } finally {
+            subscribers.forEach(Disposable::dispose);
+        }
+    }
+
+    private static void report(PrintStream out, LoadOptions.Stack stack, LoadOptions options,
+                               Map<Operation, OpenLoopGenerator.Stats> stats, long events, int unfinished) {
+        out.printf(Locale.ROOT, "%n%s %s: %.0f req/s for %.1fs, %d SSE subscribers%n", stack, stack.basePath,
+                options.rate, options.duration.toMillis() / 1000.0, options.sseSubscribers);
+        out.printf(Locale.ROOT, "%-6s %8s %7s %7s | %-35s | %-35s%n", "", "", "", "",
+                "response time (ms, from schedule)", "service time (ms, from send)");
+        out.printf(Locale.ROOT, "%-6s %8s %7s %7s | %8s %8s %8s %8s | %8s %8s %8s %8s%n",
+                "op", "count", "errors", "dropped", "p50", "p99", "p99.9", "max", "p50", "p99", "p99.9", "max");
+        stats.forEach((operation, s) -> out.printf(Locale.ROOT,
+                "%-6s %8d %7d %7d | %s | %s%n", operation, s.responseTime.getTotalCount(), s.errors.sum(),
+                s.dropped.sum(), percentiles(s.responseTime), percentiles(s.serviceTime)));
+        out.printf(Locale.ROOT, "SSE events received: %d (%.1f per subscriber per second)%n", events,
+                options.sseSubscribers == 0 ? 0.0
+                        : events / (double) options.sseSubscribers / options.duration.toMillis() * 1000);
+        if (unfinished > 0) {
+            out.printf(Locale.ROOT, "WARNING: %d requests still outstanding after %ds, not counted%n",
+                    unfinished, DRAIN_TIMEOUT.toSeconds());
+        }
+    }
+
+    private static String percentiles(Histogram histogram) {
+        return String.format(Locale.ROOT, "%8.2f %8.2f %8.2f %8.2f",
+                histogram.getValueAtPercentile(50) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99) / NANOS_PER_MILLI,
+                histogram.getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                histogram.getMaxValue() / NANOS_PER_MILLI);
+    }
+
+    // Full distributions in HdrHistogram's .hgrm format, in milliseconds, for plotting and diffing runs
+    private static void write(Path directory, LoadOptions.Stack stack, Map<Operation, OpenLoopGenerator.Stats> stats)
+            throws IOException {
+        Files.createDirectories(directory);
+        for (Map.Entry<Operation, OpenLoopGenerator.Stats> entry : stats.entrySet()) {
+            String name = (stack + "-" + entry.getKey()).toLowerCase(Locale.ROOT);
+            try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(name + ".hgrm")))) {
+                entry.getValue().responseTime.outputPercentileDistribution(out, NANOS_PER_MILLI);
+            }
+            try (PrintStream out = new PrintStream(Files.newOutputStream(directory.resolve(name + "-service.hgrm")))) {
+                entry.getValue().serviceTime.outputPercentileDistribution(out, NANOS_PER_MILLI);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.springwebflux.load;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends requests at a constant rate whatever the server does (an open loop): request i is due
+ * at {@code start + i / rate}, and is sent then even if earlier ones are still outstanding.
+ * <p>
+ * Each request is timed from when it was due, not from when it was actually sent. When the
+ * server (or this generator) stalls, the requests that should have gone out during the stall
+ * are charged for it, which is what their users would have seen; timing from the send alone
+ * hides those delays (coordinated omission). Both are recorded, so the difference shows how
+ * much queueing the run had.
+ */
+final class OpenLoopGenerator {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Latencies and outcomes of one operation over a run.
+     */
+    static final class Stats {
+        // From when the request was due: corrected for coordinated omission
+        final Histogram responseTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+        // From when it was sent: what a closed-loop tool would report
+        final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_NANOS, 3);
+        final LongAdder errors = new LongAdder();
+        // Not sent because max-in-flight requests were outstanding
+        final LongAdder dropped = new LongAdder();
+
+        void record(long due, long sent, long completed) {
+            responseTime.recordValue(Math.min(completed - due, HIGHEST_TRACKABLE_NANOS));
+            serviceTime.recordValue(Math.min(completed - sent, HIGHEST_TRACKABLE_NANOS));
+        }
+    }
+
+    private final WebClient client;
+    private final String basePath;
+    private final List<String> ids;
+    private final Operation[] schedule;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    OpenLoopGenerator(WebClient client, String basePath, List<String> ids, Map<Operation, Integer> mix,
+                      int maxInFlight) {
+        this.client = client;
+        this.basePath = basePath;
+        this.ids = ids;
+        this.maxInFlight = maxInFlight;
+        // One slot per unit of weight, picked from at random
+        this.schedule = mix.entrySet().stream()
+                .flatMap(entry -> Collections.nCopies(entry.getValue(), entry.getKey()).stream())
+                .toArray(Operation[]::new);
+    }
+
+    /**
+     * Sends {@code rate} requests per second for {@code duration} from the calling thread, then
+     * waits up to {@code drainTimeout} for the outstanding ones.
+     */
+    Map<Operation, Stats> run(double rate, Duration duration, Duration drainTimeout) {
+        Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : schedule) {
+            stats.putIfAbsent(operation, new Stats());
+        }
+        SplittableRandom random = new SplittableRandom();
+        double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+
+        for (long i = 0; ; i++) {
+            long due = start + (long) (i * interval);
+            if (due - end >= 0) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            Operation operation = schedule[random.nextInt(schedule.length)];
+            Stats operationStats = stats.get(operation);
+            if (inFlight.get() >= maxInFlight) {
+                operationStats.dropped.increment();
+                continue;
+            }
+            inFlight.incrementAndGet();
+            long sent = System.nanoTime();
+            operation.send(client, basePath, ids, random)
+                    .doFinally(signal -> inFlight.decrementAndGet())
+                    .subscribe(
+                            status -> {
+                                operationStats.record(due, sent, System.nanoTime());
+                                if (status.isError()) {
+                                    operationStats.errors.increment();
+                                }
+                            },
+                            error -> {
+                                operationStats.record(due, sent, System.nanoTime());
+                                operationStats.errors.increment();
+                            });
+        }
+
+        long drainDeadline = System.nanoTime() + drainTimeout.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() - drainDeadline < 0) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        return stats;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+}
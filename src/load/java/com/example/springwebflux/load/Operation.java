@@ -0,0 +1,74 @@
+package com.example.springwebflux.load;
+
+import com.example.springwebflux.model.Product;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * The requests the load test sends. Each completes with the response status once the whole
+ * body has been read, so the time recorded covers the full exchange.
+ */
+enum Operation {
+
+    // Lookup of a random seeded product
+    GET {
+        @Override
+        Mono<HttpStatusCode> send(WebClient client, String basePath, List<String> ids, SplittableRandom random) {
+            return status(client.get()
+                    .uri(basePath + "/{id}", randomId(ids, random))
+                    .accept(MediaType.APPLICATION_JSON));
+        }
+    },
+
+    // First page of the listing
+    LIST {
+        @Override
+        Mono<HttpStatusCode> send(WebClient client, String basePath, List<String> ids, SplittableRandom random) {
+            return status(client.get()
+                    .uri(basePath + "?limit={limit}", 20)
+                    .accept(MediaType.APPLICATION_JSON));
+        }
+    },
+
+    // Creation of a new product, so the catalog grows over the run
+    POST {
+        @Override
+        Mono<HttpStatusCode> send(WebClient client, String basePath, List<String> ids, SplittableRandom random) {
+            return status(client.post()
+                    .uri(basePath)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(randomProduct(null, random)));
+        }
+    },
+
+    // Unconditional update of a random seeded product
+    PUT {
+        @Override
+        Mono<HttpStatusCode> send(WebClient client, String basePath, List<String> ids, SplittableRandom random) {
+            String id = randomId(ids, random);
+            return status(client.put()
+                    .uri(basePath + "/{id}", id)
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .bodyValue(randomProduct(id, random)));
+        }
+    };
+
+    abstract Mono<HttpStatusCode> send(WebClient client, String basePath, List<String> ids, SplittableRandom random);
+
+    static Product randomProduct(String id, SplittableRandom random) {
+        return new Product(id, "Load Test Product " + random.nextInt(100_000), random.nextInt(1, 200_000) / 100.0);
+    }
+
+    private static String randomId(List<String> ids, SplittableRandom random) {
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    private static Mono<HttpStatusCode> status(WebClient.RequestHeadersSpec<?> request) {
+        return request.exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode()));
+    }
+}
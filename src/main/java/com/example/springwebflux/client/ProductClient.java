@@ -0,0 +1,548 @@
+package com.example.springwebflux.client;
+
+import com.example.springwebflux.codec.ProductCodecs;
+import com.example.springwebflux.codec.ProductMediaTypes;
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductPage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import io.netty.channel.ChannelOption;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionPoolMetrics;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.util.retry.Retry;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * A client of the product API for services that call it at high rates, where
+ * {@link WebClientExample} only shows the calls.
+ * <p>
+ * Connections come from a bounded pool of its own: once all are in use, calls wait for one
+ * up to {@code pendingAcquireTimeout}, in a queue of at most {@code pendingAcquireMaxCount},
+ * and fail straight away beyond that, rather than queueing without limit while the server
+ * is slow. Idle and old connections are closed in the background, before a load balancer or
+ * the server drops them under a request.
+ * <p>
+ * Every call must complete within its deadline ({@link #withDeadline}), retries included.
+ * Idempotent calls (reads, PUT and DELETE) are retried after a connection failure, an
+ * attempt timing out, or a 502, 503 or 504, with exponential, jittered backoff so that
+ * clients do not retry in lockstep; a create is never retried, as the first attempt may have
+ * been applied. Reads can also be hedged: when an attempt has not answered after
+ * {@code hedgeDelay}, a second one is sent and whichever answers first is used. Hedges are
+ * limited to a share of requests, so a server that is slow for everyone is not sent twice
+ * the load.
+ * <p>
+ * Published to the given registry: {@code products.client.requests}, the latency of each
+ * call as its caller sees it, tagged by operation and outcome; {@code products.client.retries}
+ * and {@code products.client.hedges}; and the pool's connections and pending acquires under
+ * {@code products.client.pool.*}, per remote address.
+ */
+public class ProductClient implements AutoCloseable {
+
+    private static final ParameterizedTypeReference<List<Product>> PRODUCT_LIST = new ParameterizedTypeReference<>() {
+    };
+
+    private static final Set<Integer> RETRYABLE_STATUSES = Set.of(502, 503, 504);
+
+    private final ConnectionProvider connectionProvider;
+    private final WebClient webClient;
+    private final MediaType format;
+    private final MeterRegistry registry;
+    private final Duration deadline;
+    private final Duration attemptTimeout;
+    private final int maxRetries;
+    private final Duration minBackoff;
+    private final Duration maxBackoff;
+    private final Duration hedgeDelay;
+    private final HedgeBudget hedgeBudget;
+
+    private ProductClient(Builder builder) {
+        this.format = builder.format;
+        this.registry = builder.registry;
+        this.deadline = builder.deadline;
+        this.attemptTimeout = builder.attemptTimeout;
+        this.maxRetries = builder.maxRetries;
+        this.minBackoff = builder.minBackoff;
+        this.maxBackoff = builder.maxBackoff;
+        this.hedgeDelay = builder.hedgeDelay;
+        this.hedgeBudget = new HedgeBudget(builder.hedgeRatio);
+        // One registrar, as the one asked to remove a pool's meters must be the one that added them
+        PoolMetrics poolMetrics = new PoolMetrics(registry);
+        this.connectionProvider = ConnectionProvider.builder(builder.poolName)
+                .maxConnections(builder.maxConnections)
+                .pendingAcquireMaxCount(builder.pendingAcquireMaxCount)
+                .pendingAcquireTimeout(builder.pendingAcquireTimeout)
+                .maxIdleTime(builder.maxIdleTime)
+                .maxLifeTime(builder.maxLifeTime)
+                .evictInBackground(builder.evictInBackground)
+                .metrics(true, () -> poolMetrics)
+                .build();
+        // Accepts compressed responses, which the server sends for large listings
+        HttpClient httpClient = HttpClient.create(connectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) builder.connectTimeout.toMillis())
+                .compress(true);
+        this.webClient = WebClient.builder()
+                .baseUrl(builder.baseUrl)
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .codecs(ProductCodecs::register)
+                .build();
+    }
+
+    // Shares the pool of the client it is derived from
+    private ProductClient(ProductClient client, Duration deadline) {
+        this.connectionProvider = client.connectionProvider;
+        this.webClient = client.webClient;
+        this.format = client.format;
+        this.registry = client.registry;
+        this.deadline = deadline;
+        this.attemptTimeout = client.attemptTimeout;
+        this.maxRetries = client.maxRetries;
+        this.minBackoff = client.minBackoff;
+        this.maxBackoff = client.maxBackoff;
+        this.hedgeDelay = client.hedgeDelay;
+        this.hedgeBudget = client.hedgeBudget;
+    }
+
+    public static Builder builder(String baseUrl) {
+        return new Builder(baseUrl);
+    }
+
+    /**
+     * This client with another deadline for each call, for callers with a tighter (or looser)
+     * budget than the default. The two share their connections; only the original needs closing.
+     */
+    public ProductClient withDeadline(Duration deadline) {
+        return new ProductClient(this, deadline);
+    }
+
+    /**
+     * The product, or empty if there is none with that id.
+     */
+    public Mono<Product> getProductById(String id) {
+        return call("getProductById", true, true, () -> webClient.get()
+                .uri("/api/products/{id}", id)
+                .accept(format)
+                .retrieve()
+                .bodyToMono(Product.class)
+                .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty()));
+    }
+
+    public Mono<ProductPage> getProductsPage(String pageToken, Integer limit) {
+        return call("getProductsPage", true, true, () -> toProductList(webClient.get()
+                .uri(uriBuilder -> uriBuilder
+                        .path("/api/products")
+                        .queryParamIfPresent("after", Optional.ofNullable(pageToken))
+                        .queryParamIfPresent("limit", Optional.ofNullable(limit))
+                        .build())
+                .accept(format)
+                .retrieve())
+                .map(entity -> new ProductPage(entity.getBody(),
+                        entity.getHeaders().getFirst(ProductPage.NEXT_PAGE_HEADER))));
+    }
+
+    /**
+     * Every product, a page at a time; each page is its own call, with its own deadline.
+     */
+    public Flux<Product> getAllProducts() {
+        return getProductsPage(null, null)
+                .expand(page -> page.hasNextPage() ? getProductsPage(page.getNextPageToken(), null) : Mono.empty())
+                .flatMapIterable(ProductPage::getProducts);
+    }
+
+    // Pages are read whole rather than streamed, so that a retry or a hedge cannot repeat products
+    public Mono<ProductPage> getProductsCheaperThanPage(double maxPrice, String pageToken, Integer limit) {
+        return call("getProductsCheaperThan", true, true, () -> toProductList(webClient.get()
+                .uri(uriBuilder -> uriBuilder
+                        .path("/api/products")
+                        .queryParam("cheaperThan", maxPrice)
+                        .queryParamIfPresent("after", Optional.ofNullable(pageToken))
+                        .queryParamIfPresent("limit", Optional.ofNullable(limit))
+                        .build())
+                .accept(format)
+                .retrieve())
+                .map(entity -> new ProductPage(entity.getBody(),
+                        entity.getHeaders().getFirst(ProductPage.NEXT_PAGE_HEADER))));
+    }
+
+    public Flux<Product> getProductsCheaperThan(double maxPrice) {
+        return getProductsCheaperThanPage(maxPrice, null, null)
+                .expand(page -> page.hasNextPage()
+                        ? getProductsCheaperThanPage(maxPrice, page.getNextPageToken(), null)
+                        : Mono.empty())
+                .flatMapIterable(ProductPage::getProducts);
+    }
+
+    public Mono<Product> createProduct(Product product) {
+        return call("createProduct", false, false, () -> webClient.post()
+                .uri("/api/products")
+                .contentType(format)
+                .bodyValue(product)
+                .accept(format)
+                .retrieve()
+                .bodyToMono(Product.class));
+    }
+
+    /**
+     * Replaces the product, or completes empty if there is none with that id.
+     */
+    public Mono<Product> updateProduct(String id, Product product) {
+        return call("updateProduct", true, false, () -> webClient.put()
+                .uri("/api/products/{id}", id)
+                .contentType(format)
+                .bodyValue(product)
+                .accept(format)
+                .retrieve()
+                .bodyToMono(Product.class)
+                .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty()));
+    }
+
+    /**
+     * Deletes the product. A product that is already gone counts as deleted, as it may have
+     * been deleted by an earlier attempt whose response was lost.
+     */
+    public Mono<Void> deleteProduct(String id) {
+        return call("deleteProduct", true, false, () -> webClient.delete()
+                .uri("/api/products/{id}", id)
+                .retrieve()
+                .bodyToMono(Void.class)
+                .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty()));
+    }
+
+    /**
+     * Closes the pooled connections and removes the pool's meters, waiting for both. Calls
+     * still in flight fail.
+     */
+    @Override
+    public void close() {
+        connectionProvider.disposeLater().block();
+    }
+
+    /**
+     * Runs one attempt of a call, bounded by the attempt timeout if it may be retried, hedged if
+     * it is a read and hedging is on, retried if idempotent, and bounded as a whole by the
+     * deadline; then times it.
+     */
+    private <T> Mono<T> call(String operation, boolean idempotent, boolean hedged, Supplier<Mono<T>> request) {
+        Mono<T> attempt = Mono.defer(request);
+        if (idempotent) {
+            attempt = attempt.timeout(attemptTimeout);
+        }
+        if (hedged && hedgeDelay != null) {
+            attempt = hedge(operation, attempt);
+        }
+        if (idempotent && maxRetries > 0) {
+            attempt = attempt.retryWhen(Retry.backoff(maxRetries, minBackoff)
+                    .maxBackoff(maxBackoff)
+                    .jitter(0.5)
+                    .filter(ProductClient::isRetryable)
+                    .doBeforeRetry(signal -> counter("products.client.retries", operation).increment())
+                    .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+        }
+        return timed(operation, attempt.timeout(deadline));
+    }
+
+    // The first attempt to answer wins and the other is cancelled. A hedge that fails is
+    // ignored, leaving the first attempt to answer, time out or fail by itself.
+    private <T> Mono<T> hedge(String operation, Mono<T> attempt) {
+        return Mono.defer(() -> {
+            hedgeBudget.deposit();
+            Mono<T> hedge = Mono.delay(hedgeDelay)
+                    .flatMap(tick -> {
+                        if (!hedgeBudget.withdraw()) {
+                            return Mono.<T>never();
+                        }
+                        counter("products.client.hedges", operation, "result", "sent").increment();
+                        return attempt
+                                .doOnSuccess(value -> counter("products.client.hedges", operation, "result", "won")
+                                        .increment())
+                                .onErrorResume(error -> Mono.never());
+                    });
+            return Mono.firstWithSignal(attempt, hedge);
+        });
+    }
+
+    private <T> Mono<T> timed(String operation, Mono<T> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return call
+                    .doOnSuccess(value -> sample.stop(timer(operation, "SUCCESS")))
+                    .doOnError(error -> sample.stop(timer(operation, outcome(error))))
+                    .doOnCancel(() -> sample.stop(timer(operation, "CANCELLED")));
+        });
+    }
+
+    private Timer timer(String operation, String outcome) {
+        return Timer.builder("products.client.requests")
+                .tags("operation", operation, "outcome", outcome)
+                .publishPercentiles(0.5, 0.99, 0.999)
+                .register(registry);
+    }
+
+    private Counter counter(String name, String operation, String... tags) {
+        return Counter.builder(name)
+                .tags("operation", operation)
+                .tags(tags)
+                .register(registry);
+    }
+
+    private static String outcome(Throwable error) {
+        if (error instanceof TimeoutException) {
+            return "TIMEOUT";
+        }
+        if (error instanceof WebClientResponseException response) {
+            return response.getStatusCode().is4xxClientError() ? "CLIENT_ERROR" : "SERVER_ERROR";
+        }
+        if (error instanceof WebClientRequestException) {
+            return "CONNECTION_ERROR";
+        }
+        return "UNKNOWN";
+    }
+
+    // Only failures the server may not have seen, or says are temporary. Waiting too long for
+    // a pooled connection is not retried: the pool is saturated, and more calls only add to it.
+    private static boolean isRetryable(Throwable error) {
+        if (error instanceof TimeoutException) {
+            return true;
+        }
+        if (error instanceof WebClientResponseException response) {
+            return RETRYABLE_STATUSES.contains(response.getStatusCode().value());
+        }
+        return error instanceof WebClientRequestException && error.getCause() instanceof IOException;
+    }
+
+    private Mono<ResponseEntity<List<Product>>> toProductList(WebClient.ResponseSpec response) {
+        return MediaType.APPLICATION_CBOR.equals(format)
+                ? response.toEntity(PRODUCT_LIST)
+                : response.toEntityList(Product.class);
+    }
+
+    /**
+     * Earns {@code ratio} of a hedge per request, saved up to a small burst, so hedges stay a
+     * bounded share of the requests even when every one of them is slow.
+     */
+    static final class HedgeBudget {
+
+        private static final long HEDGE = 1000;
+        private static final long BURST = 10 * HEDGE;
+
+        private final long perRequest;
+        private final AtomicLong balance = new AtomicLong();
+
+        HedgeBudget(double ratio) {
+            this.perRequest = Math.round(ratio * HEDGE);
+        }
+
+        void deposit() {
+            if (perRequest > 0 && balance.get() < BURST) {
+                balance.getAndUpdate(current -> Math.min(BURST, current + perRequest));
+            }
+        }
+
+        boolean withdraw() {
+            long current;
+            do {
+                current = balance.get();
+                if (current < HEDGE) {
+                    return false;
+                }
+            } while (!balance.compareAndSet(current, current - HEDGE));
+            return true;
+        }
+    }
+
+    /**
+     * Gauges for each remote address the pool connects to, removed when its connections are.
+     */
+    private static final class PoolMetrics implements ConnectionProvider.MeterRegistrar {
+
+        private final MeterRegistry registry;
+        private final Map<String, List<Meter>> meters = new ConcurrentHashMap<>();
+
+        PoolMetrics(MeterRegistry registry) {
+            this.registry = registry;
+        }
+
+        @Override
+        public void registerMetrics(String poolName, String id, SocketAddress remoteAddress,
+                                    ConnectionPoolMetrics metrics) {
+            Tags tags = Tags.of("pool", poolName, "remote", String.valueOf(remoteAddress));
+            // Nothing else holds on to metrics, so weakly held gauges could read NaN after a GC;
+            // they are removed in deRegisterMetrics instead
+            meters.put(id, List.of(
+                    Gauge.builder("products.client.pool.connections.active", metrics,
+                                    ConnectionPoolMetrics::acquiredSize)
+                            .description("Connections in use by a request")
+                            .tags(tags).strongReference(true).register(registry),
+                    Gauge.builder("products.client.pool.connections.idle", metrics, ConnectionPoolMetrics::idleSize)
+                            .tags(tags).strongReference(true).register(registry),
+                    Gauge.builder("products.client.pool.connections.total", metrics,
+                                    ConnectionPoolMetrics::allocatedSize)
+                            .tags(tags).strongReference(true).register(registry),
+                    Gauge.builder("products.client.pool.connections.max", metrics,
+                                    ConnectionPoolMetrics::maxAllocatedSize)
+                            .tags(tags).strongReference(true).register(registry),
+                    Gauge.builder("products.client.pool.pending", metrics, ConnectionPoolMetrics::pendingAcquireSize)
+                            .description("Requests waiting for a connection")
+                            .tags(tags).strongReference(true).register(registry)));
+        }
+
+        @Override
+        public void deRegisterMetrics(String poolName, String id, SocketAddress remoteAddress) {
+            List<Meter> removed = meters.remove(id);
+            if (removed != null) {
+                removed.forEach(registry::remove);
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        private final String baseUrl;
+        private MediaType format = MediaType.APPLICATION_JSON;
+        private MeterRegistry registry = Metrics.globalRegistry;
+        private String poolName = "products";
+        private int maxConnections = 500;
+        private int pendingAcquireMaxCount = 1000;
+        private Duration pendingAcquireTimeout = Duration.ofMillis(250);
+        private Duration maxIdleTime = Duration.ofSeconds(20);
+        private Duration maxLifeTime = Duration.ofMinutes(5);
+        private Duration evictInBackground = Duration.ofSeconds(10);
+        private Duration connectTimeout = Duration.ofSeconds(1);
+        private Duration deadline = Duration.ofSeconds(2);
+        private Duration attemptTimeout = Duration.ofMillis(500);
+        private int maxRetries = 2;
+        private Duration minBackoff = Duration.ofMillis(20);
+        private Duration maxBackoff = Duration.ofMillis(200);
+        private Duration hedgeDelay;
+        private double hedgeRatio = 0.1;
+
+        private Builder(String baseUrl) {
+            this.baseUrl = baseUrl;
+        }
+
+        /**
+         * JSON (the default), or one of the binary formats of {@link ProductMediaTypes#PRODUCTS}.
+         */
+        public Builder format(MediaType format) {
+            if (!ProductMediaTypes.PRODUCTS.contains(format)) {
+                throw new IllegalArgumentException("Unsupported format: " + format);
+            }
+            this.format = format;
+            return this;
+        }
+
+        public Builder meterRegistry(MeterRegistry registry) {
+            this.registry = registry;
+            return this;
+        }
+
+        // Tags the pool's meters, to tell apart the pools of several clients
+        public Builder poolName(String poolName) {
+            this.poolName = poolName;
+            return this;
+        }
+
+        public Builder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder pendingAcquireMaxCount(int pendingAcquireMaxCount) {
+            this.pendingAcquireMaxCount = pendingAcquireMaxCount;
+            return this;
+        }
+
+        public Builder pendingAcquireTimeout(Duration pendingAcquireTimeout) {
+            this.pendingAcquireTimeout = pendingAcquireTimeout;
+            return this;
+        }
+
+        // Keep below the idle timeout of the server and of anything in between
+        public Builder maxIdleTime(Duration maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+            return this;
+        }
+
+        // Bounds how long a connection sticks to one server behind a load balancer
+        public Builder maxLifeTime(Duration maxLifeTime) {
+            this.maxLifeTime = maxLifeTime;
+            return this;
+        }
+
+        public Builder evictInBackground(Duration interval) {
+            this.evictInBackground = interval;
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        /**
+         * The time each call has, retries and backoff included.
+         */
+        public Builder deadline(Duration deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * The time each attempt of an idempotent call has before it is given up and retried.
+         */
+        public Builder attemptTimeout(Duration attemptTimeout) {
+            this.attemptTimeout = attemptTimeout;
+            return this;
+        }
+
+        /**
+         * Retries of an idempotent call after the first attempt, 0 for none, waiting from
+         * {@code minBackoff} doubling up to {@code maxBackoff}, each wait jittered by up to half.
+         */
+        public Builder retries(int maxRetries, Duration minBackoff, Duration maxBackoff) {
+            this.maxRetries = maxRetries;
+            this.minBackoff = minBackoff;
+            this.maxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * Hedges reads that have not answered after {@code delay}, typically the p95 latency,
+         * sending at most {@code ratio} hedges per request. Off by default.
+         */
+        public Builder hedging(Duration delay, double ratio) {
+            this.hedgeDelay = delay;
+            this.hedgeRatio = ratio;
+            return this;
+        }
+
+        public ProductClient build() {
+            return new ProductClient(this);
+        }
+    }
+}
@@ -1,58 +1,118 @@
 package com.example.springwebflux.client;
 
+import com.example.springwebflux.codec.ProductCodecs;
+import com.example.springwebflux.codec.ProductMediaTypes;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.List;
+import java.util.Optional;
+
 /**
  * This class demonstrates how to use WebClient to interact with our WebFlux API.
  * It's not used in the application but serves as an example of reactive client-side code.
+ * Services calling the API in production should use {@link ProductClient}, which adds
+ * connection pooling, deadlines, retries and metrics.
  */
 public class WebClientExample {
 
+    private static final Logger log = LoggerFactory.getLogger(WebClientExample.class);
+
+    private static final ParameterizedTypeReference<List<Product>> PRODUCT_LIST = new ParameterizedTypeReference<>() {
+    };
+
     private final WebClient webClient;
+    private final MediaType format;
 
     public WebClientExample(String baseUrl) {
+        this(baseUrl, MediaType.APPLICATION_JSON);
+    }
+
+    /**
+     * A client that exchanges products in {@code format}: JSON, or one of the binary formats
+     * of {@link ProductMediaTypes#PRODUCTS} (CBOR, Smile or protobuf), which are smaller on
+     * the wire and cheaper to parse. With a binary format the change feed is read as a Smile
+     * stream instead of SSE.
+     */
+    public WebClientExample(String baseUrl, MediaType format) {
+        if (!ProductMediaTypes.PRODUCTS.contains(format)) {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        this.format = format;
         this.webClient = WebClient.builder()
                 .baseUrl(baseUrl)
+                .codecs(ProductCodecs::register)
                 .build();
     }
 
+    /**
+     * Walks every page of the listing, following the continuation token the server returns
+     */
     public Flux<Product> getAllProducts() {
-        return webClient.get()
-                .uri("/api/products")
-                .accept(MediaType.APPLICATION_JSON)
-                .retrieve()
-                .bodyToFlux(Product.class);
+        return getProductsPage(null)
+                .expand(page -> page.hasNextPage() ? getProductsPage(page.getNextPageToken()) : Mono.empty())
+                .flatMapIterable(ProductPage::getProducts);
+    }
+
+    public Mono<ProductPage> getProductsPage(String pageToken) {
+        WebClient.ResponseSpec response = webClient.get()
+                .uri(uriBuilder -> uriBuilder
+                        .path("/api/products")
+                        .queryParamIfPresent("after", Optional.ofNullable(pageToken))
+                        .build())
+                .accept(format)
+                .retrieve();
+        return toProductList(response)
+                .map(entity -> new ProductPage(entity.getBody(),
+                        entity.getHeaders().getFirst(ProductPage.NEXT_PAGE_HEADER)));
     }
 
     public Mono<Product> getProductById(String id) {
         return webClient.get()
                 .uri("/api/products/{id}", id)
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(format)
                 .retrieve()
                 .bodyToMono(Product.class);
     }
 
     public Flux<Product> getProductsCheaperThan(double maxPrice) {
-        return webClient.get()
+        return getProductsCheaperThanPage(maxPrice, null)
+                .expand(page -> page.hasNextPage()
+                        ? getProductsCheaperThanPage(maxPrice, page.getNextPageToken())
+                        : Mono.empty())
+                .flatMapIterable(ProductPage::getProducts);
+    }
+
+    public Mono<ProductPage> getProductsCheaperThanPage(double maxPrice, String pageToken) {
+        WebClient.ResponseSpec response = webClient.get()
                 .uri(uriBuilder -> uriBuilder
                         .path("/api/products")
                         .queryParam("cheaperThan", maxPrice)
+                        .queryParamIfPresent("after", Optional.ofNullable(pageToken))
                         .build())
-                .accept(MediaType.APPLICATION_JSON)
-                .retrieve()
-                .bodyToFlux(Product.class);
+                .accept(format)
+                .retrieve();
+        return toProductList(response)
+                .map(entity -> new ProductPage(entity.getBody(),
+                        entity.getHeaders().getFirst(ProductPage.NEXT_PAGE_HEADER)));
     }
 
     public Mono<Product> createProduct(Product product) {
         return webClient.post()
                 .uri("/api/products")
-                .contentType(MediaType.APPLICATION_JSON)
+                .contentType(format)
                 .bodyValue(product)
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(format)
                 .retrieve()
                 .bodyToMono(Product.class);
     }
@@ -60,9 +120,9 @@ public class WebClientExample {
     public Mono<Product> updateProduct(String id, Product product) {
         return webClient.put()
                 .uri("/api/products/{id}", id)
-                .contentType(MediaType.APPLICATION_JSON)
+                .contentType(format)
                 .bodyValue(product)
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(format)
                 .retrieve()
                 .bodyToMono(Product.class);
     }
@@ -77,34 +137,41 @@ public class WebClientExample {
     /**
      * Example of streaming events using WebClient
      */
-    public Flux<Product> streamProductUpdates() {
+    public Flux<ProductChangeEvent> streamProductUpdates() {
         return webClient.get()
                 .uri("/api/products/events")
-                .accept(MediaType.TEXT_EVENT_STREAM)
+                .accept(MediaType.APPLICATION_JSON.equals(format)
+                        ? MediaType.TEXT_EVENT_STREAM : ProductMediaTypes.APPLICATION_STREAM_SMILE)
                 .retrieve()
-                .bodyToFlux(Product.class);
+                .bodyToFlux(ProductChangeEvent.class);
     }
 
     /**
-     * Example of error handling with WebClient
+     * Example of error handling with WebClient: a missing product is an empty result, while
+     * any other failure is logged and passed on to the caller rather than hidden
      */
     public Mono<Product> getProductByIdWithErrorHandling(String id) {
         return webClient.get()
                 .uri("/api/products/{id}", id)
-                .accept(MediaType.APPLICATION_JSON)
+                .accept(format)
                 .retrieve()
-                .onStatus(status -> status.is4xxClientError(),
-                        response -> Mono.error(new RuntimeException("Product not found")))
                 .bodyToMono(Product.class)
-                .onErrorResume(error -> {
-                    System.err.println("Error fetching product: " + error.getMessage());
-                    return Mono.empty();
-                });
+                .onErrorResume(WebClientResponseException.NotFound.class, notFound -> Mono.empty())
+                .doOnError(error -> log.warn("Error fetching product {}: {}", id, error.toString()));
+    }
+
+    // Jackson cannot parse CBOR incrementally, so a CBOR list is read as one value
+    private Mono<ResponseEntity<List<Product>>> toProductList(WebClient.ResponseSpec response) {
+        return MediaType.APPLICATION_CBOR.equals(format)
+                ? response.toEntity(PRODUCT_LIST)
+                : response.toEntityList(Product.class);
     }
 
     // Example of how to use this client
     public static void main(String[] args) {
-        WebClientExample client = new WebClientExample("http://localhost:8080");
+        // e.g. application/x-protobuf to talk protobuf instead of JSON
+        MediaType format = args.length > 0 ? MediaType.parseMediaType(args[0]) : MediaType.APPLICATION_JSON;
+        WebClientExample client = new WebClientExample("http://localhost:8080", format);
 
         // Get all products
         client.getAllProducts()
@@ -119,7 +186,7 @@ public class WebClientExample {
 
         // Stream updates (would normally subscribe without blocking)
         client.streamProductUpdates()
-                .doOnNext(product -> System.out.println("Update: " + product))
+                .doOnNext(event -> System.out.println("Update: " + event))
                 .subscribe();
 
         // Keep application running for streaming demo
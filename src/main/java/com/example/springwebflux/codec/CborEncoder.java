@@ -0,0 +1,40 @@
+package com.example.springwebflux.codec;
+
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+
+/**
+ * Spring's CBOR encoder, made usable for HTTP responses: the original only encodes single
+ * values and refuses any publisher. A single value is written as is, and a stream as one
+ * indefinite-length CBOR array (RFC 8949, section 3.2.2) written element by element as they
+ * arrive, so a listing is never held in memory whole. Decoders read it like any other array.
+ */
+public class CborEncoder extends Jackson2CborEncoder {
+
+    // Major type 4 (array) with additional information 31 (indefinite length), and the break
+    // that ends it
+    private static final byte START_ARRAY = (byte) 0x9f;
+    private static final byte BREAK = (byte) 0xff;
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<?> inputStream, DataBufferFactory bufferFactory,
+                                   ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        if (inputStream instanceof Mono) {
+            return Mono.from(inputStream)
+                    .map(value -> encodeValue(value, bufferFactory, elementType, mimeType, hints))
+                    .flux();
+        }
+        return Flux.concat(
+                Mono.fromSupplier(() -> bufferFactory.wrap(new byte[]{START_ARRAY})),
+                Flux.from(inputStream).map(value -> encodeValue(value, bufferFactory, elementType, mimeType, hints)),
+                Mono.fromSupplier(() -> bufferFactory.wrap(new byte[]{BREAK})));
+    }
+}
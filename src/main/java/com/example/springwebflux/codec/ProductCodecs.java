@@ -0,0 +1,27 @@
+package com.example.springwebflux.codec;
+
+import org.springframework.http.codec.CodecConfigurer;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+
+/**
+ * Registers the binary formats of {@link ProductMediaTypes} with a server's or a client's
+ * codecs, so both ends of the API speak the same set.
+ * <p>
+ * Smile needs nothing here: Spring registers its Jackson codecs by default whenever
+ * jackson-dataformat-smile is on the classpath, including the streaming variant. CBOR is
+ * opt-in, and only ever handled whole: Jackson has no non-blocking CBOR parser, so lists
+ * are read as a {@code List} rather than a {@code Flux}, and streams use Smile instead.
+ */
+public final class ProductCodecs {
+
+    private ProductCodecs() {
+    }
+
+    public static void register(CodecConfigurer configurer) {
+        CodecConfigurer.CustomCodecs codecs = configurer.customCodecs();
+        codecs.register(new CborEncoder());
+        codecs.register(new Jackson2CborDecoder());
+        codecs.register(new ProductProtobufEncoder());
+        codecs.register(new ProductProtobufDecoder());
+    }
+}
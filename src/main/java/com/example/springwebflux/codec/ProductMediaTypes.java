@@ -0,0 +1,83 @@
+package com.example.springwebflux.codec;
+
+import org.springframework.http.MediaType;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The representations the product API can answer with, and content negotiation for the
+ * functional routes, which unlike annotated ones are not negotiated by Spring.
+ */
+public final class ProductMediaTypes {
+
+    public static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+    public static final MediaType APPLICATION_SMILE = MediaType.parseMediaType(APPLICATION_SMILE_VALUE);
+
+    // Smile values back to back, each flushed as it is written
+    public static final String APPLICATION_STREAM_SMILE_VALUE = "application/stream+x-jackson-smile";
+    public static final MediaType APPLICATION_STREAM_SMILE = MediaType.parseMediaType(APPLICATION_STREAM_SMILE_VALUE);
+
+    // Same framing as NDJSON; Spring's own constant for it is deprecated
+    public static final String APPLICATION_STREAM_JSON_VALUE = "application/stream+json";
+    public static final MediaType APPLICATION_STREAM_JSON = MediaType.parseMediaType(APPLICATION_STREAM_JSON_VALUE);
+
+    // Products only; the schema is src/main/proto/product.proto
+    public static final String APPLICATION_PROTOBUF_VALUE = "application/x-protobuf";
+    public static final MediaType APPLICATION_PROTOBUF = MediaType.parseMediaType(APPLICATION_PROTOBUF_VALUE);
+
+    /**
+     * Formats for product bodies, single or listed; the first is the default.
+     */
+    public static final List<MediaType> PRODUCTS = List.of(MediaType.APPLICATION_JSON,
+            MediaType.APPLICATION_CBOR, APPLICATION_SMILE, APPLICATION_PROTOBUF);
+
+    /**
+     * Formats for product listings: those for products, plus one JSON document per line,
+     * written as the products are read.
+     */
+    public static final List<MediaType> LISTINGS = List.of(MediaType.APPLICATION_JSON,
+            MediaType.APPLICATION_CBOR, APPLICATION_SMILE, APPLICATION_PROTOBUF,
+            MediaType.APPLICATION_NDJSON, APPLICATION_STREAM_JSON);
+
+    /**
+     * Formats for any other body, such as the statistics.
+     */
+    public static final List<MediaType> DOCUMENTS = List.of(MediaType.APPLICATION_JSON,
+            MediaType.APPLICATION_CBOR, APPLICATION_SMILE);
+
+    /**
+     * Formats for long-lived streams of results, flushed element by element.
+     */
+    public static final List<MediaType> STREAMS = List.of(MediaType.APPLICATION_NDJSON, APPLICATION_STREAM_SMILE);
+
+    /**
+     * Formats for the change feed.
+     */
+    public static final List<MediaType> EVENTS = List.of(MediaType.TEXT_EVENT_STREAM, APPLICATION_STREAM_SMILE);
+
+    private ProductMediaTypes() {
+    }
+
+    /**
+     * Whether a listing in this format is streamed line by line rather than framed as one document.
+     */
+    public static boolean isLineDelimited(MediaType mediaType) {
+        return MediaType.APPLICATION_NDJSON.equalsTypeAndSubtype(mediaType)
+                || APPLICATION_STREAM_JSON.equalsTypeAndSubtype(mediaType);
+    }
+
+    /**
+     * The first of {@code producible} the client accepts, taking its media types in order of
+     * quality. Falls back to the default when nothing matches, as the API did before it
+     * offered a choice.
+     */
+    public static MediaType negotiate(List<MediaType> accept, List<MediaType> producible) {
+        return accept.stream()
+                .filter(type -> type.getQualityValue() > 0)
+                .sorted(Comparator.comparingDouble(MediaType::getQualityValue).reversed())
+                .flatMap(type -> producible.stream().filter(type::isCompatibleWith))
+                .findFirst()
+                .orElse(producible.get(0));
+    }
+}
@@ -0,0 +1,202 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.springframework.core.codec.DecodingException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol Buffers wire format of {@link Product}, per {@code src/main/proto/product.proto}.
+ * <p>
+ * Written by hand rather than generated: the message has three scalar fields, and generated
+ * classes would mean a protoc build step and copying every product into and out of a
+ * message object. As proto3 does, fields at their default value are not written, and an
+ * absent string reads back as {@code null}; unknown fields are skipped, so a client on a
+ * newer schema can still be read.
+ */
+final class ProductProtobuf {
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+    private static final int FIXED32 = 5;
+
+    private static final int ID_TAG = 1 << 3 | LENGTH_DELIMITED;
+    private static final int NAME_TAG = 2 << 3 | LENGTH_DELIMITED;
+    private static final int PRICE_TAG = 3 << 3 | FIXED64;
+
+    private ProductProtobuf() {
+    }
+
+    /**
+     * The encoded product, preceded by its length as a varint when {@code delimited}.
+     */
+    static byte[] encode(Product product, boolean delimited) {
+        byte[] id = utf8(product.getId());
+        byte[] name = utf8(product.getName());
+        boolean hasPrice = Double.doubleToRawLongBits(product.getPrice()) != 0;
+        int size = fieldSize(id) + fieldSize(name) + (hasPrice ? 1 + Long.BYTES : 0);
+
+        byte[] out = new byte[(delimited ? varintSize(size) : 0) + size];
+        int position = 0;
+        if (delimited) {
+            position = writeVarint(out, position, size);
+        }
+        position = writeBytes(out, position, ID_TAG, id);
+        position = writeBytes(out, position, NAME_TAG, name);
+        if (hasPrice) {
+            out[position++] = (byte) PRICE_TAG;
+            long bits = Double.doubleToRawLongBits(product.getPrice());
+            for (int i = 0; i < Long.BYTES; i++) {
+                out[position++] = (byte) (bits >>> (8 * i));
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Reads the product message that spans {@code data[offset, end)}.
+     */
+    static Product decode(byte[] data, int offset, int end) {
+        Reader reader = new Reader(data, offset, end);
+        Product product = new Product();
+        while (reader.position < end) {
+            long tag = reader.varint();
+            switch ((int) tag) {
+                case ID_TAG -> product.setId(reader.string());
+                case NAME_TAG -> product.setName(reader.string());
+                case PRICE_TAG -> product.setPrice(Double.longBitsToDouble(reader.fixed64()));
+                default -> reader.skip((int) (tag & 0x7));
+            }
+        }
+        return product;
+    }
+
+    /**
+     * The length prefix of the delimited message at {@code offset}, as {@code [length, start
+     * of message]}, or {@code null} if the prefix is not complete yet.
+     */
+    static int[] frame(byte[] data, int offset, int end) {
+        long length = 0;
+        for (int shift = 0, position = offset; position < end && shift < 35; shift += 7) {
+            byte b = data[position++];
+            length |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (length > Integer.MAX_VALUE) {
+                    throw new DecodingException("Protobuf message length out of range: " + length);
+                }
+                return new int[]{(int) length, position};
+            }
+        }
+        if (end - offset >= 5) {
+            throw new DecodingException("Malformed protobuf length prefix");
+        }
+        return null;
+    }
+
+    private static final class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int offset, int end) {
+            this.data = data;
+            this.position = offset;
+            this.end = end;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                require(position < end);
+                byte b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new DecodingException("Malformed protobuf varint");
+        }
+
+        long fixed64() {
+            require(end - position >= Long.BYTES);
+            long bits = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                bits |= (data[position++] & 0xFFL) << (8 * i);
+            }
+            return bits;
+        }
+
+        String string() {
+            int length = length();
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        void skip(int wireType) {
+            switch (wireType) {
+                case VARINT -> varint();
+                case FIXED64 -> fixed64();
+                case LENGTH_DELIMITED -> {
+                    int length = length();
+                    position += length;
+                }
+                case FIXED32 -> {
+                    require(end - position >= Integer.BYTES);
+                    position += Integer.BYTES;
+                }
+                default -> throw new DecodingException("Unsupported protobuf wire type " + wireType);
+            }
+        }
+
+        private int length() {
+            long length = varint();
+            require(length >= 0 && length <= end - position);
+            return (int) length;
+        }
+    }
+
+    private static void require(boolean condition) {
+        if (!condition) {
+            throw new DecodingException("Truncated protobuf message");
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null || value.isEmpty() ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int fieldSize(byte[] value) {
+        return value == null ? 0 : 1 + varintSize(value.length) + value.length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] out, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+
+    private static int writeBytes(byte[] out, int position, int tag, byte[] value) {
+        if (value == null) {
+            return position;
+        }
+        out[position++] = (byte) tag;
+        position = writeVarint(out, position, value.length);
+        System.arraycopy(value, 0, out, position, value.length);
+        return position + value.length;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferLimitException;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads products from {@code application/x-protobuf}: a single product from one message, a
+ * stream of them from length-delimited messages. A stream is decoded as its buffers arrive,
+ * so a bulk upload is never held in memory whole.
+ */
+public class ProductProtobufDecoder implements Decoder<Product> {
+
+    // Same as Spring's default limit for buffering a body
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 256 * 1024;
+
+    private static final List<MimeType> MIME_TYPES = List.of(ProductMediaTypes.APPLICATION_PROTOBUF);
+
+    private final int maxMessageSize;
+
+    public ProductProtobufDecoder() {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public ProductProtobufDecoder(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+        return Product.class.equals(elementType.toClass())
+                && (mimeType == null || ProductMediaTypes.APPLICATION_PROTOBUF.isCompatibleWith(mimeType));
+    }
+
+    @Override
+    public Flux<Product> decode(Publisher<DataBuffer> inputStream, ResolvableType elementType,
+                                MimeType mimeType, Map<String, Object> hints) {
+        return Flux.defer(() -> {
+            Frames frames = new Frames();
+            return Flux.from(inputStream)
+                    .concatMapIterable(frames::read)
+                    .concatWith(Mono.fromRunnable(frames::finish));
+        });
+    }
+
+    @Override
+    public Mono<Product> decodeToMono(Publisher<DataBuffer> inputStream, ResolvableType elementType,
+                                      MimeType mimeType, Map<String, Object> hints) {
+        return DataBufferUtils.join(inputStream, maxMessageSize)
+                .map(buffer -> decode(buffer, elementType, mimeType, hints));
+    }
+
+    @Override
+    public Product decode(DataBuffer buffer, ResolvableType targetType, MimeType mimeType,
+                          Map<String, Object> hints) {
+        try {
+            byte[] data = new byte[buffer.readableByteCount()];
+            buffer.read(data);
+            return ProductProtobuf.decode(data, 0, data.length);
+        } finally {
+            DataBufferUtils.release(buffer);
+        }
+    }
+
+    @Override
+    public List<MimeType> getDecodableMimeTypes() {
+        return MIME_TYPES;
+    }
+
+    /**
+     * Carries a message that straddles buffers over to the next one.
+     */
+    private final class Frames {
+
+        private byte[] pending = new byte[0];
+        private int length;
+
+        List<Product> read(DataBuffer buffer) {
+            try {
+                int readable = buffer.readableByteCount();
+                if (length + readable > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(length + readable, pending.length * 2));
+                }
+                buffer.read(pending, length, readable);
+                length += readable;
+            } finally {
+                DataBufferUtils.release(buffer);
+            }
+
+            List<Product> products = new ArrayList<>();
+            int position = 0;
+            int[] frame;
+            while ((frame = ProductProtobuf.frame(pending, position, length)) != null) {
+                int size = frame[0];
+                int start = frame[1];
+                if (size > maxMessageSize) {
+                    throw new DataBufferLimitException("Protobuf message of " + size
+                            + " bytes exceeds the limit of " + maxMessageSize);
+                }
+                if (start + size > length) {
+                    break;
+                }
+                products.add(ProductProtobuf.decode(pending, start, start + size));
+                position = start + size;
+            }
+            System.arraycopy(pending, position, pending, 0, length - position);
+            length -= position;
+            return products;
+        }
+
+        void finish() {
+            if (length > 0) {
+                throw new DecodingException("Protobuf stream ends in the middle of a message");
+            }
+        }
+    }
+}
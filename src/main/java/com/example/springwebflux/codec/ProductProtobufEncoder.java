@@ -0,0 +1,52 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.Encoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes products as {@code application/x-protobuf}: a single product as one message, a
+ * stream of them as length-delimited messages.
+ */
+public class ProductProtobufEncoder implements Encoder<Product> {
+
+    private static final List<MimeType> MIME_TYPES = List.of(ProductMediaTypes.APPLICATION_PROTOBUF);
+
+    @Override
+    public boolean canEncode(ResolvableType elementType, MimeType mimeType) {
+        return Product.class.isAssignableFrom(elementType.toClass())
+                && (mimeType == null || ProductMediaTypes.APPLICATION_PROTOBUF.isCompatibleWith(mimeType));
+    }
+
+    @Override
+    public Flux<DataBuffer> encode(Publisher<? extends Product> inputStream, DataBufferFactory bufferFactory,
+                                   ResolvableType elementType, MimeType mimeType, Map<String, Object> hints) {
+        if (inputStream instanceof Mono) {
+            return Mono.from(inputStream)
+                    .map(product -> bufferFactory.wrap(ProductProtobuf.encode(product, false)))
+                    .flux();
+        }
+        return Flux.from(inputStream)
+                .map(product -> bufferFactory.wrap(ProductProtobuf.encode(product, true)));
+    }
+
+    @Override
+    public DataBuffer encodeValue(Product value, DataBufferFactory bufferFactory, ResolvableType valueType,
+                                  MimeType mimeType, Map<String, Object> hints) {
+        return bufferFactory.wrap(ProductProtobuf.encode(value, false));
+    }
+
+    @Override
+    public List<MimeType> getEncodableMimeTypes() {
+        return MIME_TYPES;
+    }
+}
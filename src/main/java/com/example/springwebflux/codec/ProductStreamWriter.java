@@ -0,0 +1,64 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.http.codec.EncoderHttpMessageWriter;
+import org.springframework.http.codec.json.Jackson2JsonEncoder;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes product listings as NDJSON or {@code application/stream+json}, one line per product
+ * as it is read, without flushing after every line.
+ * <p>
+ * Spring flushes a streaming media type after each element, which suits events that trickle
+ * in but costs a flush, and usually a packet, per product when a listing is read straight
+ * from memory. Here the lines go out as one continuous write instead, which the server
+ * flushes whenever it has written all it was given so far or its outbound buffer fills up:
+ * a slow producer is still flushed line by line, a fast one in large chunks, and only as
+ * many lines as the connection can take are read ahead, whatever the size of the catalog.
+ */
+public class ProductStreamWriter extends EncoderHttpMessageWriter<Object> {
+
+    private static final List<MediaType> MEDIA_TYPES = List.of(MediaType.APPLICATION_NDJSON,
+            ProductMediaTypes.APPLICATION_STREAM_JSON);
+
+    public ProductStreamWriter() {
+        super(new Jackson2JsonEncoder());
+    }
+
+    // Only ever picked for an explicit line-delimited type, never offered for "*/*"
+    @Override
+    public boolean canWrite(ResolvableType elementType, MediaType mediaType) {
+        return Product.class.isAssignableFrom(elementType.toClass())
+                && mediaType != null && ProductMediaTypes.isLineDelimited(mediaType);
+    }
+
+    @Override
+    public List<MediaType> getWritableMediaTypes() {
+        return MEDIA_TYPES;
+    }
+
+    @Override
+    public Mono<Void> write(Publisher<?> inputStream, ResolvableType elementType, MediaType mediaType,
+                            ReactiveHttpOutputMessage message, Map<String, Object> hints) {
+        if (message instanceof ServerHttpResponse response) {
+            message = new ServerHttpResponseDecorator(response) {
+                @Override
+                public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+                    return writeWith(Flux.concat(body));
+                }
+            };
+        }
+        return super.write(inputStream, elementType, mediaType, message, hints);
+    }
+}
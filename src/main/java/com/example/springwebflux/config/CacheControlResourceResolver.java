@@ -0,0 +1,54 @@
+package com.example.springwebflux.config;
+
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.lang.Nullable;
+import org.springframework.web.reactive.resource.ResourceResolver;
+import org.springframework.web.reactive.resource.ResourceResolverChain;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+
+/**
+ * Sets Cache-Control by the URL a static resource was requested with: one carrying a version
+ * (app-3f2a...9c.js, resolved by a {@code VersionResourceResolver} further down the chain)
+ * changes whenever the content does, so it is cached for good, while a plain one
+ * (app.js) may be served different content tomorrow and is revalidated on every use.
+ * <p>
+ * Must come before any caching resolver, as it has to see every request.
+ */
+class CacheControlResourceResolver implements ResourceResolver {
+
+    private final String versioned;
+    private final String unversioned;
+
+    CacheControlResourceResolver(CacheControl versioned, CacheControl unversioned) {
+        this.versioned = versioned.getHeaderValue();
+        this.unversioned = unversioned.getHeaderValue();
+    }
+
+    @Override
+    public Mono<Resource> resolveResource(@Nullable ServerWebExchange exchange, String requestPath,
+                                          List<? extends Resource> locations, ResourceResolverChain chain) {
+        return chain.resolveResource(exchange, requestPath, locations)
+                .doOnNext(resource -> {
+                    if (exchange != null) {
+                        exchange.getResponse().getHeaders().setCacheControl(
+                                isVersioned(requestPath, resource) ? versioned : unversioned);
+                    }
+                });
+    }
+
+    @Override
+    public Mono<String> resolveUrlPath(String resourceUrlPath, List<? extends Resource> locations,
+                                       ResourceResolverChain chain) {
+        return chain.resolveUrlPath(resourceUrlPath, locations);
+    }
+
+    // The version is stripped to find the resource, so the requested name is not its own
+    private static boolean isVersioned(String requestPath, Resource resource) {
+        String requested = requestPath.substring(requestPath.lastIndexOf('/') + 1);
+        return resource.getFilename() != null && !requested.equals(resource.getFilename());
+    }
+}
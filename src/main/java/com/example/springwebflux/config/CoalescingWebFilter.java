@@ -0,0 +1,66 @@
+package com.example.springwebflux.config;
+
+import com.example.springwebflux.codec.ProductMediaTypes;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+
+/**
+ * Joins the many small buffers of a streamed body into fewer, larger ones before the server
+ * writes them.
+ * <p>
+ * Encoders write a listing one element per buffer, and Netty compresses, and frames as an
+ * HTTP chunk, every buffer on its own: a catalog of small products turns into tens of
+ * thousands of tiny deflate blocks, each with its own header and none with much to work
+ * with. Up to {@code maxBuffers} buffers are joined instead, waiting at most {@code maxDelay}
+ * for more, so a listing read from memory goes out in large chunks while a slow one is held
+ * back no longer than that. Bodies written with explicit flushes, such as the change feed, are
+ * left alone, as are single-buffer bodies and streaming formats (NDJSON, stream+json, Smile
+ * streams and server-sent events), whose clients act on each element as it arrives.
+ */
+public class CoalescingWebFilter implements WebFilter {
+
+    private final int maxBuffers;
+    private final Duration maxDelay;
+
+    public CoalescingWebFilter(int maxBuffers, Duration maxDelay) {
+        this.maxBuffers = maxBuffers;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        if (maxBuffers <= 1) {
+            return chain.filter(exchange);
+        }
+        return chain.filter(exchange.mutate()
+                .response(new ServerHttpResponseDecorator(exchange.getResponse()) {
+                    @Override
+                    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                        if (body instanceof Mono || isStreaming(getHeaders().getContentType())) {
+                            return super.writeWith(body);
+                        }
+                        return super.writeWith(Flux.from(body)
+                                .bufferTimeout(maxBuffers, maxDelay, true)
+                                .map(buffers -> bufferFactory().join(buffers))
+                                .doOnDiscard(DataBuffer.class, DataBufferUtils::release));
+                    }
+                })
+                .build());
+    }
+
+    private static boolean isStreaming(MediaType contentType) {
+        return contentType != null && (ProductMediaTypes.isLineDelimited(contentType)
+                || ProductMediaTypes.APPLICATION_STREAM_SMILE.equalsTypeAndSubtype(contentType)
+                || MediaType.TEXT_EVENT_STREAM.equalsTypeAndSubtype(contentType));
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.springwebflux.config;
+
+import com.example.springwebflux.repository.FileProductJournal;
+import com.example.springwebflux.repository.HeapProductStore;
+import com.example.springwebflux.repository.OffHeapProductStore;
+import com.example.springwebflux.repository.ProductJournal;
+import com.example.springwebflux.repository.ProductStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Configuration
+public class PersistenceConfig {
+
+    public enum StorageType {
+        // Products as heap objects, with live skip-list indexes
+        HEAP,
+        // Products in off-heap columns, with periodically refreshed sort orders
+        OFF_HEAP
+    }
+
+    @Bean
+    ProductStore productStore(
+            @Value("${products.storage.type:heap}") StorageType type,
+            @Value("${products.storage.initial-capacity:1024}") int initialCapacity,
+            @Value("${products.storage.index-refresh:1s}") Duration indexRefresh) {
+        return switch (type) {
+            case HEAP -> new HeapProductStore();
+            case OFF_HEAP -> new OffHeapProductStore(initialCapacity, indexRefresh);
+        };
+    }
+
+    @Bean(destroyMethod = "close")
+    ProductJournal productJournal(
+            @Value("${products.persistence.enabled:false}") boolean enabled,
+            @Value("${products.persistence.directory:data}") Path directory,
+            @Value("${products.persistence.snapshot-threshold:64MB}") DataSize snapshotThreshold,
+            @Value("${products.persistence.sync-policy:interval}") FileProductJournal.SyncPolicy syncPolicy,
+            @Value("${products.persistence.sync-interval:10ms}") Duration syncInterval,
+            @Value("${products.persistence.sync-bytes:1MB}") DataSize syncBytes) {
+        if (!enabled) {
+            return ProductJournal.NONE;
+        }
+        return new FileProductJournal(directory, snapshotThreshold.toBytes(),
+                syncPolicy, syncInterval, syncBytes.toBytes());
+    }
+}
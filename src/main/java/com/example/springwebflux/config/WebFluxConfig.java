@@ -1,26 +1,77 @@
 package com.example.springwebflux.config;
 
+import com.example.springwebflux.codec.ProductCodecs;
+import com.example.springwebflux.codec.ProductStreamWriter;
+import com.example.springwebflux.model.ProductPage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.concurrent.ConcurrentMapCache;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.codec.ServerCodecConfigurer;
 import org.springframework.web.reactive.config.CorsRegistry;
 import org.springframework.web.reactive.config.EnableWebFlux;
 import org.springframework.web.reactive.config.ResourceHandlerRegistry;
 import org.springframework.web.reactive.config.WebFluxConfigurer;
+import org.springframework.web.reactive.resource.CachingResourceResolver;
+import org.springframework.web.reactive.resource.EncodedResourceResolver;
+import org.springframework.web.reactive.resource.VersionResourceResolver;
+
+import java.time.Duration;
 
 @Configuration
 @EnableWebFlux
 public class WebFluxConfig implements WebFluxConfigurer {
 
+    private static final String STATIC_LOCATION = "classpath:/static/";
+
+    private final Duration staticMaxAge;
+
+    public WebFluxConfig(@Value("${web.static.max-age:365d}") Duration staticMaxAge) {
+        this.staticMaxAge = staticMaxAge;
+    }
+
     @Override
     public void addCorsMappings(CorsRegistry corsRegistry) {
         corsRegistry.addMapping("/**")
                 .allowedOrigins("*")
-                .allowedMethods("GET", "POST", "PUT", "DELETE")
-                .allowedHeaders("*");
+                .allowedMethods("GET", "POST", "PUT", "PATCH", "DELETE")
+                .allowedHeaders("*")
+                .exposedHeaders(ProductPage.NEXT_PAGE_HEADER, HttpHeaders.ETAG);
+    }
+
+    // Fewer, larger chunks for Netty to compress; see server.compression in application.properties
+    @Bean
+    CoalescingWebFilter coalescingWebFilter(@Value("${web.response.coalesce-buffers:64}") int maxBuffers,
+                                            @Value("${web.response.coalesce-delay:5ms}") Duration maxDelay) {
+        return new CoalescingWebFilter(maxBuffers, maxDelay);
+    }
+
+    // CBOR, Smile and protobuf next to JSON, chosen by the request's Accept header
+    @Override
+    public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+        ProductCodecs.register(configurer);
+        configurer.customCodecs().register(new ProductStreamWriter());
     }
 
+    // Assets are linked by a URL carrying a hash of their content (app-3f2a...9c.js, see
+    // ResourceUrlProvider) that changes whenever the content does, so those are cached for good;
+    // the same file requested by its plain name, like every page, is revalidated on every use.
+    // Both are served from the .br or .gz variant StaticResourceCompressor wrote at build time
+    // when the client accepts one, and resolved once per path and encoding rather than on every
+    // request.
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         registry.addResourceHandler("/**")
-                .addResourceLocations("classpath:/static/");
+                .addResourceLocations(STATIC_LOCATION)
+                // Cached after CacheControlResourceResolver rather than first, as it must see
+                // every request; the handler sets no Cache-Control of its own to overwrite it
+                .resourceChain(false)
+                .addResolver(new CacheControlResourceResolver(
+                        CacheControl.maxAge(staticMaxAge).cachePublic().immutable(), CacheControl.noCache()))
+                .addResolver(new CachingResourceResolver(new ConcurrentMapCache("static-resources")))
+                .addResolver(new EncodedResourceResolver())
+                .addResolver(new VersionResourceResolver().addContentVersionStrategy("/**"));
     }
 }
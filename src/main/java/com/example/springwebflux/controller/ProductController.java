@@ -1,49 +1,142 @@
 package com.example.springwebflux.controller;
 
+import com.example.springwebflux.codec.ProductMediaTypes;
+import com.example.springwebflux.exception.VersionConflictException;
+import com.example.springwebflux.model.BulkResult;
+import com.example.springwebflux.model.PricingRules;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.model.ProductPatch;
+import com.example.springwebflux.model.ProductStats;
+import com.example.springwebflux.model.RepricingProgress;
+import com.example.springwebflux.service.ProductChangeFeed;
+import com.example.springwebflux.service.ProductETags;
 import com.example.springwebflux.service.ProductService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.json.Jackson2SmileEncoder;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+// Listed in order of preference, so a client that accepts anything gets JSON
 @RestController
-@RequestMapping("/api/products")
+@RequestMapping(value = "/api/products",
+        produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+                ProductMediaTypes.APPLICATION_SMILE_VALUE, ProductMediaTypes.APPLICATION_PROTOBUF_VALUE})
 public class ProductController {
 
+    private static final ResolvableType CHANGE_EVENT = ResolvableType.forClass(ProductChangeEvent.class);
+
     private final ProductService productService;
+    private final Jackson2SmileEncoder smileEncoder = new Jackson2SmileEncoder();
 
     @Autowired
     public ProductController(ProductService productService) {
         this.productService = productService;
     }
 
-    @GetMapping
-    public Flux<Product> getAllProducts(@RequestParam(required = false) Double cheaperThan) {
-        if (cheaperThan != null) {
-            return productService.getProductsCheaperThan(cheaperThan);
-        }
-        return productService.getAllProducts();
+    // NDJSON and stream+json list the whole catalog as it is read, rather than a page at a time
+    @GetMapping(produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+            ProductMediaTypes.APPLICATION_SMILE_VALUE, ProductMediaTypes.APPLICATION_PROTOBUF_VALUE,
+            MediaType.APPLICATION_NDJSON_VALUE, ProductMediaTypes.APPLICATION_STREAM_JSON_VALUE})
+    public Mono<ResponseEntity<Flux<Product>>> getAllProducts(@RequestParam(required = false) Double cheaperThan,
+                                                              @RequestParam(required = false) String after,
+                                                              @RequestParam(required = false) Integer limit,
+                                                              ServerWebExchange exchange) {
+        MediaType contentType = contentType(exchange, ProductMediaTypes.LISTINGS);
+        return ifCatalogModified(exchange, contentType, eTag -> {
+            if (ProductMediaTypes.isLineDelimited(contentType)) {
+                return Mono.just(ok(eTag, contentType).body(cheaperThan == null
+                        ? productService.getProductsAfter(after, limit)
+                        : productService.getProductsCheaperThanAfter(cheaperThan, after, limit)));
+            }
+            Mono<ProductPage> products = cheaperThan == null
+                    ? productService.getProductsPage(after, limit)
+                    : productService.getProductsCheaperThanPage(cheaperThan, after, limit);
+            return products
+                    .map(page -> {
+                        ResponseEntity.BodyBuilder response = ok(eTag, contentType);
+                        if (page.hasNextPage()) {
+                            response.header(ProductPage.NEXT_PAGE_HEADER, page.getNextPageToken());
+                        }
+                        return response.body(Flux.fromIterable(page.getProducts()));
+                    });
+        });
+    }
+
+    @GetMapping(value = "/sorted",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+                    ProductMediaTypes.APPLICATION_SMILE_VALUE, ProductMediaTypes.APPLICATION_PROTOBUF_VALUE,
+                    MediaType.APPLICATION_NDJSON_VALUE, ProductMediaTypes.APPLICATION_STREAM_JSON_VALUE})
+    public Mono<ResponseEntity<Flux<Product>>> getAllProductsSorted(ServerWebExchange exchange) {
+        MediaType contentType = contentType(exchange, ProductMediaTypes.LISTINGS);
+        return ifCatalogModified(exchange, contentType, eTag ->
+                Mono.just(ok(eTag, contentType).body(productService.getAllProductsSorted())));
+    }
+
+    @GetMapping(value = "/search",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+                    ProductMediaTypes.APPLICATION_SMILE_VALUE, ProductMediaTypes.APPLICATION_PROTOBUF_VALUE})
+    public Mono<ResponseEntity<Flux<Product>>> searchProducts(@RequestParam String q,
+                                                              @RequestParam(required = false) Integer limit,
+                                                              ServerWebExchange exchange) {
+        MediaType contentType = contentType(exchange, ProductMediaTypes.PRODUCTS);
+        return ifCatalogModified(exchange, contentType, eTag ->
+                Mono.just(ok(eTag, contentType).body(productService.searchProducts(q, limit))));
     }
 
-    @GetMapping("/sorted")
-    public Flux<Product> getAllProductsSorted() {
-        return productService.getAllProductsSorted();
+    // Not a product, so no protobuf
+    @GetMapping(value = "/stats",
+            produces = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_CBOR_VALUE,
+                    ProductMediaTypes.APPLICATION_SMILE_VALUE})
+    public Mono<ResponseEntity<ProductStats>> getStats(ServerWebExchange exchange) {
+        MediaType contentType = contentType(exchange, ProductMediaTypes.DOCUMENTS);
+        return ifCatalogModified(exchange, contentType, eTag ->
+                productService.getStats().map(stats -> ok(eTag, contentType).body(stats)));
     }
 
+    // A 304 for a matching If-None-Match is sent by Spring without writing the body
     @GetMapping("/{id}")
-    public Mono<ResponseEntity<Product>> getProductById(@PathVariable String id) {
+    public Mono<ResponseEntity<Product>> getProductById(@PathVariable String id, ServerWebExchange exchange) {
         return productService.getProductById(id)
-                .map(ResponseEntity::ok)
+                .map(product -> withETag(exchange, product))
                 .defaultIfEmpty(ResponseEntity.notFound().build());
     }
 
-    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<Product> streamProducts() {
-        return productService.getProductUpdates();
+    // SSE frames are encoded once by the change feed and written as-is, flushing after each
+    // event; a Smile stream is encoded per subscriber. One method serves both, as two mappings
+    // would both match a client that accepts anything.
+    @GetMapping(value = "/events",
+            produces = {MediaType.TEXT_EVENT_STREAM_VALUE, ProductMediaTypes.APPLICATION_STREAM_SMILE_VALUE})
+    public Mono<Void> streamProducts(
+            @RequestHeader(value = ProductChangeFeed.LAST_EVENT_ID_HEADER, required = false) String lastEventId,
+            @RequestParam(defaultValue = "false") boolean conflate,
+            @RequestHeader HttpHeaders headers,
+            ServerHttpResponse response) {
+        MediaType contentType = ProductMediaTypes.negotiate(headers.getAccept(), ProductMediaTypes.EVENTS);
+        response.getHeaders().setContentType(contentType);
+        Flux<DataBuffer> events;
+        if (contentType.equals(ProductMediaTypes.APPLICATION_STREAM_SMILE)) {
+            response.getHeaders().set(ProductChangeFeed.EVENT_EPOCH_HEADER, productService.getEventEpoch());
+            events = smileEncoder.encode(productService.getProductUpdates(lastEventId, conflate),
+                    response.bufferFactory(), CHANGE_EVENT, contentType, Collections.emptyMap());
+        } else {
+            events = productService.getProductUpdates(lastEventId, conflate, response.bufferFactory());
+        }
+        return response.writeAndFlushWith(events.map(Mono::just));
     }
 
     @PostMapping
@@ -52,12 +145,49 @@ public class ProductController {
         return productMono.flatMap(productService::createProduct);
     }
 
+    @PostMapping(value = "/bulk",
+            consumes = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE,
+                    ProductMediaTypes.APPLICATION_STREAM_SMILE_VALUE, ProductMediaTypes.APPLICATION_SMILE_VALUE,
+                    ProductMediaTypes.APPLICATION_PROTOBUF_VALUE},
+            produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_JSON_VALUE,
+                    ProductMediaTypes.APPLICATION_STREAM_SMILE_VALUE})
+    public Flux<BulkResult> saveProducts(@RequestBody Flux<Product> products) {
+        return productService.saveProducts(products);
+    }
+
+    // Streams running totals as each batch of new prices is written
+    @PostMapping(value = "/reprice",
+            produces = {MediaType.APPLICATION_NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE,
+                    ProductMediaTypes.APPLICATION_STREAM_SMILE_VALUE})
+    public Flux<RepricingProgress> repriceProducts(@RequestBody Mono<PricingRules> rulesMono) {
+        return rulesMono.flatMapMany(productService::repriceAll);
+    }
+
+    // With If-Match the update only applies to that version of the product, else 412
     @PutMapping("/{id}")
     public Mono<ResponseEntity<Product>> updateProduct(@PathVariable String id,
-                                                       @RequestBody Mono<Product> productMono) {
-        return productMono.flatMap(product -> productService.updateProduct(id, product))
-                .map(ResponseEntity::ok)
-                .defaultIfEmpty(ResponseEntity.notFound().build());
+                                                       @RequestHeader(value = HttpHeaders.IF_MATCH, required = false)
+                                                       String ifMatch,
+                                                       @RequestBody Mono<Product> productMono,
+                                                       ServerWebExchange exchange) {
+        Long expectedVersion = ProductETags.requiredVersion(ifMatch);
+        return productMono.flatMap(product -> productService.updateProduct(id, product, expectedVersion))
+                .map(product -> withETag(exchange, product))
+                .defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(VersionConflictException.class, conflict -> preconditionFailed(exchange, conflict));
+    }
+
+    @PatchMapping("/{id}")
+    public Mono<ResponseEntity<Product>> patchProduct(@PathVariable String id,
+                                                      @RequestHeader(value = HttpHeaders.IF_MATCH, required = false)
+                                                      String ifMatch,
+                                                      @RequestBody Mono<ProductPatch> patchMono,
+                                                      ServerWebExchange exchange) {
+        Long expectedVersion = ProductETags.requiredVersion(ifMatch);
+        return patchMono.flatMap(patch -> productService.patchProduct(id, patch, expectedVersion))
+                .map(product -> withETag(exchange, product))
+                .defaultIfEmpty(ResponseEntity.notFound().build())
+                .onErrorResume(VersionConflictException.class, conflict -> preconditionFailed(exchange, conflict));
     }
 
     @DeleteMapping("/{id}")
@@ -66,4 +196,48 @@ public class ProductController {
                 .then(Mono.just(new ResponseEntity<Void>(HttpStatus.NO_CONTENT)))
                 .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
+
+    /**
+     * Answers with 304 when the client already holds the current catalog ETag for
+     * {@code contentType}, without reading any products; otherwise runs {@code read} with the
+     * ETag to send.
+     */
+    private <T> Mono<ResponseEntity<T>> ifCatalogModified(ServerWebExchange exchange, MediaType contentType,
+                                                          Function<String, Mono<ResponseEntity<T>>> read) {
+        // Taken before the read, so the response is never older than its ETag
+        String eTag = ProductETags.ofCatalog(productService.getCatalogVersion(), contentType);
+        if (exchange.checkNotModified(eTag)) {
+            return Mono.just(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(eTag)
+                    .varyBy(HttpHeaders.ACCEPT)
+                    .build());
+        }
+        return read.apply(eTag);
+    }
+
+    // Negotiated here rather than by Spring, so that the ETag is that of the format written
+    private static MediaType contentType(ServerWebExchange exchange, List<MediaType> producible) {
+        return ProductMediaTypes.negotiate(exchange.getRequest().getHeaders().getAccept(), producible);
+    }
+
+    private static ResponseEntity.BodyBuilder ok(String eTag, MediaType contentType) {
+        return ResponseEntity.ok()
+                .contentType(contentType)
+                .eTag(eTag)
+                .varyBy(HttpHeaders.ACCEPT);
+    }
+
+    private static ResponseEntity<Product> withETag(ServerWebExchange exchange, Product product) {
+        MediaType contentType = contentType(exchange, ProductMediaTypes.PRODUCTS);
+        return ok(ProductETags.of(product, contentType), contentType).body(product);
+    }
+
+    // Tells the client which version it lost to, so it can re-read or retry with that ETag
+    private static Mono<ResponseEntity<Product>> preconditionFailed(ServerWebExchange exchange,
+                                                                    VersionConflictException conflict) {
+        return Mono.just(ResponseEntity.status(HttpStatus.PRECONDITION_FAILED)
+                .eTag(ProductETags.of(conflict.getCurrent(), contentType(exchange, ProductMediaTypes.PRODUCTS)))
+                .varyBy(HttpHeaders.ACCEPT)
+                .build());
+    }
 }
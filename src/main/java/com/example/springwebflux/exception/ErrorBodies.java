@@ -0,0 +1,110 @@
+package com.example.springwebflux.exception;
+
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * JSON error bodies, {@code {"error":"..."}}. A body that only names the status is encoded
+ * once per status and reused by every response. A message is escaped and UTF-8 encoded
+ * character by character straight into a buffer from the response's (pooled) factory, with
+ * no intermediate string or byte array.
+ */
+final class ErrorBodies {
+
+    // Longer messages are cut, so a body never echoes back an arbitrarily large input
+    static final int MAX_DETAIL_LENGTH = 1000;
+
+    private static final byte[] PREFIX = "{\"error\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SUFFIX = "\"}".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ELLIPSIS = "...".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    // Encoded bodies by status code, filled in on first use
+    private static final AtomicReferenceArray<byte[]> BY_STATUS = new AtomicReferenceArray<>(600);
+
+    private ErrorBodies() {
+    }
+
+    static DataBuffer of(HttpStatusCode status, DataBufferFactory bufferFactory) {
+        int code = status.value();
+        if (code < 0 || code >= BY_STATUS.length()) {
+            return write(reasonPhrase(code), bufferFactory);
+        }
+        byte[] body = BY_STATUS.get(code);
+        if (body == null) {
+            // Benign race: concurrent first uses encode the same bytes
+            DataBuffer encoded = write(reasonPhrase(code), DefaultDataBufferFactory.sharedInstance);
+            body = new byte[encoded.readableByteCount()];
+            encoded.read(body);
+            BY_STATUS.set(code, body);
+        }
+        return bufferFactory.wrap(body);
+    }
+
+    static DataBuffer of(String detail, DataBufferFactory bufferFactory) {
+        int length = Math.min(detail.length(), MAX_DETAIL_LENGTH);
+        return write(detail, bufferFactory.allocateBuffer(PREFIX.length + length + SUFFIX.length + ELLIPSIS.length));
+    }
+
+    private static String reasonPhrase(int code) {
+        HttpStatus status = HttpStatus.resolve(code);
+        return status != null ? status.getReasonPhrase() : "Error " + code;
+    }
+
+    private static DataBuffer write(String detail, DataBufferFactory bufferFactory) {
+        return write(detail, bufferFactory.allocateBuffer(PREFIX.length + detail.length() + SUFFIX.length));
+    }
+
+    private static DataBuffer write(String detail, DataBuffer buffer) {
+        buffer.write(PREFIX);
+        int end = Math.min(detail.length(), MAX_DETAIL_LENGTH);
+        int i = 0;
+        while (i < end) {
+            char c = detail.charAt(i++);
+            if (c == '"' || c == '\\') {
+                buffer.write((byte) '\\').write((byte) c);
+            } else if (c < 0x20) {
+                writeControl(buffer, c);
+            } else if (c < 0x80) {
+                buffer.write((byte) c);
+            } else if (c < 0x800) {
+                buffer.write((byte) (0xc0 | (c >> 6))).write((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i < end && Character.isLowSurrogate(detail.charAt(i))) {
+                int codePoint = Character.toCodePoint(c, detail.charAt(i++));
+                buffer.write((byte) (0xf0 | (codePoint >> 18)))
+                        .write((byte) (0x80 | ((codePoint >> 12) & 0x3f)))
+                        .write((byte) (0x80 | ((codePoint >> 6) & 0x3f)))
+                        .write((byte) (0x80 | (codePoint & 0x3f)));
+            } else {
+                // A lone surrogate (or half a pair cut at the limit) has no UTF-8 encoding
+                char encodable = Character.isSurrogate(c) ? '\uFFFD' : c;
+                buffer.write((byte) (0xe0 | (encodable >> 12)))
+                        .write((byte) (0x80 | ((encodable >> 6) & 0x3f)))
+                        .write((byte) (0x80 | (encodable & 0x3f)));
+            }
+        }
+        if (end < detail.length()) {
+            buffer.write(ELLIPSIS);
+        }
+        return buffer.write(SUFFIX);
+    }
+
+    private static void writeControl(DataBuffer buffer, char c) {
+        buffer.write((byte) '\\');
+        switch (c) {
+            case '\n' -> buffer.write((byte) 'n');
+            case '\r' -> buffer.write((byte) 'r');
+            case '\t' -> buffer.write((byte) 't');
+            case '\b' -> buffer.write((byte) 'b');
+            case '\f' -> buffer.write((byte) 'f');
+            default -> buffer.write((byte) 'u').write((byte) '0').write((byte) '0')
+                    .write(HEX[c >> 4]).write(HEX[c & 0xf]);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.springwebflux.exception;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.ErrorResponse;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.Map;
+
+/**
+ * Decides the status of an error response from the exception type, and whether the body may
+ * carry the exception's message.
+ * <p>
+ * Types are looked up in a table, most specific class first; exceptions that carry their own
+ * status (Spring's {@link ErrorResponse}s, such as the 404 for an unknown path) keep it.
+ * Everything else is a 500 whose message stays in the log. The outcome per type is cached,
+ * so classifying an exception costs a single lookup.
+ */
+final class ErrorMapping {
+
+    /**
+     * Status for an exception type; with {@code exposeMessage} the body carries the message,
+     * otherwise just the status' reason phrase.
+     */
+    record Rule(HttpStatus status, boolean exposeMessage) {
+    }
+
+    static final Rule INTERNAL_ERROR = new Rule(HttpStatus.INTERNAL_SERVER_ERROR, false);
+
+    // Messages of these are written for the client: validation errors and conflicts
+    private static final Map<Class<? extends Throwable>, Rule> RULES = Map.of(
+            IllegalArgumentException.class, new Rule(HttpStatus.BAD_REQUEST, true),
+            VersionConflictException.class, new Rule(HttpStatus.PRECONDITION_FAILED, true));
+
+    private static final ClassValue<Rule> BY_TYPE = new ClassValue<>() {
+        @Override
+        protected Rule computeValue(Class<?> type) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                Rule rule = RULES.get(c);
+                if (rule != null) {
+                    return rule;
+                }
+            }
+            return ErrorResponse.class.isAssignableFrom(type) ? null : INTERNAL_ERROR;
+        }
+    };
+
+    private ErrorMapping() {
+    }
+
+    static HttpStatusCode statusOf(Throwable error) {
+        Rule rule = BY_TYPE.get(error.getClass());
+        if (rule != null) {
+            return rule.status();
+        }
+        return ((ErrorResponse) error).getStatusCode();
+    }
+
+    /**
+     * The message to show the client, or null to show only the status. Of the exceptions that
+     * carry a status, only bad requests explain themselves (a malformed body, a missing
+     * parameter); the reason for a 404 or 405 is the status itself.
+     */
+    static String detailOf(Throwable error) {
+        Rule rule = BY_TYPE.get(error.getClass());
+        if (rule != null) {
+            return rule.exposeMessage() ? error.getMessage() : null;
+        }
+        if (error instanceof ResponseStatusException statusError
+                && statusError.getStatusCode().value() == HttpStatus.BAD_REQUEST.value()) {
+            return statusError.getReason();
+        }
+        return null;
+    }
+}
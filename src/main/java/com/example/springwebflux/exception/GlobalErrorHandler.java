@@ -1,40 +1,105 @@
 package com.example.springwebflux.exception;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.web.reactive.error.ErrorWebExceptionHandler;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.core.annotation.Order;
 import org.springframework.core.io.buffer.DataBuffer;
-import org.springframework.core.io.buffer.DataBufferFactory;
-import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
 import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.ErrorResponse;
 import org.springframework.web.server.ServerWebExchange;
 import reactor.core.publisher.Mono;
 
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Turns exceptions that reach the web layer into JSON error responses, with the status from
+ * {@link ErrorMapping} and the body from {@link ErrorBodies}, and counts them in
+ * {@code http.server.errors} by exception type and status.
+ * <p>
+ * Kept cheap for error storms (bots probing unknown paths, floods of bad input): a common
+ * error is answered with a shared pre-encoded body and a cached counter, allocating next to
+ * nothing beyond the response itself.
+ */
 @Configuration
 @Order(-2) // To ensure it takes precedence over the DefaultErrorWebExceptionHandler
 public class GlobalErrorHandler implements ErrorWebExceptionHandler {
 
+    private static final Logger log = LoggerFactory.getLogger(GlobalErrorHandler.class);
+
+    private final MeterRegistry registry;
+
+    // Counters per exception type, indexed by status code
+    private final ClassValue<AtomicReferenceArray<Counter>> counters = new ClassValue<>() {
+        @Override
+        protected AtomicReferenceArray<Counter> computeValue(Class<?> type) {
+            return new AtomicReferenceArray<>(600);
+        }
+    };
+
+    // Without a registry (as in web slice tests), errors are counted in Micrometer's global one
+    public GlobalErrorHandler(ObjectProvider<MeterRegistry> registry) {
+        this.registry = registry.getIfAvailable(() -> Metrics.globalRegistry);
+    }
+
     @Override
     public Mono<Void> handle(ServerWebExchange exchange, Throwable ex) {
-        DataBufferFactory bufferFactory = exchange.getResponse().bufferFactory();
-
-        // Determine HTTP status based on exception type
-        HttpStatus status = determineHttpStatus(ex);
-        exchange.getResponse().setStatusCode(status);
-        exchange.getResponse().getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        ServerHttpResponse response = exchange.getResponse();
+        if (response.isCommitted()) {
+            // Failed mid-stream: the status is already sent, so there is nothing left to report
+            return Mono.error(ex);
+        }
 
-        // Create error message
-        String errorMessage = "{\"error\": \"" + ex.getMessage() + "\"}";
-        DataBuffer dataBuffer = bufferFactory.wrap(errorMessage.getBytes());
+        HttpStatusCode status = ErrorMapping.statusOf(ex);
+        count(ex, status);
+        if (status.is5xxServerError()) {
+            log.error("Request {} {} failed", exchange.getRequest().getMethod(), exchange.getRequest().getPath(), ex);
+        }
 
-        return exchange.getResponse().writeWith(Mono.just(dataBuffer));
+        String detail = ErrorMapping.detailOf(ex);
+        DataBuffer body = detail != null
+                ? ErrorBodies.of(detail, response.bufferFactory())
+                : ErrorBodies.of(status, response.bufferFactory());
+        response.setStatusCode(status);
+        HttpHeaders headers = response.getHeaders();
+        if (ex instanceof ErrorResponse errorResponse) {
+            // Such as Allow on a 405 or Accept on a 415
+            headers.addAll(errorResponse.getHeaders());
+        }
+        headers.setContentType(MediaType.APPLICATION_JSON);
+        headers.setContentLength(body.readableByteCount());
+        return response.writeWith(Mono.just(body));
     }
 
-    private HttpStatus determineHttpStatus(Throwable ex) {
-        if (ex instanceof IllegalArgumentException) {
-            return HttpStatus.BAD_REQUEST;
-        } else {
-            return HttpStatus.INTERNAL_SERVER_ERROR;
+    private void count(Throwable ex, HttpStatusCode status) {
+        AtomicReferenceArray<Counter> byStatus = counters.get(ex.getClass());
+        int code = status.value();
+        if (code < 0 || code >= byStatus.length()) {
+            counter(ex, code).increment();
+            return;
         }
+        Counter counter = byStatus.get(code);
+        if (counter == null) {
+            // Registering is idempotent, so a race only repeats the lookup
+            counter = counter(ex, code);
+            byStatus.set(code, counter);
+        }
+        counter.increment();
+    }
+
+    private Counter counter(Throwable ex, int status) {
+        return Counter.builder("http.server.errors")
+                .description("Requests answered by the global error handler")
+                .tag("exception", ex.getClass().getSimpleName())
+                .tag("status", Integer.toString(status))
+                .register(registry);
     }
 }
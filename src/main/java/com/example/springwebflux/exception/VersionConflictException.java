@@ -0,0 +1,21 @@
+package com.example.springwebflux.exception;
+
+import com.example.springwebflux.model.Product;
+
+/**
+ * A conditional write found the product at a different version than the caller expected.
+ * Carries the product as it is now, so the caller can report its version or retry on it.
+ */
+public class VersionConflictException extends RuntimeException {
+
+    private final transient Product current;
+
+    public VersionConflictException(Product current) {
+        super("Product " + current.getId() + " has been modified");
+        this.current = current;
+    }
+
+    public Product getCurrent() {
+        return current;
+    }
+}
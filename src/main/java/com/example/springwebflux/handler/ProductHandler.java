@@ -1,15 +1,31 @@
 package com.example.springwebflux.handler;
 
+import com.example.springwebflux.codec.ProductMediaTypes;
+import com.example.springwebflux.exception.VersionConflictException;
+import com.example.springwebflux.model.BulkResult;
+import com.example.springwebflux.model.PricingRules;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.model.ProductPatch;
+import com.example.springwebflux.model.ProductStats;
+import com.example.springwebflux.model.RepricingProgress;
+import com.example.springwebflux.service.ProductChangeFeed;
+import com.example.springwebflux.service.ProductETags;
 import com.example.springwebflux.service.ProductService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.server.ServerRequest;
 import org.springframework.web.reactive.function.server.ServerResponse;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.net.URI;
+import java.util.List;
+import java.util.function.Function;
 
 @Component
 public class ProductHandler {
@@ -22,25 +38,86 @@ public class ProductHandler {
     }
 
     public Mono<ServerResponse> getAllProducts(ServerRequest request) {
-        return ServerResponse.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(productService.getAllProducts(), Product.class);
+        String after = request.queryParam("after").orElse(null);
+        Integer limit;
+        try {
+            limit = request.queryParam("limit").map(Integer::valueOf).orElse(null);
+        } catch (NumberFormatException e) {
+            return ServerResponse.badRequest()
+                    .bodyValue("Invalid limit format: " + request.queryParam("limit").get());
+        }
+        MediaType contentType = contentType(request, ProductMediaTypes.LISTINGS);
+        if (ProductMediaTypes.isLineDelimited(contentType)) {
+            // The whole catalog, written as it is read rather than a page at a time
+            return ifCatalogModified(request, contentType, eTag -> ok(eTag, contentType)
+                    .body(productService.getProductsAfter(after, limit), Product.class));
+        }
+        return page(request, contentType, productService.getProductsPage(after, limit));
+    }
+
+    private Mono<ServerResponse> page(ServerRequest request, MediaType contentType, Mono<ProductPage> products) {
+        return ifCatalogModified(request, contentType, eTag -> products
+                .flatMap(page -> {
+                    ServerResponse.BodyBuilder response = ok(eTag, contentType);
+                    if (page.hasNextPage()) {
+                        response.header(ProductPage.NEXT_PAGE_HEADER, page.getNextPageToken());
+                    }
+                    return response.body(Flux.fromIterable(page.getProducts()), Product.class);
+                })
+                .onErrorResume(IllegalArgumentException.class, e -> ServerResponse.badRequest()
+                        .bodyValue(e.getMessage())));
     }
 
     public Mono<ServerResponse> getSortedProducts(ServerRequest request) {
-        return ServerResponse.ok()
-                .contentType(MediaType.APPLICATION_JSON)
-                .body(productService.getAllProductsSorted(), Product.class);
+        MediaType contentType = contentType(request, ProductMediaTypes.LISTINGS);
+        return ifCatalogModified(request, contentType, eTag -> ok(eTag, contentType)
+                .body(productService.getAllProductsSorted(), Product.class));
+    }
+
+    public Mono<ServerResponse> searchProducts(ServerRequest request) {
+        Integer limit;
+        try {
+            limit = request.queryParam("limit").map(Integer::valueOf).orElse(null);
+        } catch (NumberFormatException e) {
+            return ServerResponse.badRequest()
+                    .bodyValue("Invalid limit format: " + request.queryParam("limit").get());
+        }
+        MediaType contentType = contentType(request, ProductMediaTypes.PRODUCTS);
+        return request.queryParam("q")
+                .map(query -> ifCatalogModified(request, contentType, eTag -> ok(eTag, contentType)
+                        .body(productService.searchProducts(query, limit), Product.class)))
+                .orElseGet(() -> ServerResponse.badRequest()
+                        .bodyValue("Missing 'q' parameter"));
+    }
+
+    public Mono<ServerResponse> getStats(ServerRequest request) {
+        MediaType contentType = contentType(request, ProductMediaTypes.DOCUMENTS);
+        return ifCatalogModified(request, contentType, eTag -> ok(eTag, contentType)
+                .body(productService.getStats(), ProductStats.class));
     }
 
+    // Paged like the full listing, by price and then id
     public Mono<ServerResponse> getCheaperProducts(ServerRequest request) {
+        String after = request.queryParam("after").orElse(null);
+        Integer limit;
+        try {
+            limit = request.queryParam("limit").map(Integer::valueOf).orElse(null);
+        } catch (NumberFormatException e) {
+            return ServerResponse.badRequest()
+                    .bodyValue("Invalid limit format: " + request.queryParam("limit").get());
+        }
         return request.queryParam("cheaperThan")
                 .map(priceStr -> {
                     try {
                         double price = Double.parseDouble(priceStr);
-                        return ServerResponse.ok()
-                                .contentType(MediaType.APPLICATION_JSON)
-                                .body(productService.getProductsCheaperThan(price), Product.class);
+                        MediaType contentType = contentType(request, ProductMediaTypes.LISTINGS);
+                        if (ProductMediaTypes.isLineDelimited(contentType)) {
+                            return ifCatalogModified(request, contentType, eTag -> ok(eTag, contentType)
+                                    .body(productService.getProductsCheaperThanAfter(price, after, limit),
+                                            Product.class));
+                        }
+                        return page(request, contentType,
+                                productService.getProductsCheaperThanPage(price, after, limit));
                     } catch (NumberFormatException e) {
                         return ServerResponse.badRequest()
                                 .bodyValue("Invalid price format: " + priceStr);
@@ -53,16 +130,27 @@ public class ProductHandler {
     public Mono<ServerResponse> getProductById(ServerRequest request) {
         String id = request.pathVariable("id");
         return productService.getProductById(id)
-                .flatMap(product -> ServerResponse.ok()
-                        .contentType(MediaType.APPLICATION_JSON)
-                        .bodyValue(product))
+                // A matching If-None-Match is answered with 304 before the body is written
+                .flatMap(product -> okWithETag(request, product))
                 .switchIfEmpty(ServerResponse.notFound().build());
     }
 
     public Mono<ServerResponse> streamProducts(ServerRequest request) {
+        // An id the feed did not issue is answered with a resync rather than an error
+        String lastEventId = request.headers().firstHeader(ProductChangeFeed.LAST_EVENT_ID_HEADER);
+        boolean conflate = request.queryParam("conflate").map(Boolean::parseBoolean).orElse(false);
+        if (contentType(request, ProductMediaTypes.EVENTS).equals(ProductMediaTypes.APPLICATION_STREAM_SMILE)) {
+            return ServerResponse.ok()
+                    .contentType(ProductMediaTypes.APPLICATION_STREAM_SMILE)
+                    .header(ProductChangeFeed.EVENT_EPOCH_HEADER, productService.getEventEpoch())
+                    .body(productService.getProductUpdates(lastEventId, conflate), ProductChangeEvent.class);
+        }
+        // Frames are encoded once by the change feed and written as-is, flushing after each event
         return ServerResponse.ok()
                 .contentType(MediaType.TEXT_EVENT_STREAM)
-                .body(productService.getProductUpdates(), Product.class);
+                .build((exchange, context) -> exchange.getResponse().writeAndFlushWith(
+                        productService.getProductUpdates(lastEventId, conflate, exchange.getResponse().bufferFactory())
+                                .map(Mono::just)));
     }
 
     public Mono<ServerResponse> createProduct(ServerRequest request) {
@@ -81,26 +169,66 @@ public class ProductHandler {
                     return productService.createProduct(product)
                             .flatMap(savedProduct ->
                                     ServerResponse.created(URI.create("/api/functional/products/" + savedProduct.getId()))
-                                            .contentType(MediaType.APPLICATION_JSON)
+                                            .contentType(contentType(request, ProductMediaTypes.PRODUCTS))
                                             .bodyValue(savedProduct));
                 })
                 .onErrorResume(e -> ServerResponse.badRequest()
                         .bodyValue("Invalid product data: " + e.getMessage()));
     }
 
+    public Mono<ServerResponse> saveProducts(ServerRequest request) {
+        return ServerResponse.ok()
+                .contentType(contentType(request, ProductMediaTypes.STREAMS))
+                .body(productService.saveProducts(request.bodyToFlux(Product.class)), BulkResult.class);
+    }
+
+    // Streams running totals as each batch of new prices is written
+    public Mono<ServerResponse> repriceProducts(ServerRequest request) {
+        return request.bodyToMono(PricingRules.class)
+                .flatMap(rules -> ServerResponse.ok()
+                        .contentType(contentType(request, ProductMediaTypes.STREAMS))
+                        .body(productService.repriceAll(rules), RepricingProgress.class))
+                .switchIfEmpty(ServerResponse.badRequest().bodyValue("Pricing rules are required"));
+    }
+
+    // With If-Match the update only applies to that version of the product, else 412
     public Mono<ServerResponse> updateProduct(ServerRequest request) {
         String id = request.pathVariable("id");
+        Long expectedVersion = ProductETags.requiredVersion(request.headers().firstHeader(HttpHeaders.IF_MATCH));
         return request.bodyToMono(Product.class)
-                .flatMap(product -> productService.updateProduct(id, product)
-                        .flatMap(updatedProduct ->
-                                ServerResponse.ok()
-                                        .contentType(MediaType.APPLICATION_JSON)
-                                        .bodyValue(updatedProduct))
-                        .switchIfEmpty(ServerResponse.notFound().build()))
+                .flatMap(product -> productService.updateProduct(id, product, expectedVersion)
+                        .flatMap(updated -> okWithETag(request, updated))
+                        .switchIfEmpty(ServerResponse.notFound().build())
+                        .onErrorResume(VersionConflictException.class, conflict -> preconditionFailed(request, conflict)))
                 .onErrorResume(e -> ServerResponse.badRequest()
                         .bodyValue("Invalid product data: " + e.getMessage()));
     }
 
+    public Mono<ServerResponse> patchProduct(ServerRequest request) {
+        String id = request.pathVariable("id");
+        Long expectedVersion = ProductETags.requiredVersion(request.headers().firstHeader(HttpHeaders.IF_MATCH));
+        return request.bodyToMono(ProductPatch.class)
+                .flatMap(patch -> productService.patchProduct(id, patch, expectedVersion)
+                        .flatMap(patched -> okWithETag(request, patched))
+                        .switchIfEmpty(ServerResponse.notFound().build())
+                        .onErrorResume(VersionConflictException.class, conflict -> preconditionFailed(request, conflict)))
+                .onErrorResume(e -> ServerResponse.badRequest()
+                        .bodyValue("Invalid product data: " + e.getMessage()));
+    }
+
+    private Mono<ServerResponse> okWithETag(ServerRequest request, Product product) {
+        MediaType contentType = contentType(request, ProductMediaTypes.PRODUCTS);
+        return ok(ProductETags.of(product, contentType), contentType).bodyValue(product);
+    }
+
+    // Tells the client which version it lost to, so it can re-read or retry with that ETag
+    private Mono<ServerResponse> preconditionFailed(ServerRequest request, VersionConflictException conflict) {
+        return ServerResponse.status(HttpStatus.PRECONDITION_FAILED)
+                .eTag(ProductETags.of(conflict.getCurrent(), contentType(request, ProductMediaTypes.PRODUCTS)))
+                .varyBy(HttpHeaders.ACCEPT)
+                .build();
+    }
+
     public Mono<ServerResponse> deleteProduct(ServerRequest request) {
         String id = request.pathVariable("id");
         return productService.getProductById(id)
@@ -108,4 +236,31 @@ public class ProductHandler {
                         .then(ServerResponse.noContent().build()))
                 .switchIfEmpty(ServerResponse.notFound().build());
     }
+
+    // Functional routes are not negotiated by Spring, so the Accept header is matched here
+    private static MediaType contentType(ServerRequest request, List<MediaType> producible) {
+        return ProductMediaTypes.negotiate(request.headers().accept(), producible);
+    }
+
+    // The ETag depends on the negotiated format, so caches must key on Accept too
+    private static ServerResponse.BodyBuilder ok(String eTag, MediaType contentType) {
+        return ServerResponse.ok()
+                .contentType(contentType)
+                .eTag(eTag)
+                .varyBy(HttpHeaders.ACCEPT);
+    }
+
+    /**
+     * Answers with 304 when the client already holds the current catalog ETag for
+     * {@code contentType}, without reading any products; otherwise runs {@code read} with the
+     * ETag to send.
+     */
+    private Mono<ServerResponse> ifCatalogModified(ServerRequest request, MediaType contentType,
+                                                   Function<String, Mono<ServerResponse>> read) {
+        // Taken before the read, so the response is never older than its ETag
+        String eTag = ProductETags.ofCatalog(productService.getCatalogVersion(), contentType);
+        return request.checkNotModified(eTag)
+                .flatMap(notModified -> ServerResponse.from(notModified).varyBy(HttpHeaders.ACCEPT).build())
+                .switchIfEmpty(Mono.defer(() -> read.apply(eTag)));
+    }
 }
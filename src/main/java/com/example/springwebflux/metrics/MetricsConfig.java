@@ -1,10 +1,19 @@
 package com.example.springwebflux.metrics;
 
+import com.example.springwebflux.service.ProductCache;
+import com.example.springwebflux.service.ProductChangeFeed;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
+import org.springframework.boot.web.embedded.netty.NettyServerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.Locale;
+
 @Configuration
 public class MetricsConfig {
 
@@ -13,4 +22,48 @@ public class MetricsConfig {
         return registry -> registry.config()
                 .commonTags("application", "reactive-product-api");
     }
+
+    // Hit, miss, eviction and size meters tagged cache=products
+    @Bean
+    MeterBinder productCacheMetrics(ProductCache productCache) {
+        return registry -> CaffeineCacheMetrics.monitor(registry, productCache.getCache(), "products");
+    }
+
+    // Live SSE subscribers, how far the slowest one lags behind the event ring, and how many fell off it
+    @Bean
+    MeterBinder productChangeFeedMetrics(ProductChangeFeed changeFeed) {
+        return registry -> {
+            Gauge.builder("products.events.subscribers", changeFeed, ProductChangeFeed::getSubscriberCount)
+                    .description("Open change feed subscriptions")
+                    .register(registry);
+            Gauge.builder("products.events.buffer.size", changeFeed, ProductChangeFeed::getBufferSize)
+                    .description("Events kept for subscribers to catch up")
+                    .baseUnit("events")
+                    .register(registry);
+            Gauge.builder("products.events.lag.max", changeFeed, ProductChangeFeed::getMaxSubscriberLag)
+                    .description("Events the slowest subscriber has yet to read")
+                    .baseUnit("events")
+                    .register(registry);
+            FunctionCounter.builder("products.events.published", changeFeed, ProductChangeFeed::getLastSequence)
+                    .baseUnit("events")
+                    .register(registry);
+            FunctionCounter.builder("products.events.overflows", changeFeed, ProductChangeFeed::getOverflowCount)
+                    .description("Subscribers that fell behind the buffer and were resynced or disconnected")
+                    .tag("policy", changeFeed.getOverflowPolicy().name().toLowerCase(Locale.ROOT).replace('_', '-'))
+                    .register(registry);
+        };
+    }
+
+    // Request and response body sizes per route; http.server.requests already times them
+    @Bean
+    PayloadSizeWebFilter payloadSizeWebFilter(MeterRegistry registry) {
+        return new PayloadSizeWebFilter(registry);
+    }
+
+    // Reactor Netty's own meters: event loop pending tasks, connections and buffer allocator
+    // usage. Routes are already tagged by http.server.requests, so they are not tagged again here
+    @Bean
+    NettyServerCustomizer nettyServerMetrics() {
+        return httpServer -> httpServer.metrics(true, uri -> "/");
+    }
 }
@@ -0,0 +1,96 @@
+package com.example.springwebflux.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import org.reactivestreams.Publisher;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Records request and response body sizes per route, for the annotated and functional APIs
+ * alike, as {@code http.server.request.size} and {@code http.server.response.size} tagged
+ * with the method and the route pattern (the same {@code uri} tag as
+ * {@code http.server.requests}, which already times every route).
+ * <p>
+ * Bytes are counted as the body buffers go by, so streamed bodies are measured without
+ * being collected; a streaming response is recorded once it ends.
+ */
+public class PayloadSizeWebFilter implements WebFilter {
+
+    private final MeterRegistry registry;
+
+    public PayloadSizeWebFilter(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+        LongAdder requestBytes = new LongAdder();
+        LongAdder responseBytes = new LongAdder();
+        ServerWebExchange counted = exchange.mutate()
+                .request(new ServerHttpRequestDecorator(exchange.getRequest()) {
+                    @Override
+                    public Flux<DataBuffer> getBody() {
+                        return super.getBody().doOnNext(buffer -> requestBytes.add(buffer.readableByteCount()));
+                    }
+                })
+                .response(new ServerHttpResponseDecorator(exchange.getResponse()) {
+                    @Override
+                    public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {
+                        return super.writeWith(Flux.from(body).doOnNext(count(responseBytes)));
+                    }
+
+                    @Override
+                    public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+                        return super.writeAndFlushWith(Flux.from(body)
+                                .map(frame -> Flux.from(frame).doOnNext(count(responseBytes))));
+                    }
+                })
+                .build();
+        return chain.filter(counted)
+                .doFinally(signal -> record(counted, requestBytes.sum(), responseBytes.sum()));
+    }
+
+    private static Consumer<DataBuffer> count(LongAdder bytes) {
+        return buffer -> bytes.add(buffer.readableByteCount());
+    }
+
+    private void record(ServerWebExchange exchange, long requestBytes, long responseBytes) {
+        ServerHttpRequest request = exchange.getRequest();
+        Tags tags = Tags.of("method", request.getMethod().name(), "uri", uri(exchange));
+        DistributionSummary.builder("http.server.request.size")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry)
+                .record(requestBytes);
+        DistributionSummary.builder("http.server.response.size")
+                .baseUnit("bytes")
+                .tags(tags)
+                .register(registry)
+                .record(responseBytes);
+    }
+
+    // The matched route pattern, never the raw path, so ids don't each become a tag value
+    private static String uri(ServerWebExchange exchange) {
+        PathPattern pattern = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (pattern != null) {
+            return pattern.getPatternString();
+        }
+        ServerHttpResponse response = exchange.getResponse();
+        return response.getStatusCode() != null && response.getStatusCode().value() == 404 ? "NOT_FOUND" : "UNKNOWN";
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.springwebflux.metrics;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import reactor.core.Scannable;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.ToIntFunction;
+
+/**
+ * Worker, active task and queued task gauges ({@code reactor.scheduler.*}) for each Reactor
+ * scheduler ({@code parallel}, {@code boundedElastic}, ...), tagged with its name.
+ * <p>
+ * Works by decorating the executors Reactor creates, so only schedulers created after this
+ * is constructed are covered. The shared ones are created on first use, which can be as early
+ * as a bean's constructor (the off-heap store schedules its first rebuild while the repository
+ * replays the journal), so {@link ReactorSchedulerMetricsInitializer} creates it before any
+ * bean and executors seen before the registry is bound are metered once it is. Workers are
+ * summed per scheduler rather than
+ * metered one by one because {@code boundedElastic} keeps replacing idle workers, which
+ * would otherwise leave a trail of dead meters.
+ */
+public class ReactorSchedulerMetrics implements MeterBinder, AutoCloseable {
+
+    // One per instance, so that closing one application context leaves another's in place
+    private final String decoratorKey = ReactorSchedulerMetrics.class.getName() + "@" + System.identityHashCode(this);
+
+    // Live worker executors per scheduler name; dropped once shut down or collected. Guarded
+    // by itself, along with the registry, so every name is metered exactly once bound
+    private final Map<String, Set<ScheduledExecutorService>> workers = new HashMap<>();
+    private MeterRegistry registry;
+
+    public ReactorSchedulerMetrics() {
+        Schedulers.addExecutorServiceDecorator(decoratorKey, (scheduler, executor) -> {
+            workers(name(scheduler)).add(executor);
+            return executor;
+        });
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        synchronized (workers) {
+            this.registry = registry;
+            workers.forEach((name, executors) -> register(registry, name, executors));
+        }
+    }
+
+    private Set<ScheduledExecutorService> workers(String name) {
+        synchronized (workers) {
+            return workers.computeIfAbsent(name, key -> {
+                Set<ScheduledExecutorService> executors = Collections.synchronizedSet(
+                        Collections.newSetFromMap(new WeakHashMap<>()));
+                if (registry != null) {
+                    register(registry, key, executors);
+                }
+                return executors;
+            });
+        }
+    }
+
+    private static void register(MeterRegistry registry, String name, Set<ScheduledExecutorService> executors) {
+        register(registry, name, "workers", "Worker threads", executors, pool -> 1);
+        register(registry, name, "tasks.active", "Tasks running", executors, ThreadPoolExecutor::getActiveCount);
+        register(registry, name, "tasks.queued", "Tasks waiting for a worker", executors,
+                pool -> pool.getQueue().size());
+    }
+
+    private static void register(MeterRegistry registry, String scheduler, String meter, String description,
+                                 Set<ScheduledExecutorService> executors, ToIntFunction<ThreadPoolExecutor> value) {
+        Gauge.builder("reactor.scheduler." + meter, executors, live -> sum(live, value))
+                .description(description)
+                .tag("scheduler", scheduler)
+                .register(registry);
+    }
+
+    private static double sum(Set<ScheduledExecutorService> executors, ToIntFunction<ThreadPoolExecutor> value) {
+        List<ScheduledExecutorService> live;
+        synchronized (executors) {
+            executors.removeIf(ScheduledExecutorService::isShutdown);
+            live = new ArrayList<>(executors);
+        }
+        int total = 0;
+        for (ScheduledExecutorService executor : live) {
+            if (executor instanceof ThreadPoolExecutor pool) {
+                total += value.applyAsInt(pool);
+            }
+        }
+        return total;
+    }
+
+    // The name given to the scheduler, e.g. "parallel" out of parallel("parallel",8)
+    private static String name(Scheduler scheduler) {
+        String description = Scannable.from(scheduler).scanOrDefault(Scannable.Attr.NAME, scheduler.toString());
+        int open = description.indexOf('"');
+        int close = open < 0 ? -1 : description.indexOf('"', open + 1);
+        if (close > open) {
+            return description.substring(open + 1, close);
+        }
+        int parenthesis = description.indexOf('(');
+        return parenthesis > 0 ? description.substring(0, parenthesis) : description;
+    }
+
+    @Override
+    public void close() {
+        Schedulers.removeExecutorServiceDecorator(decoratorKey);
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.springwebflux.metrics;
+
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.event.ContextClosedEvent;
+
+/**
+ * Registers {@link ReactorSchedulerMetrics} before any bean is created, so that schedulers
+ * first used by a bean's constructor are metered too. Registered in
+ * {@code META-INF/spring.factories}; closed along with the context.
+ */
+public class ReactorSchedulerMetricsInitializer
+        implements ApplicationContextInitializer<ConfigurableApplicationContext> {
+
+    @Override
+    public void initialize(ConfigurableApplicationContext context) {
+        ReactorSchedulerMetrics metrics = new ReactorSchedulerMetrics();
+        context.getBeanFactory().registerSingleton("reactorSchedulerMetrics", metrics);
+        context.addApplicationListener(event -> {
+            if (event instanceof ContextClosedEvent closed && closed.getApplicationContext() == context) {
+                metrics.close();
+            }
+        });
+    }
+}
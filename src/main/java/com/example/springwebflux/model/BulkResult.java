@@ -0,0 +1,57 @@
+package com.example.springwebflux.model;
+
+/**
+ * Per-item outcome of a bulk write, streamed back in the same order as the request body.
+ */
+public class BulkResult {
+
+    public enum Status {
+        CREATED, UPDATED, REJECTED
+    }
+
+    private final long index;
+    private final String id;
+    private final Status status;
+    private final String error;
+
+    private BulkResult(long index, String id, Status status, String error) {
+        this.index = index;
+        this.id = id;
+        this.status = status;
+        this.error = error;
+    }
+
+    public static BulkResult saved(long index, String id, boolean created) {
+        return new BulkResult(index, id, created ? Status.CREATED : Status.UPDATED, null);
+    }
+
+    public static BulkResult rejected(long index, String id, String error) {
+        return new BulkResult(index, id, Status.REJECTED, error);
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "BulkResult{" +
+                "index=" + index +
+                ", id='" + id + '\'' +
+                ", status=" + status +
+                ", error='" + error + '\'' +
+                '}';
+    }
+}
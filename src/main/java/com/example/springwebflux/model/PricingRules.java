@@ -0,0 +1,91 @@
+package com.example.springwebflux.model;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Rule set for repricing the catalog, applied to each price in order: change it by
+ * {@code percentChange}, keep it within {@code minPrice} and {@code maxPrice} (either may be
+ * left out), then round it.
+ */
+public class PricingRules {
+
+    public enum Rounding {
+        // To the cent
+        CENTS,
+        // Down to the nearest .99 ending (12.40 becomes 11.99), or to the cent below 1
+        CHARM,
+        // Up to the next whole amount
+        WHOLE
+    }
+
+    private double percentChange;
+    private Double minPrice;
+    private Double maxPrice;
+    private Rounding rounding = Rounding.CENTS;
+
+    public PricingRules() {
+        // Default constructor for deserialization
+    }
+
+    public PricingRules(double percentChange, Double minPrice, Double maxPrice, Rounding rounding) {
+        this.percentChange = percentChange;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.rounding = rounding;
+    }
+
+    public double getPercentChange() {
+        return percentChange;
+    }
+
+    public void setPercentChange(double percentChange) {
+        this.percentChange = percentChange;
+    }
+
+    public Double getMinPrice() {
+        return minPrice;
+    }
+
+    public void setMinPrice(Double minPrice) {
+        this.minPrice = minPrice;
+    }
+
+    public Double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public void setMaxPrice(Double maxPrice) {
+        this.maxPrice = maxPrice;
+    }
+
+    public Rounding getRounding() {
+        return rounding;
+    }
+
+    public void setRounding(Rounding rounding) {
+        this.rounding = rounding;
+    }
+
+    public double apply(double price) {
+        double repriced = price * (1 + percentChange / 100);
+        if (minPrice != null) {
+            repriced = Math.max(repriced, minPrice);
+        }
+        if (maxPrice != null) {
+            repriced = Math.min(repriced, maxPrice);
+        }
+        // Decimal arithmetic, so that 19.99 stays 19.99 rather than 19.989999...
+        BigDecimal amount = BigDecimal.valueOf(repriced);
+        BigDecimal rounded = switch (rounding == null ? Rounding.CENTS : rounding) {
+            case CENTS -> amount.setScale(2, RoundingMode.HALF_EVEN);
+            case CHARM -> {
+                BigDecimal charm = amount.add(BigDecimal.valueOf(0.01)).setScale(0, RoundingMode.FLOOR)
+                        .subtract(BigDecimal.valueOf(0.01));
+                yield charm.signum() > 0 ? charm : amount.setScale(2, RoundingMode.FLOOR);
+            }
+            case WHOLE -> amount.setScale(0, RoundingMode.CEILING);
+        };
+        return rounded.doubleValue();
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.springwebflux.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.Objects;
 
 public class Product {
@@ -7,6 +9,11 @@ public class Product {
     private String name;
     private double price;
 
+    // Assigned by the repository on every write; not part of the product's value, so it is
+    // left out of equals and of the JSON (clients see it as the ETag)
+    @JsonIgnore
+    private long version;
+
     public Product() {
         // Default constructor for deserialization
     }
@@ -41,6 +48,14 @@ public class Product {
         this.price = price;
     }
 
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
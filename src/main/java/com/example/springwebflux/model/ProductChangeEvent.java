@@ -0,0 +1,118 @@
+package com.example.springwebflux.model;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A change to the catalog as seen on the event stream. Only the fields that changed are
+ * carried: everything for a creation, the differing fields for an update, nothing for a delete.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class ProductChangeEvent {
+
+    public enum Type {
+        CREATED,
+        UPDATED,
+        DELETED,
+        // Not a change: tells the subscriber it missed events and must reload the catalog
+        RESYNC
+    }
+
+    private final Type type;
+    private final long version;
+    private final long timestamp;
+    private final String id;
+    private final Map<String, Object> changes;
+
+    @JsonCreator
+    public ProductChangeEvent(@JsonProperty("type") Type type,
+                              @JsonProperty("version") long version,
+                              @JsonProperty("timestamp") long timestamp,
+                              @JsonProperty("id") String id,
+                              @JsonProperty("changes") Map<String, Object> changes) {
+        this.type = type;
+        this.version = version;
+        this.timestamp = timestamp;
+        this.id = id;
+        // Left out of the JSON when empty
+        this.changes = changes == null ? Collections.emptyMap() : changes;
+    }
+
+    public static ProductChangeEvent resync(long version, long timestamp) {
+        return new ProductChangeEvent(Type.RESYNC, version, timestamp, null, Collections.emptyMap());
+    }
+
+    public static Type typeOf(Product previous, Product current) {
+        if (previous == null) {
+            return Type.CREATED;
+        }
+        return current == null ? Type.DELETED : Type.UPDATED;
+    }
+
+    /**
+     * Fields of {@code current} that differ from {@code previous}, keyed by their JSON names.
+     */
+    public static Map<String, Object> changes(Product previous, Product current) {
+        if (current == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Object> changes = new LinkedHashMap<>(4);
+        if (previous == null || !Objects.equals(previous.getName(), current.getName())) {
+            changes.put("name", current.getName());
+        }
+        if (previous == null || Double.compare(previous.getPrice(), current.getPrice()) != 0) {
+            changes.put("price", current.getPrice());
+        }
+        return changes;
+    }
+
+    /**
+     * Combines this event with a newer one for the same product into a single event that
+     * takes the subscriber to the same end state.
+     */
+    public ProductChangeEvent mergeWith(ProductChangeEvent newer) {
+        if (newer.type != Type.UPDATED || type == Type.DELETED) {
+            return newer;
+        }
+        Map<String, Object> merged = new LinkedHashMap<>(changes);
+        merged.putAll(newer.changes);
+        return new ProductChangeEvent(type, newer.version, newer.timestamp, id, merged);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Map<String, Object> getChanges() {
+        return changes;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductChangeEvent{" +
+                "type=" + type +
+                ", version=" + version +
+                ", timestamp=" + timestamp +
+                ", id='" + id + '\'' +
+                ", changes=" + changes +
+                '}';
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.springwebflux.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * One page of a keyset-paginated product listing. The continuation token is an opaque
+ * encoding of the last id on the page; it is null when there are no further pages.
+ */
+public class ProductPage {
+
+    // Response header carrying the token clients pass back as the 'after' parameter
+    public static final String NEXT_PAGE_HEADER = "X-Next-Page-Token";
+
+    private final List<Product> products;
+    private final String nextPageToken;
+
+    public ProductPage(List<Product> products, String nextPageToken) {
+        this.products = products;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<Product> getProducts() {
+        return products;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public boolean hasNextPage() {
+        return nextPageToken != null;
+    }
+
+    public static String encodeToken(String lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(lastId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Listings by price are ordered by price, then id, so their tokens carry both
+    public static String encodeToken(double lastPrice, String lastId) {
+        return encodeToken(lastPrice + "/" + lastId);
+    }
+
+    public static String decodeToken(String token) {
+        try {
+            return new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid page token: " + token);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.springwebflux.model;
+
+/**
+ * Partial update of a product: only the fields that are set are changed.
+ */
+public class ProductPatch {
+    private String name;
+    private Double price;
+
+    public ProductPatch() {
+        // Default constructor for deserialization
+    }
+
+    public ProductPatch(String name, Double price) {
+        this.name = name;
+        this.price = price;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public Double getPrice() {
+        return price;
+    }
+
+    public void setPrice(Double price) {
+        this.price = price;
+    }
+
+    // A new product: stored products are never changed in place
+    public Product applyTo(Product product) {
+        return new Product(product.getId(),
+                name != null ? name : product.getName(),
+                price != null ? price : product.getPrice());
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.springwebflux.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregate view of the catalog: counts and price statistics. Prices that are not
+ * meaningful for an empty catalog are left out.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ProductStats {
+
+    /**
+     * Products priced from {@code from} (inclusive) up to {@code to} (exclusive);
+     * a null bound is open.
+     */
+    public record PriceBucket(Double from, Double to, long count) {
+    }
+
+    private final long count;
+    private final Double averagePrice;
+    private final Double priceStdDev;
+    private final Double minPrice;
+    private final Double maxPrice;
+    private final Map<String, Double> pricePercentiles;
+    private final List<PriceBucket> priceHistogram;
+
+    public ProductStats(long count, Double averagePrice, Double priceStdDev, Double minPrice, Double maxPrice,
+                        Map<String, Double> pricePercentiles, List<PriceBucket> priceHistogram) {
+        this.count = count;
+        this.averagePrice = averagePrice;
+        this.priceStdDev = priceStdDev;
+        this.minPrice = minPrice;
+        this.maxPrice = maxPrice;
+        this.pricePercentiles = pricePercentiles;
+        this.priceHistogram = priceHistogram;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public Double getAveragePrice() {
+        return averagePrice;
+    }
+
+    public Double getPriceStdDev() {
+        return priceStdDev;
+    }
+
+    public Double getMinPrice() {
+        return minPrice;
+    }
+
+    public Double getMaxPrice() {
+        return maxPrice;
+    }
+
+    public Map<String, Double> getPricePercentiles() {
+        return pricePercentiles;
+    }
+
+    public List<PriceBucket> getPriceHistogram() {
+        return priceHistogram;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.springwebflux.model;
+
+/**
+ * Running totals of a catalog reprice, streamed after each batch is written. {@code total}
+ * is the catalog size when the reprice started.
+ */
+public class RepricingProgress {
+
+    private final long total;
+    private final long processed;
+    private final long repriced;
+    private final long skipped;
+
+    public RepricingProgress(long total, long processed, long repriced, long skipped) {
+        this.total = total;
+        this.processed = processed;
+        this.repriced = repriced;
+        this.skipped = skipped;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    // Products the rules were applied to so far
+    public long getProcessed() {
+        return processed;
+    }
+
+    // Products whose new price was written
+    public long getRepriced() {
+        return repriced;
+    }
+
+    // Products left alone because they changed or were deleted while being repriced
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public RepricingProgress plus(long processed, long repriced, long skipped) {
+        return new RepricingProgress(total, this.processed + processed, this.repriced + repriced,
+                this.skipped + skipped);
+    }
+
+    @Override
+    public String toString() {
+        return "RepricingProgress{" +
+                "total=" + total +
+                ", processed=" + processed +
+                ", repriced=" + repriced +
+                ", skipped=" + skipped +
+                '}';
+    }
+}
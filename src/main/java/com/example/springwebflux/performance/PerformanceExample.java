@@ -15,12 +15,15 @@ import java.util.concurrent.TimeUnit;
  */
 public class PerformanceExample {
 
-    // Example showing how to handle CPU-intensive operations
+    // Example showing how to handle CPU-intensive operations: spread them over one rail per core
+    // on the parallel scheduler. boundedElastic is for blocking I/O and would oversubscribe the cores
+    // (see ProductService.repriceAll for a real use)
     public static Flux<Integer> processCpuIntensiveTask(Flux<Integer> input) {
         return input
-                .publishOn(Schedulers.boundedElastic()) // Use separate thread pool for CPU-intensive work
+                .parallel(Schedulers.DEFAULT_POOL_SIZE)
+                .runOn(Schedulers.parallel(), 1) // Each rail takes the next item only when it is free
                 .map(PerformanceExample::cpuIntensiveOperation)
-                .publishOn(Schedulers.parallel()); // Switch back to parallel scheduler
+                .sequential();
     }
 
     private static Integer cpuIntensiveOperation(Integer input) {
@@ -0,0 +1,568 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * {@link ProductJournal} kept as numbered log segments plus snapshots in one directory.
+ * <p>
+ * Writers only encode their record into an in-memory batch; a single writer thread takes
+ * the whole batch, writes it to the current segment and forces it to disk with one fsync,
+ * then completes the future shared by every write in it. When the batch is cut is set by the
+ * {@link SyncPolicy}. Writes made while an fsync is in progress join the next batch, so the
+ * fsync rate stays bounded by the disk whatever the write rate.
+ * <p>
+ * Once a segment grows past the snapshot threshold the writer rolls over to a new segment N
+ * and a background thread writes {@code products-N.snapshot} from the live map, then deletes
+ * everything older. The roll-over waits for writes in flight, so every write in older
+ * segments is in the map the snapshot is read from. Snapshot N is taken while writes
+ * continue, so it may already contain some of the writes in segment N; replaying those again
+ * is harmless because every record carries the full product (or a delete).
+ * <p>
+ * Records are {@code [length][crc32c][payload]}; recovery maps each file and stops at the
+ * first torn or corrupt record, which can only be at the end of the last segment.
+ */
+public class FileProductJournal implements ProductJournal {
+
+    public enum SyncPolicy {
+        // Cut and fsync a batch as soon as the previous one is durable
+        ALWAYS,
+        // Cut a batch once its oldest write is sync-interval old
+        INTERVAL,
+        // Cut a batch once it holds sync-bytes, or its oldest write is sync-interval old
+        BYTES
+    }
+
+    private static final String PREFIX = "products-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final byte SAVE = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = 8;
+    // Largest region mapped at once while reading; files bigger than this are mapped in windows
+    private static final int MAX_WINDOW = 1 << 30;
+    // Windows cannot open a directory to force it, and has no need to
+    private static final boolean SYNC_DIRECTORY = !System.getProperty("os.name").startsWith("Windows");
+
+    private final Path directory;
+    private final long snapshotThreshold;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalNanos;
+    private final long syncBytes;
+    private final Thread writer;
+    private final ExecutorService snapshotter;
+    private final AtomicBoolean snapshotting = new AtomicBoolean();
+
+    // Shared by writes, taken exclusively by the writer to roll over to a new segment
+    private final ReadWriteLock rollover = new ReentrantReadWriteLock();
+
+    // Guards the batch being filled and the writer's wake-up conditions
+    private final Object appendLock = new Object();
+    private ByteBuffer pending = ByteBuffer.allocateDirect(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocateDirect(64 * 1024);
+    private CompletableFuture<Void> batch = new CompletableFuture<>();
+    private long batchStart;
+    private CompletableFuture<Long> rolloverRequest;
+    private boolean closed;
+    // Set by the writer once it has drained and exited
+    private boolean stopped;
+    private IOException failure;
+
+    // Owned by the writer thread once started
+    private FileChannel log;
+    private long segment;
+    private long logSize;
+
+    private Supplier<? extends Iterable<Product>> state;
+
+    public FileProductJournal(Path directory, long snapshotThreshold,
+                              SyncPolicy syncPolicy, Duration syncInterval, long syncBytes) {
+        this.directory = directory;
+        this.snapshotThreshold = snapshotThreshold;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = syncInterval.toNanos();
+        this.syncBytes = syncBytes;
+        this.writer = new Thread(this::writeLoop, "product-journal");
+        this.writer.setDaemon(true);
+        this.snapshotter = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "product-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean replay(Consumer<Product> saved, Consumer<String> deleted) {
+        try {
+            Files.createDirectories(directory);
+            for (Path temp : list(TEMP_SUFFIX)) {
+                Files.delete(temp);
+            }
+            List<Path> snapshots = list(SNAPSHOT_SUFFIX);
+            long first = 0;
+            boolean found = false;
+            if (!snapshots.isEmpty()) {
+                Path snapshot = snapshots.get(snapshots.size() - 1);
+                first = segmentOf(snapshot);
+                long end = read(snapshot, saved, deleted);
+                if (end != Files.size(snapshot)) {
+                    throw new IOException("Corrupt snapshot " + snapshot);
+                }
+                found = true;
+            }
+
+            segment = first;
+            long validEnd = 0;
+            List<Path> logs = list(LOG_SUFFIX);
+            for (int i = 0; i < logs.size(); i++) {
+                Path file = logs.get(i);
+                if (segmentOf(file) < first) {
+                    continue;
+                }
+                segment = segmentOf(file);
+                validEnd = read(file, saved, deleted);
+                found |= validEnd > 0;
+                if (validEnd != Files.size(file) && i < logs.size() - 1) {
+                    throw new IOException("Corrupt product log " + file);
+                }
+            }
+
+            log = FileChannel.open(segmentPath(segment, LOG_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            // Drops a record torn by a crash mid-write
+            log.truncate(validEnd);
+            logSize = validEnd;
+            syncDirectory();
+            return found;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not recover products from " + directory, e);
+        }
+    }
+
+    @Override
+    public void start(Supplier<? extends Iterable<Product>> state) {
+        this.state = state;
+        writer.start();
+    }
+
+    @Override
+    public <T> T write(Supplier<T> write) {
+        rollover.readLock().lock();
+        try {
+            return write.get();
+        } finally {
+            rollover.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> appendSave(Product product) {
+        return append(SAVE, product.getId(), product.getName(), product.getPrice());
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDelete(String id) {
+        return append(DELETE, id, null, 0);
+    }
+
+    private CompletableFuture<Void> append(byte type, String id, String name, double price) {
+        synchronized (appendLock) {
+            if (failure != null) {
+                throw new UncheckedIOException("Product journal is unavailable", failure);
+            }
+            if (closed) {
+                throw new IllegalStateException("Product journal is closed");
+            }
+            boolean first = pending.position() == 0;
+            if (first) {
+                batchStart = System.nanoTime();
+            }
+            pending = encode(pending, type, id, name, price);
+            // The writer sleeps until the batch has something in it, then until it is due;
+            // only the byte policy can make it due early
+            if (first || (syncPolicy == SyncPolicy.BYTES && pending.position() >= syncBytes)) {
+                appendLock.notify();
+            }
+            return batch;
+        }
+    }
+
+    /**
+     * Rolls over to a new segment, writes the snapshot it starts from and deletes the
+     * segments and snapshots it supersedes. Completes once the snapshot is on disk.
+     */
+    CompletableFuture<Void> snapshot() {
+        if (!snapshotting.compareAndSet(false, true)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Long> rolled = new CompletableFuture<>();
+        synchronized (appendLock) {
+            if (stopped || failure != null) {
+                // No writer is left to roll over
+                snapshotting.set(false);
+                return CompletableFuture.completedFuture(null);
+            }
+            rolloverRequest = rolled;
+            appendLock.notify();
+        }
+        return rolled.thenAcceptAsync(next -> {
+            try {
+                writeSnapshot(next);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not write product snapshot", e);
+            } finally {
+                snapshotting.set(false);
+            }
+        }, snapshotter);
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                // A roll-over must wait for writes in flight, so the write lock is taken
+                // before looking at the batch
+                boolean roll;
+                synchronized (appendLock) {
+                    roll = rolloverRequest != null;
+                }
+                if (roll) {
+                    rollover.writeLock().lock();
+                }
+                ByteBuffer buffer;
+                CompletableFuture<Void> done;
+                CompletableFuture<Long> rolled;
+                try {
+                    synchronized (appendLock) {
+                        long wait;
+                        while ((wait = nanosUntilDue(roll)) > 0) {
+                            if (wait == Long.MAX_VALUE) {
+                                appendLock.wait();
+                            } else {
+                                TimeUnit.NANOSECONDS.timedWait(appendLock, wait);
+                            }
+                        }
+                        if (wait < 0) {
+                            // Closed with nothing left, or a roll-over came in without the lock
+                            if (closed && pending.position() == 0 && rolloverRequest == null) {
+                                stopped = true;
+                                return;
+                            }
+                            continue;
+                        }
+                        buffer = pending;
+                        pending = spare;
+                        spare = buffer;
+                        done = batch;
+                        batch = new CompletableFuture<>();
+                        rolled = roll ? rolloverRequest : null;
+                        rolloverRequest = null;
+                    }
+                } finally {
+                    if (roll) {
+                        rollover.writeLock().unlock();
+                    }
+                }
+
+                flush(buffer, done);
+                if (rolled != null) {
+                    rolled.complete(rollOver());
+                } else if (logSize >= snapshotThreshold) {
+                    snapshot();
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("Product journal writer was interrupted"));
+        }
+    }
+
+    /**
+     * How long the writer should keep waiting: 0 when a batch is due now, -1 when it should
+     * go back round its loop, {@link Long#MAX_VALUE} when there is nothing to wait for.
+     */
+    private long nanosUntilDue(boolean roll) {
+        if (rolloverRequest != null) {
+            return roll ? 0 : -1;
+        }
+        int size = pending.position();
+        if (size == 0) {
+            return closed ? -1 : Long.MAX_VALUE;
+        }
+        if (closed || syncPolicy == SyncPolicy.ALWAYS
+                || (syncPolicy == SyncPolicy.BYTES && size >= syncBytes)) {
+            return 0;
+        }
+        return Math.max(0, batchStart + syncIntervalNanos - System.nanoTime());
+    }
+
+    private void flush(ByteBuffer buffer, CompletableFuture<Void> done) throws IOException {
+        buffer.flip();
+        if (buffer.hasRemaining()) {
+            try {
+                while (buffer.hasRemaining()) {
+                    logSize += log.write(buffer, logSize);
+                }
+                log.force(false);
+            } catch (IOException e) {
+                done.completeExceptionally(e);
+                throw e;
+            }
+            // Callers carry on from here, so they are handed back to a shared pool rather than
+            // holding up the next fsync
+            Schedulers.parallel().schedule(() -> done.complete(null));
+        }
+        buffer.clear();
+    }
+
+    private long rollOver() throws IOException {
+        log.close();
+        segment++;
+        log = FileChannel.open(segmentPath(segment, LOG_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        logSize = 0;
+        // Before any write to the new segment is acknowledged, or a crash could lose the file
+        syncDirectory();
+        return segment;
+    }
+
+    private void fail(IOException e) {
+        CompletableFuture<Void> lost;
+        CompletableFuture<Long> rolled;
+        synchronized (appendLock) {
+            failure = e;
+            lost = batch;
+            rolled = rolloverRequest;
+            rolloverRequest = null;
+        }
+        // Writes already applied in memory are reported as failed; the journal refuses any
+        // more, so the disk holds the last state that was acknowledged
+        lost.completeExceptionally(e);
+        if (rolled != null) {
+            rolled.completeExceptionally(e);
+        }
+    }
+
+    private void writeSnapshot(long next) throws IOException {
+        Path target = segmentPath(next, SNAPSHOT_SUFFIX);
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            for (Product product : state.get()) {
+                if (buffer.remaining() < 64 * 1024) {
+                    drain(buffer, channel);
+                }
+                buffer = encode(buffer, SAVE, product.getId(), product.getName(), product.getPrice());
+            }
+            drain(buffer, channel);
+            channel.force(true);
+        }
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        // The rename must be durable before the files it supersedes are deleted
+        syncDirectory();
+
+        for (Path file : list(SNAPSHOT_SUFFIX)) {
+            if (segmentOf(file) < next) {
+                Files.delete(file);
+            }
+        }
+        for (Path file : list(LOG_SUFFIX)) {
+            if (segmentOf(file) < next) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Makes every write so far durable and stops, then waits for a snapshot in progress. The
+     * writer is drained first, as a roll-over it makes on the way hands its snapshot to the
+     * snapshot thread, which must still be taking work.
+     */
+    @Override
+    public void close() {
+        try {
+            synchronized (appendLock) {
+                closed = true;
+                appendLock.notify();
+            }
+            if (writer.isAlive()) {
+                writer.join();
+            }
+            snapshotter.shutdown();
+            snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+            log.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not close product journal", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Makes the files created or renamed in the directory durable, not only their contents
+    private void syncDirectory() throws IOException {
+        if (SYNC_DIRECTORY) {
+            try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Appends one record to {@code buffer}, returning a larger copy if it does not fit.
+     */
+    private static ByteBuffer encode(ByteBuffer buffer, byte type, String id, String name, double price) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] nameBytes = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + idBytes.length;
+        if (type == SAVE) {
+            length += 4 + (nameBytes == null ? 0 : nameBytes.length) + 8;
+        }
+        if (buffer.remaining() < HEADER_SIZE + length) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + HEADER_SIZE + length));
+            buffer.flip();
+            buffer = larger.put(buffer);
+        }
+
+        int start = buffer.position();
+        buffer.putInt(length).putInt(0).put(type);
+        putString(buffer, idBytes);
+        if (type == SAVE) {
+            putString(buffer, nameBytes);
+            buffer.putDouble(price);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(start + HEADER_SIZE, length));
+        buffer.putInt(start + 4, (int) crc.getValue());
+        return buffer;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Replays the records of one file and returns the offset just past the last intact one.
+     */
+    private static long read(Path file, Consumer<Product> saved, Consumer<String> deleted) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            long windowStart = 0;
+            ByteBuffer window = null;
+            CRC32C crc = new CRC32C();
+            while (size - position >= HEADER_SIZE) {
+                if (window == null || position + HEADER_SIZE > windowStart + window.limit()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_WINDOW));
+                }
+                int offset = (int) (position - windowStart);
+                int length = window.getInt(offset);
+                int checksum = window.getInt(offset + 4);
+                if (length <= 0 || length > size - position - HEADER_SIZE) {
+                    break;
+                }
+                if (offset + HEADER_SIZE + length > window.limit()) {
+                    windowStart = position;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, MAX_WINDOW));
+                    offset = 0;
+                }
+                ByteBuffer payload = window.slice(offset + HEADER_SIZE, length);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                payload.rewind();
+                apply(payload, saved, deleted);
+                position += HEADER_SIZE + length;
+            }
+            return position;
+        }
+    }
+
+    private static void apply(ByteBuffer payload, Consumer<Product> saved, Consumer<String> deleted) {
+        byte type = payload.get();
+        String id = getString(payload);
+        if (type == SAVE) {
+            String name = getString(payload);
+            saved.accept(new Product(id, name, payload.getDouble()));
+        } else {
+            deleted.accept(id);
+        }
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Files with the given suffix, oldest segment first
+    private List<Path> list(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> matching = new ArrayList<>(files
+                    .filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.startsWith(PREFIX) && name.endsWith(suffix);
+                    })
+                    .toList());
+            if (!TEMP_SUFFIX.equals(suffix)) {
+                matching.sort((a, b) -> Long.compare(segmentOf(a), segmentOf(b)));
+            }
+            return matching;
+        }
+    }
+
+    private Path segmentPath(long segment, String suffix) {
+        return directory.resolve(PREFIX + segment + suffix);
+    }
+
+    private static long segmentOf(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.indexOf('.')));
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Default {@link ProductStore}: products on the heap in a {@link ConcurrentHashMap}, with
+ * skip-list indexes so every ordered read is O(log n) to start and always up to date.
+ */
+public class HeapProductStore implements ProductStore {
+
+    private final ConcurrentMap<String, Product> products = new ConcurrentHashMap<>();
+
+    // Secondary indexes, ordered by id (for keyset pagination), by price and by name.
+    // Only ever modified inside products.compute(...) so they stay in step with the map, which
+    // means stored products must not be mutated in place: save a new instance instead.
+    private final SortedIndex<String> idIndex = new SortedIndex<>(Product::getId);
+    private final SortedIndex<PriceKey> priceIndex = new SortedIndex<>(PriceKey::of);
+    private final SortedIndex<NameKey> nameIndex = new SortedIndex<>(NameKey::of);
+
+    @Override
+    public Product get(String id) {
+        return products.get(id);
+    }
+
+    @Override
+    public Product put(Product product, Consumer<Product> beforeWrite) {
+        Product[] previous = new Product[1];
+        products.compute(product.getId(), (id, existing) -> {
+            beforeWrite.accept(existing);
+            previous[0] = existing;
+            idIndex.update(existing, product);
+            priceIndex.update(existing, product);
+            nameIndex.update(existing, product);
+            return product;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public Product remove(String id, Consumer<Product> beforeWrite) {
+        Product[] removed = new Product[1];
+        products.computeIfPresent(id, (key, existing) -> {
+            beforeWrite.accept(existing);
+            removed[0] = existing;
+            idIndex.remove(existing);
+            priceIndex.remove(existing);
+            nameIndex.remove(existing);
+            return null;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public int size() {
+        return products.size();
+    }
+
+    @Override
+    public Iterable<Product> all() {
+        return Collections.unmodifiableCollection(products.values());
+    }
+
+    @Override
+    public Iterable<Product> byId(String afterId) {
+        return afterId == null
+                ? idIndex.entries().values()
+                : idIndex.entries().tailMap(afterId, false).values();
+    }
+
+    @Override
+    public Iterable<Product> byName() {
+        return nameIndex.entries().values();
+    }
+
+    @Override
+    public Iterable<Product> byPrice(double fromInclusive, String afterId, double toExclusive) {
+        return priceIndex.entries().subMap(
+                afterId == null ? PriceKey.lowest(fromInclusive) : new PriceKey(fromInclusive, afterId),
+                afterId == null,
+                PriceKey.lowest(toExclusive), false).values();
+    }
+
+    private record PriceKey(double price, String id) implements Comparable<PriceKey> {
+
+        static PriceKey of(Product product) {
+            return new PriceKey(product.getPrice(), product.getId());
+        }
+
+        // Sorts before every real product at the given price
+        static PriceKey lowest(double price) {
+            return new PriceKey(price, "");
+        }
+
+        @Override
+        public int compareTo(PriceKey other) {
+            int byPrice = Double.compare(price, other.price);
+            return byPrice != 0 ? byPrice : id.compareTo(other.id);
+        }
+    }
+
+    private record NameKey(String name, String id) implements Comparable<NameKey> {
+
+        private static final Comparator<NameKey> ORDER = Comparator
+                .comparing(NameKey::name, Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(NameKey::id);
+
+        static NameKey of(Product product) {
+            return new NameKey(product.getName(), product.getId());
+        }
+
+        @Override
+        public int compareTo(NameKey other) {
+            return ORDER.compare(this, other);
+        }
+    }
+}
@@ -0,0 +1,965 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * {@link ProductStore} that keeps the catalog outside the Java heap, for catalogs large
+ * enough that millions of {@code Product} and {@code String} objects would dominate heap
+ * size and GC pauses.
+ * <p>
+ * Products live in columns of direct buffers indexed by slot: the price, the version, the
+ * hash of the id and the offset of the product's record in an arena of direct chunks. A
+ * record holds the UTF-8 id and name and never changes once written; renaming a product
+ * appends a new record. Ids are mapped to slots by an open-addressing table, also off-heap.
+ * {@code Product} objects are only created when read.
+ * <p>
+ * Writes are serialized by a {@link StampedLock}. Reads are optimistic and are retried under
+ * the read lock only if a write overlapped them, so they never contend with each other.
+ * <p>
+ * Growing the table and compacting the arena once most of it is garbage take time in
+ * proportion to the catalog, so neither is done by a write: a background thread builds the
+ * new table or arena a range of slots at a time, under the read lock, so that writers are
+ * held up by no more than one range, while writes to slots it has already passed are made to
+ * both. It is then swapped in under the write lock. Only should the table fill up before its
+ * replacement is ready is it grown by the write that finds it full.
+ * <p>
+ * Ordered reads walk a sorted copy of the catalog instead of live indexes. Once there have
+ * been writes, the copy is rebuilt on a background thread one index-refresh interval after
+ * the previous rebuild; ordered reads never wait for it, so they can miss products added
+ * within about that interval. The copy and its orders are kept off-heap too, and are taken a
+ * range of slots at a time so that writers are held up by no more than one range. Every
+ * product an ordered read returns is read fresh, and products deleted since the copy was
+ * taken are skipped. Ids and names are ordered by their UTF-8 bytes, i.e. by code point.
+ */
+public class OffHeapProductStore implements ProductStore {
+
+    private static final int EMPTY = 0;
+    private static final int DELETED = -1;
+    private static final long FREE = -1L;
+    private static final int NO_NAME = -1;
+    private static final int MIN_CHUNK = 64 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024 * 1024;
+    // Slots copied per optimistic read, or per hold of the read lock by a background build
+    private static final int COPY_RANGE = 4096;
+
+    private final StampedLock lock = new StampedLock();
+    private final long indexRefreshNanos;
+    private final int copyRange;
+
+    // Columns, indexed by slot; FREE in records marks an unused slot
+    private ByteBuffer prices;
+    private ByteBuffer versions;
+    private ByteBuffer hashes;
+    private ByteBuffer records;
+    private int capacity;
+    private int highWater;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+    private int size;
+
+    private Table table;
+    private Arena arena = new Arena();
+    // Offsets taken before a compaction index a different arena
+    private long compactions;
+
+    // Being built in the background to replace table and arena, with the record offsets of
+    // the slots copied into nextArena so far; null when there is no such build
+    private Table nextTable;
+    private Arena nextArena;
+    private ByteBuffer nextRecords;
+    private final Object maintenanceLock = new Object();
+    // Set while a background build is scheduled or running
+    private final AtomicBoolean maintaining = new AtomicBoolean();
+    // Run by a build between its ranges, outside the lock; for tests to write meanwhile
+    Runnable betweenRanges = () -> { };
+
+    private volatile long modifications;
+    private final Object refreshLock = new Object();
+    // Set while a rebuild of the sorted copy is scheduled or running
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Sorted sorted;
+
+    public OffHeapProductStore(int initialCapacity, Duration indexRefresh) {
+        this(initialCapacity, indexRefresh, COPY_RANGE);
+    }
+
+    // With a copy range of a slot or two, writes interleave with copies and builds in tests
+    OffHeapProductStore(int initialCapacity, Duration indexRefresh, int copyRange) {
+        this.indexRefreshNanos = indexRefresh.toNanos();
+        this.copyRange = copyRange;
+        this.capacity = Math.max(16, initialCapacity);
+        this.prices = ByteBuffer.allocateDirect(capacity * Double.BYTES);
+        this.versions = ByteBuffer.allocateDirect(capacity * Long.BYTES);
+        this.hashes = ByteBuffer.allocateDirect(capacity * Integer.BYTES);
+        this.records = ByteBuffer.allocateDirect(capacity * Long.BYTES);
+        this.table = new Table(tableSizeFor(capacity));
+        // Empty, and old enough that the first write has it rebuilt straight away
+        this.sorted = new Sorted(0, System.nanoTime() - indexRefreshNanos, arena.chunks, ByteBuffer.allocateDirect(0),
+                ByteBuffer.allocateDirect(0), ByteBuffer.allocateDirect(0), 0);
+        sorted.sort();
+    }
+
+    @Override
+    public Product get(String id) {
+        byte[] key = utf8(id);
+        int hash = hash(id);
+        return read(() -> {
+            int slot = table.find(key, hash);
+            return slot < 0 ? null : materialize(slot);
+        });
+    }
+
+    @Override
+    public Product put(Product product, Consumer<Product> beforeWrite) {
+        byte[] id = utf8(product.getId());
+        byte[] name = product.getName() == null ? null : utf8(product.getName());
+        int hash = hash(product.getId());
+        long stamp = lock.writeLock();
+        try {
+            int slot = table.find(id, hash);
+            Product previous = slot < 0 ? null : materialize(slot);
+            beforeWrite.accept(previous);
+
+            if (slot < 0) {
+                if (table.full()) {
+                    // The background build fell behind
+                    nextTable = null;
+                    table = rebuild(tableSizeFor(size + 1));
+                }
+                slot = allocateSlot();
+                hashes.putInt(slot << 2, hash);
+                writeRecord(slot, id, name, true);
+                table.insert(slot, hash);
+                if (nextTable != null && slot < nextTable.progress) {
+                    addToNextTable(slot, hash);
+                }
+                size++;
+            } else if (!Objects.equals(previous.getName(), product.getName())) {
+                writeRecord(slot, id, name, false);
+            }
+            prices.putDouble(slot << 3, product.getPrice());
+            versions.putLong(slot << 3, product.getVersion());
+            modifications++;
+            maintainLater();
+            refreshLater();
+            return previous;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public Product remove(String id, Consumer<Product> beforeWrite) {
+        byte[] key = utf8(id);
+        int hash = hash(id);
+        long stamp = lock.writeLock();
+        try {
+            int slot = table.find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            Product removed = materialize(slot);
+            beforeWrite.accept(removed);
+
+            table.delete(slot, hash);
+            if (nextTable != null && slot < nextTable.progress) {
+                nextTable.delete(slot, hash);
+            }
+            freeRecord(slot);
+            if (freeCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+            }
+            freeSlots[freeCount++] = slot;
+            size--;
+            modifications++;
+            maintainLater();
+            refreshLater();
+            return removed;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public int size() {
+        return read(() -> size);
+    }
+
+    @Override
+    public Iterable<Product> all() {
+        return () -> new Iterator<>() {
+            private int slot;
+            private Product next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    int current = slot;
+                    if (current >= read(() -> highWater)) {
+                        return false;
+                    }
+                    slot++;
+                    next = read(() -> materialize(current));
+                }
+                return true;
+            }
+
+            @Override
+            public Product next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Product product = next;
+                next = null;
+                return product;
+            }
+        };
+    }
+
+    // The writes the sorted copy was taken after
+    @Override
+    public long orderedVersion() {
+        return sorted.version;
+    }
+
+    @Override
+    public Iterable<Product> byId(String afterId) {
+        Sorted copy = sorted;
+        int from = 0;
+        if (afterId != null) {
+            byte[] key = utf8(afterId);
+            // First entry whose id sorts after afterId
+            from = search(copy.byId, copy.count, entry -> copy.compareId(entry, key) <= 0);
+        }
+        return copy.walk(copy.byId, from, copy.count, false, 0, 0);
+    }
+
+    @Override
+    public Iterable<Product> byName() {
+        Sorted copy = sorted;
+        return copy.walk(copy.byName, 0, copy.count, false, 0, 0);
+    }
+
+    @Override
+    public Iterable<Product> byPrice(double fromInclusive, String afterId, double toExclusive) {
+        Sorted copy = sorted;
+        byte[] key = afterId == null ? null : utf8(afterId);
+        int from = search(copy.byPrice, copy.count, entry -> {
+            int byPrice = Double.compare(copy.price(entry), fromInclusive);
+            return byPrice < 0 || (byPrice == 0 && key != null && copy.compareId(entry, key) <= 0);
+        });
+        int to = search(copy.byPrice, copy.count, entry -> Double.compare(copy.price(entry), toExclusive) < 0);
+        return copy.walk(copy.byPrice, from, Math.max(from, to), true, fromInclusive, toExclusive);
+    }
+
+    /**
+     * Runs {@code reader} without locking and returns its result if no write overlapped it;
+     * otherwise, or if it tripped over a half-made write, runs it again under the read lock.
+     */
+    private <T> T read(Supplier<T> reader) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T value = reader.get();
+                if (lock.validate(stamp)) {
+                    return value;
+                }
+            } catch (RuntimeException torn) {
+                // Retried under the lock below, where a genuine failure is rethrown
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Product materialize(int slot) {
+        long offset = records.getLong(slot << 3);
+        if (offset == FREE) {
+            return null;
+        }
+        ByteBuffer chunk = arena.chunks[(int) (offset >>> 32)];
+        int position = (int) offset;
+        String id = string(chunk, position);
+        String name = string(chunk, position + Integer.BYTES + chunk.getInt(position));
+        Product product = new Product(id, name, prices.getDouble(slot << 3));
+        product.setVersion(versions.getLong(slot << 3));
+        return product;
+    }
+
+    // A table of the live slots, built on the calling thread
+    private Table rebuild(int tableSize) {
+        Table rebuilt = new Table(tableSize);
+        for (int slot = 0; slot < highWater; slot++) {
+            if (records.getLong(slot << 3) != FREE) {
+                rebuilt.insert(slot, hashes.getInt(slot << 2));
+            }
+        }
+        return rebuilt;
+    }
+
+    // Must hold the write lock, or the read lock from the background build
+    private void addToNextTable(int slot, int hash) {
+        if (nextTable.full()) {
+            // Filled up by writes while it was being built: abandoned, to be built again larger
+            nextTable = null;
+            return;
+        }
+        nextTable.insert(slot, hash);
+    }
+
+    private int allocateSlot() {
+        if (freeCount > 0) {
+            return freeSlots[--freeCount];
+        }
+        if (highWater == capacity) {
+            capacity *= 2;
+            prices = grow(prices, capacity * Double.BYTES);
+            versions = grow(versions, capacity * Long.BYTES);
+            hashes = grow(hashes, capacity * Integer.BYTES);
+            records = grow(records, capacity * Long.BYTES);
+            if (nextRecords != null) {
+                nextRecords = grow(nextRecords, capacity * Long.BYTES);
+            }
+        }
+        return highWater++;
+    }
+
+    // Points the slot at a new record, also in the arena being compacted into once the
+    // compaction has passed the slot
+    private void writeRecord(int slot, byte[] id, byte[] name, boolean allocated) {
+        long old = records.getLong(slot << 3);
+        records.putLong(slot << 3, arena.append(id, name));
+        if (!allocated) {
+            arena.release(old);
+        }
+        if (nextArena != null && slot < nextArena.progress) {
+            long next = nextRecords.getLong(slot << 3);
+            nextRecords.putLong(slot << 3, nextArena.append(id, name));
+            if (next != FREE) {
+                nextArena.release(next);
+            }
+        }
+    }
+
+    private void freeRecord(int slot) {
+        arena.release(records.getLong(slot << 3));
+        records.putLong(slot << 3, FREE);
+        if (nextArena != null && slot < nextArena.progress) {
+            long next = nextRecords.getLong(slot << 3);
+            if (next != FREE) {
+                nextArena.release(next);
+            }
+            nextRecords.putLong(slot << 3, FREE);
+        }
+    }
+
+    // Has the table grown or the arena compacted in the background once either is due;
+    // called by every write
+    private void maintainLater() {
+        if ((table.crowded() || arena.mostlyGarbage()) && maintaining.compareAndSet(false, true)) {
+            Schedulers.boundedElastic().schedule(() -> {
+                try {
+                    maintain();
+                } finally {
+                    maintaining.set(false);
+                }
+            });
+        }
+    }
+
+    // Grows the table and compacts the arena, whichever is due, on the calling thread
+    void maintain() {
+        synchronized (maintenanceLock) {
+            try {
+                if (read(() -> table.crowded())) {
+                    growTable();
+                }
+                if (read(() -> arena.mostlyGarbage())) {
+                    compactArena();
+                }
+            } catch (RuntimeException | Error failure) {
+                // Out of memory, say: abandoned, so that writes stop making themselves twice
+                long stamp = lock.writeLock();
+                try {
+                    nextTable = null;
+                    nextArena = null;
+                    nextRecords = null;
+                } finally {
+                    lock.unlockWrite(stamp);
+                }
+                throw failure;
+            }
+        }
+    }
+
+    private void growTable() {
+        Table next = new Table(tableSizeFor(read(() -> size) * 2));
+        // The read lock keeps writers out while the build's own fields change; readers never
+        // look at them
+        long stamp = lock.readLock();
+        try {
+            nextTable = next;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        boolean copied = false;
+        while (!copied) {
+            stamp = lock.readLock();
+            try {
+                copied = addSlots(next, Math.min(next.progress + copyRange, highWater));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            betweenRanges.run();
+        }
+        stamp = lock.writeLock();
+        try {
+            // Slots allocated since the last range are the only ones left
+            if (addSlots(next, highWater) && nextTable == next) {
+                table = next;
+                nextTable = null;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Adds the live slots from the progress mark up to to, and tells whether every slot has
+    // been added, or the build was abandoned
+    private boolean addSlots(Table next, int to) {
+        for (int slot = next.progress; slot < to && nextTable == next; slot++) {
+            if (records.getLong(slot << 3) != FREE) {
+                addToNextTable(slot, hashes.getInt(slot << 2));
+            }
+        }
+        next.progress = to;
+        return nextTable != next || to == highWater;
+    }
+
+    /**
+     * Copies every live record into a fresh arena. Old chunks are never written again, so
+     * readers and sorted copies still holding them keep seeing valid records.
+     */
+    private void compactArena() {
+        Arena next = new Arena();
+        while (nextArena != next) {
+            int slots = read(() -> capacity);
+            ByteBuffer offsets = ByteBuffer.allocateDirect(slots * Long.BYTES);
+            long stamp = lock.readLock();
+            try {
+                // Writers grow it along with the columns from here on
+                if (capacity == slots) {
+                    nextArena = next;
+                    nextRecords = offsets;
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        boolean copied = false;
+        while (!copied) {
+            long stamp = lock.readLock();
+            try {
+                copied = copyRecords(next, Math.min(next.progress + copyRange, highWater));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            betweenRanges.run();
+        }
+        long stamp = lock.writeLock();
+        try {
+            copyRecords(next, highWater);
+            records = nextRecords;
+            arena = next;
+            nextArena = null;
+            nextRecords = null;
+            compactions++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    // Copies the records of the slots from the progress mark up to to, and tells whether
+    // every slot has been copied
+    private boolean copyRecords(Arena next, int to) {
+        for (int slot = next.progress; slot < to; slot++) {
+            long offset = records.getLong(slot << 3);
+            if (offset == FREE) {
+                nextRecords.putLong(slot << 3, FREE);
+                continue;
+            }
+            ByteBuffer chunk = arena.chunks[(int) (offset >>> 32)];
+            int position = (int) offset;
+            byte[] id = bytes(chunk, position);
+            byte[] name = bytes(chunk, position + Integer.BYTES + id.length);
+            nextRecords.putLong(slot << 3, next.append(id, name));
+        }
+        next.progress = to;
+        return to == highWater;
+    }
+
+    // Has the sorted copy rebuilt in the background, an index-refresh interval after the last
+    // rebuild; called by every write
+    private void refreshLater() {
+        if (refreshing.compareAndSet(false, true)) {
+            long delay = Math.max(0, sorted.takenAt + indexRefreshNanos - System.nanoTime());
+            Schedulers.boundedElastic().schedule(() -> {
+                try {
+                    refresh();
+                } finally {
+                    refreshing.set(false);
+                }
+                if (sorted.version != modifications) {
+                    // Written to while it was being rebuilt
+                    refreshLater();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Rebuilds the sorted copy on the calling thread
+    void refresh() {
+        synchronized (refreshLock) {
+            Sorted copy = copy();
+            copy.sort();
+            sorted = copy;
+        }
+    }
+
+    /**
+     * Copies what the sorted orders need into direct buffers, a range of slots per read so
+     * that a writer waits for no more than one range. Starts over if the arena is compacted
+     * meanwhile, as the offsets already copied would then point into the wrong chunks.
+     */
+    private Sorted copy() {
+        while (true) {
+            long version = modifications;
+            long takenAt = System.nanoTime();
+            long[] started = read(() -> new long[]{highWater, compactions});
+            int limit = (int) started[0];
+            ByteBuffer slots = ByteBuffer.allocateDirect(limit * Integer.BYTES);
+            ByteBuffer offsets = ByteBuffer.allocateDirect(limit * Long.BYTES);
+            ByteBuffer copiedPrices = ByteBuffer.allocateDirect(limit * Double.BYTES);
+            int count = 0;
+            for (int from = 0; from < limit && count >= 0; from += copyRange) {
+                int start = from;
+                int copied = count;
+                count = read(() -> copyRange(start, Math.min(start + copyRange, limit), started[1],
+                        slots, offsets, copiedPrices, copied));
+            }
+            ByteBuffer[] copiedChunks = read(() -> compactions == started[1] ? arena.chunks : null);
+            if (count >= 0 && copiedChunks != null) {
+                // Chunks are only ever added between compactions, so the latest array covers
+                // every offset copied
+                return new Sorted(version, takenAt, copiedChunks, slots, offsets, copiedPrices, count);
+            }
+        }
+    }
+
+    // Copies the live slots in [from, to) after the first count entries and returns the new
+    // count, or -1 if the arena has been compacted since the copy began
+    private int copyRange(int from, int to, long compacted,
+                          ByteBuffer slots, ByteBuffer offsets, ByteBuffer copiedPrices, int count) {
+        if (compactions != compacted) {
+            return -1;
+        }
+        for (int slot = from; slot < Math.min(to, highWater); slot++) {
+            long offset = records.getLong(slot << 3);
+            if (offset != FREE) {
+                slots.putInt(count << 2, slot);
+                offsets.putLong(count << 3, offset);
+                copiedPrices.putDouble(count << 3, prices.getDouble(slot << 3));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Open-addressing table of slot + 1 per bucket, or EMPTY / DELETED
+    private final class Table {
+        final ByteBuffer buckets;
+        final int mask;
+        int filled;
+        // While built in the background: the slots below it have been added
+        int progress;
+
+        Table(int size) {
+            this.buckets = ByteBuffer.allocateDirect(size * Integer.BYTES);
+            this.mask = size - 1;
+        }
+
+        // The slot of the product with this id, or -1
+        int find(byte[] id, int hash) {
+            // Bounded so a read racing a resize cannot spin forever
+            for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+                int entry = buckets.getInt(i << 2);
+                if (entry == EMPTY) {
+                    return -1;
+                }
+                if (entry != DELETED) {
+                    int slot = entry - 1;
+                    if (hashes.getInt(slot << 2) == hash && idEquals(arena.chunks, records.getLong(slot << 3), id)) {
+                        return slot;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        // Callers make sure the table is not full first
+        void insert(int slot, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int entry = buckets.getInt(i << 2);
+                if (entry == EMPTY || entry == DELETED) {
+                    if (entry == EMPTY) {
+                        filled++;
+                    }
+                    buckets.putInt(i << 2, slot + 1);
+                    return;
+                }
+            }
+        }
+
+        void delete(int slot, int hash) {
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                int entry = buckets.getInt(i << 2);
+                if (entry == slot + 1) {
+                    buckets.putInt(i << 2, DELETED);
+                    return;
+                }
+                if (entry == EMPTY) {
+                    return;
+                }
+            }
+        }
+
+        // Due to be replaced by a larger table; DELETED markers count, as they lengthen probes
+        boolean crowded() {
+            return filled * 2 > mask + 1;
+        }
+
+        // Takes no more entries
+        boolean full() {
+            return (filled + 1) * 4 > (mask + 1) * 3;
+        }
+    }
+
+    // Records, appended to chunks of growing size: an offset is (chunk index << 32 | position in chunk)
+    private static final class Arena {
+        ByteBuffer[] chunks = new ByteBuffer[0];
+        long liveBytes;
+        long garbageBytes;
+        // While compacted into in the background: the records of the slots below it are in
+        int progress;
+
+        long append(byte[] id, byte[] name) {
+            int length = recordLength(id.length, name == null ? NO_NAME : name.length);
+            ByteBuffer chunk = chunks.length == 0 ? null : chunks[chunks.length - 1];
+            if (chunk == null || chunk.remaining() < length) {
+                int previous = chunk == null ? MIN_CHUNK / 2 : chunk.capacity();
+                chunk = ByteBuffer.allocateDirect(Math.max(length, Math.min(MAX_CHUNK, previous * 2)));
+                chunks = Arrays.copyOf(chunks, chunks.length + 1);
+                chunks[chunks.length - 1] = chunk;
+            }
+            long offset = ((long) (chunks.length - 1) << 32) | chunk.position();
+            chunk.putInt(id.length).put(id);
+            if (name == null) {
+                chunk.putInt(NO_NAME);
+            } else {
+                chunk.putInt(name.length).put(name);
+            }
+            liveBytes += length;
+            return offset;
+        }
+
+        void release(long offset) {
+            ByteBuffer chunk = chunks[(int) (offset >>> 32)];
+            int length = recordLength(chunk, (int) offset);
+            liveBytes -= length;
+            garbageBytes += length;
+        }
+
+        boolean mostlyGarbage() {
+            return garbageBytes >= MIN_CHUNK && garbageBytes >= liveBytes;
+        }
+    }
+
+    /**
+     * A point-in-time copy of the live slots, with the entries of the copy in id, name and
+     * price order, all off-heap. Records are immutable, so it can refer to them by offset
+     * into the arena chunks that were current when it was taken.
+     */
+    private final class Sorted {
+        final long version;
+        final long takenAt;
+        final ByteBuffer[] chunks;
+        final int count;
+        // Indexed by entry: the slot, the offset of its record and its price
+        private final ByteBuffer slots;
+        private final ByteBuffer offsets;
+        private final ByteBuffer prices;
+        // Entries in each order, set by sort() before the copy is published
+        ByteBuffer byId;
+        ByteBuffer byName;
+        ByteBuffer byPrice;
+
+        Sorted(long version, long takenAt, ByteBuffer[] chunks,
+               ByteBuffer slots, ByteBuffer offsets, ByteBuffer prices, int count) {
+            this.version = version;
+            this.takenAt = takenAt;
+            this.chunks = chunks;
+            this.slots = slots;
+            this.offsets = offsets;
+            this.prices = prices;
+            this.count = count;
+        }
+
+        void sort() {
+            ByteBuffer scratch = ByteBuffer.allocateDirect(count * Integer.BYTES);
+            byId = sort(this::compareIds, scratch);
+            byName = sort((a, b) -> {
+                int order = compareNames(a, b);
+                return order != 0 ? order : compareIds(a, b);
+            }, scratch);
+            byPrice = sort((a, b) -> {
+                int order = Double.compare(price(a), price(b));
+                return order != 0 ? order : compareIds(a, b);
+            }, scratch);
+        }
+
+        double price(int entry) {
+            return prices.getDouble(entry << 3);
+        }
+
+        int compareIds(int a, int b) {
+            return compareBytes(chunk(a), position(a) + Integer.BYTES, chunk(a).getInt(position(a)),
+                    chunk(b), position(b) + Integer.BYTES, chunk(b).getInt(position(b)));
+        }
+
+        int compareId(int entry, byte[] key) {
+            ByteBuffer chunk = chunk(entry);
+            int position = position(entry);
+            return compareBytes(chunk, position + Integer.BYTES, chunk.getInt(position),
+                    ByteBuffer.wrap(key), 0, key.length);
+        }
+
+        int compareNames(int a, int b) {
+            int nameA = position(a) + Integer.BYTES + chunk(a).getInt(position(a));
+            int nameB = position(b) + Integer.BYTES + chunk(b).getInt(position(b));
+            int lengthA = chunk(a).getInt(nameA);
+            int lengthB = chunk(b).getInt(nameB);
+            if (lengthA == NO_NAME || lengthB == NO_NAME) {
+                return Boolean.compare(lengthA != NO_NAME, lengthB != NO_NAME);
+            }
+            return compareBytes(chunk(a), nameA + Integer.BYTES, lengthA, chunk(b), nameB + Integer.BYTES, lengthB);
+        }
+
+        private ByteBuffer chunk(int entry) {
+            return chunks[(int) (offsets.getLong(entry << 3) >>> 32)];
+        }
+
+        private int position(int entry) {
+            return (int) offsets.getLong(entry << 3);
+        }
+
+        private ByteBuffer sort(IntBinaryOperator comparator, ByteBuffer scratch) {
+            ByteBuffer order = ByteBuffer.allocateDirect(count * Integer.BYTES);
+            for (int i = 0; i < count; i++) {
+                order.putInt(i << 2, i);
+            }
+            mergeSort(order, scratch, count, comparator);
+            return order;
+        }
+
+        /**
+         * Walks {@code order[from, to)}, reading each product as it is now and skipping those
+         * deleted (or, for price ranges, repriced out of range) since the copy was taken.
+         */
+        Iterable<Product> walk(ByteBuffer order, int from, int to, boolean priceRange, double min, double max) {
+            return () -> new Iterator<>() {
+                private int index = from;
+                private Product next;
+
+                @Override
+                public boolean hasNext() {
+                    while (next == null && index < to) {
+                        int entry = order.getInt(index++ << 2);
+                        Product product = current(entry);
+                        if (product != null && (!priceRange
+                                || (Double.compare(product.getPrice(), min) >= 0
+                                && Double.compare(product.getPrice(), max) < 0))) {
+                            next = product;
+                        }
+                    }
+                    return next != null;
+                }
+
+                @Override
+                public Product next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    Product product = next;
+                    next = null;
+                    return product;
+                }
+            };
+        }
+
+        private Product current(int entry) {
+            int slot = slots.getInt(entry << 2);
+            long copied = offsets.getLong(entry << 3);
+            return read(() -> {
+                long offset = records.getLong(slot << 3);
+                if (offset == FREE) {
+                    return null;
+                }
+                // A different record in the slot may still be the same product, renamed or
+                // moved by compaction; anything else took the slot over after a delete
+                if (offset != copied) {
+                    ByteBuffer copiedChunk = chunks[(int) (copied >>> 32)];
+                    if (!idEquals(arena.chunks, offset, bytes(copiedChunk, (int) copied))) {
+                        return null;
+                    }
+                }
+                return materialize(slot);
+            });
+        }
+    }
+
+    // Index of the first entry in order for which before is false; before must be monotonic
+    private static int search(ByteBuffer order, int count, IntPredicate before) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before.test(order.getInt(mid << 2))) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Stable bottom-up merge sort over the first n ints of values, using scratch (as large)
+    // for the merges, so sorting millions of entries allocates nothing on the heap
+    private static void mergeSort(ByteBuffer values, ByteBuffer scratch, int n, IntBinaryOperator comparator) {
+        ByteBuffer source = values;
+        ByteBuffer target = scratch;
+        for (int width = 1; width < n; width *= 2) {
+            for (int low = 0; low < n; low += 2 * width) {
+                int mid = Math.min(low + width, n);
+                int high = Math.min(low + 2 * width, n);
+                int left = low;
+                int right = mid;
+                for (int k = low; k < high; k++) {
+                    if (left < mid && (right >= high
+                            || comparator.applyAsInt(source.getInt(left << 2), source.getInt(right << 2)) <= 0)) {
+                        target.putInt(k << 2, source.getInt(left++ << 2));
+                    } else {
+                        target.putInt(k << 2, source.getInt(right++ << 2));
+                    }
+                }
+            }
+            ByteBuffer swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != values) {
+            values.put(0, source, 0, n * Integer.BYTES);
+        }
+    }
+
+    private static int compareBytes(ByteBuffer a, int fromA, int lengthA, ByteBuffer b, int fromB, int lengthB) {
+        int common = Math.min(lengthA, lengthB);
+        for (int i = 0; i < common; i++) {
+            int byteA = a.get(fromA + i) & 0xff;
+            int byteB = b.get(fromB + i) & 0xff;
+            if (byteA != byteB) {
+                return byteA - byteB;
+            }
+        }
+        return Integer.compare(lengthA, lengthB);
+    }
+
+    private static boolean idEquals(ByteBuffer[] chunks, long offset, byte[] id) {
+        ByteBuffer chunk = chunks[(int) (offset >>> 32)];
+        int position = (int) offset;
+        if (chunk.getInt(position) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (chunk.get(position + Integer.BYTES + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String string(ByteBuffer chunk, int position) {
+        byte[] bytes = bytes(chunk, position);
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] bytes(ByteBuffer chunk, int position) {
+        int length = chunk.getInt(position);
+        if (length == NO_NAME) {
+            return null;
+        }
+        // Checked before allocating, as a torn optimistic read can see any length
+        Objects.checkFromIndexSize(position + Integer.BYTES, length, chunk.capacity());
+        byte[] bytes = new byte[length];
+        chunk.get(position + Integer.BYTES, bytes);
+        return bytes;
+    }
+
+    private static int recordLength(int idLength, int nameLength) {
+        return Integer.BYTES + idLength + Integer.BYTES + Math.max(0, nameLength);
+    }
+
+    private static int recordLength(ByteBuffer chunk, int position) {
+        int idLength = chunk.getInt(position);
+        return recordLength(idLength, chunk.getInt(position + Integer.BYTES + idLength));
+    }
+
+    private static ByteBuffer grow(ByteBuffer column, int bytes) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(bytes);
+        larger.put(column.duplicate().clear());
+        return larger.clear();
+    }
+
+    // Power of two with room for entries at a load factor of at most 1/2
+    private static int tableSizeFor(int entries) {
+        return Integer.highestOneBit(Math.max(16, entries) * 4 - 1);
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Durable record of the writes made to {@link ProductRepository}. The repository replays it
+ * once on startup and then appends every save and delete, in the order they were applied
+ * to each product.
+ */
+public interface ProductJournal extends AutoCloseable {
+
+    /**
+     * Keeps nothing: the repository starts empty (plus sample data) on every run.
+     */
+    CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+    ProductJournal NONE = new ProductJournal() {
+        @Override
+        public boolean replay(Consumer<Product> saved, Consumer<String> deleted) {
+            return false;
+        }
+
+        @Override
+        public void start(Supplier<? extends Iterable<Product>> state) {
+        }
+
+        @Override
+        public <T> T write(Supplier<T> write) {
+            return write.get();
+        }
+
+        @Override
+        public CompletableFuture<Void> appendSave(Product product) {
+            return DURABLE;
+        }
+
+        @Override
+        public CompletableFuture<Void> appendDelete(String id) {
+            return DURABLE;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Feeds the persisted state back, oldest first. Returns false when there was none,
+     * i.e. this is the first run against the journal.
+     */
+    boolean replay(Consumer<Product> saved, Consumer<String> deleted);
+
+    /**
+     * Starts background work (syncing, snapshots). {@code state} returns a live view of
+     * every stored product and may be read while writes continue.
+     */
+    void start(Supplier<? extends Iterable<Product>> state);
+
+    /**
+     * Runs a repository write, which appends its records and applies them to the map. The
+     * journal may hold back a snapshot until writes already appended are visible in the map.
+     */
+    <T> T write(Supplier<T> write);
+
+    /**
+     * Records a save. Never blocks on disk I/O: the returned future completes once the
+     * record is durable, or exceptionally if it could not be written.
+     */
+    CompletableFuture<Void> appendSave(Product product);
+
+    CompletableFuture<Void> appendDelete(String id);
+
+    @Override
+    void close();
+}
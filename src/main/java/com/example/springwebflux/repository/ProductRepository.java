@@ -1,20 +1,64 @@
 package com.example.springwebflux.repository;
 
+import com.example.springwebflux.exception.VersionConflictException;
 import com.example.springwebflux.model.Product;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 @Repository
 public class ProductRepository {
-    private final Map<String, Product> products = new ConcurrentHashMap<>();
+    private final ProductStore products;
+    private final ProductJournal journal;
+    private final ProductSearchIndex searchIndex;
 
-    // Initialize with some sample data
+    private static final Consumer<Product> UNCONDITIONAL = previous -> { };
+
+    // Source of product versions: each write stamps the next one on the product it stores
+    private final AtomicLong lastVersion = new AtomicLong();
+
+    private volatile ProductWriteListener writeListener = ProductWriteListener.NONE;
+
+    // Initialize with some sample data, kept in memory only
     public ProductRepository() {
-        addSampleProducts();
+        this(ProductJournal.NONE);
+    }
+
+    public ProductRepository(ProductJournal journal) {
+        this(new HeapProductStore(), journal);
+    }
+
+    public ProductRepository(ProductStore store, ProductJournal journal) {
+        this(store, journal, true);
+    }
+
+    /**
+     * Rebuilds the products recorded in {@code journal} into {@code store} and logs every
+     * later write to it. Sample data is only added on the first run against a journal.
+     * Without {@code searchIndex}, searches scan every product rather than keep an index of
+     * names on the heap.
+     */
+    @Autowired
+    public ProductRepository(ProductStore store, ProductJournal journal,
+                             @Value("${products.search.index:true}") boolean searchIndex) {
+        this.products = store;
+        this.journal = journal;
+        this.searchIndex = new ProductSearchIndex(store::get, store::all, searchIndex);
+        boolean recovered = journal.replay(this::restore, this::restoreDelete);
+        if (!recovered) {
+            addSampleProducts();
+        }
+        journal.start(products::all);
     }
 
     private void addSampleProducts() {
@@ -24,28 +68,260 @@ public class ProductRepository {
         Product p4 = new Product("4", "Keyboard", 99.99);
         Product p5 = new Product("5", "Mouse", 49.99);
 
-        products.put(p1.getId(), p1);
-        products.put(p2.getId(), p2);
-        products.put(p3.getId(), p3);
-        products.put(p4.getId(), p4);
-        products.put(p5.getId(), p5);
+        put(p1, UNCONDITIONAL);
+        put(p2, UNCONDITIONAL);
+        put(p3, UNCONDITIONAL);
+        put(p4, UNCONDITIONAL);
+        put(p5, UNCONDITIONAL);
+    }
+
+    /**
+     * Has {@code listener} told of every later write, replacing any listener set before.
+     */
+    public void setWriteListener(ProductWriteListener listener) {
+        this.writeListener = listener;
     }
 
     public Flux<Product> findAll() {
-        return Flux.fromIterable(products.values());
+        return Flux.fromIterable(products.all());
     }
 
     public Mono<Product> findById(String id) {
         return Mono.justOrEmpty(products.get(id));
     }
 
+    /**
+     * Streams up to {@code limit} products ordered by id, starting after {@code afterId}
+     * (or from the beginning when it is null). Cost is O(log n + limit) whatever the depth.
+     */
+    public Flux<Product> findPage(String afterId, int limit) {
+        return Flux.fromIterable(products.byId(afterId)).take(limit, true);
+    }
+
+    /**
+     * Streams all products ordered by name. The store keeps products in name order, so
+     * this is a lazy walk rather than a sort.
+     */
+    public Flux<Product> findAllOrderByName() {
+        return Flux.fromIterable(products.byName());
+    }
+
+    /**
+     * Streams products priced strictly below {@code maxPrice}, cheapest first.
+     * Only the matching slice of the store's price order is visited.
+     */
+    public Flux<Product> findByPriceLessThan(double maxPrice) {
+        return Flux.fromIterable(products.byPrice(Double.NEGATIVE_INFINITY, maxPrice));
+    }
+
+    /**
+     * Streams up to {@code limit} products priced strictly below {@code maxPrice}, cheapest
+     * first, starting after the product priced {@code afterPrice} with id {@code afterId} (or
+     * from the cheapest when afterId is null). Cost is O(log n + limit) whatever the depth.
+     */
+    public Flux<Product> findPageByPriceLessThan(double maxPrice, double afterPrice, String afterId, int limit) {
+        double from = afterId == null ? Double.NEGATIVE_INFINITY : afterPrice;
+        return Flux.fromIterable(products.byPrice(from, afterId, maxPrice)).take(limit, true);
+    }
+
+    /**
+     * Streams products priced between {@code minPrice} and {@code maxPrice} (both inclusive),
+     * cheapest first.
+     */
+    public Flux<Product> findByPriceBetween(double minPrice, double maxPrice) {
+        if (Double.compare(minPrice, maxPrice) > 0) {
+            return Flux.empty();
+        }
+        return Flux.fromIterable(products.byPrice(minPrice, Math.nextUp(maxPrice)));
+    }
+
+    /**
+     * Streams up to {@code limit} products with a word in their name starting with each word of
+     * {@code query}, best match first. Only products matching the query's rarest word are looked
+     * at, unless the search index is disabled.
+     */
+    public Flux<Product> search(String query, int limit) {
+        return Flux.defer(() -> Flux.fromIterable(searchIndex.search(query, limit)));
+    }
+
+    /**
+     * Stores the product, stamped with a new version. The change is visible to readers
+     * straight away; the returned {@code Mono} completes once the journal has made it durable.
+     */
     public Mono<Product> save(Product product) {
-        products.put(product.getId(), product);
-        return Mono.just(product);
+        return upsert(product).map(ProductWrite::saved);
+    }
+
+    // Like save, but also reports the product that was replaced
+    public Mono<ProductWrite> upsert(Product product) {
+        return Mono.defer(() -> Mono.fromFuture(put(product, UNCONDITIONAL)));
+    }
+
+    /**
+     * Replaces the product with the same id, atomically with checking that it exists; empty
+     * (and nothing written) when it doesn't.
+     */
+    public Mono<ProductWrite> replace(Product product) {
+        return replaceIf(product, previous -> true);
+    }
+
+    /**
+     * Compare-and-set: replaces the product with the same id only while it is at
+     * {@code expectedVersion}, and fails with {@link VersionConflictException} otherwise.
+     * Empty when there is no product to replace. The check and the write are one atomic step
+     * for that id only, so writers to other products are never held up.
+     */
+    public Mono<ProductWrite> saveIfVersion(Product product, long expectedVersion) {
+        return replaceIf(product, previous -> previous.getVersion() == expectedVersion);
+    }
+
+    private Mono<ProductWrite> replaceIf(Product product, Predicate<Product> condition) {
+        return Mono.defer(() -> Mono.fromFuture(put(product, previous -> {
+                    if (previous == null) {
+                        throw new NoProductToReplace();
+                    }
+                    if (!condition.test(previous)) {
+                        throw new VersionConflictException(previous);
+                    }
+                })))
+                .onErrorResume(NoProductToReplace.class, error -> Mono.empty());
+    }
+
+    /**
+     * Writes a batch of products in one call and reports, per product, what it replaced.
+     * Nothing is emitted until the whole batch is durable.
+     */
+    public Flux<ProductWrite> saveAll(List<Product> batch) {
+        return Flux.defer(() -> {
+            List<CompletableFuture<ProductWrite>> writes = new ArrayList<>(batch.size());
+            for (Product product : batch) {
+                writes.add(put(product, UNCONDITIONAL));
+            }
+            return whenDurable(writes);
+        });
+    }
+
+    /**
+     * Batch compare-and-set: writes each product only while the stored one is still at the
+     * version the product carries, i.e. unchanged since it was read, and skips those changed
+     * or deleted since. Emits the writes that were made, once they are all durable.
+     */
+    public Flux<ProductWrite> saveAllIfUnchanged(List<Product> batch) {
+        return Flux.defer(() -> {
+            List<CompletableFuture<ProductWrite>> writes = new ArrayList<>(batch.size());
+            for (Product product : batch) {
+                long expectedVersion = product.getVersion();
+                try {
+                    writes.add(put(product, previous -> {
+                        if (previous == null || previous.getVersion() != expectedVersion) {
+                            throw new NoProductToReplace();
+                        }
+                    }));
+                } catch (NoProductToReplace skipped) {
+                    // Changed or deleted since it was read
+                }
+            }
+            return whenDurable(writes);
+        });
+    }
+
+    private static Flux<ProductWrite> whenDurable(List<CompletableFuture<ProductWrite>> writes) {
+        return Mono.fromFuture(CompletableFuture.allOf(writes.toArray(CompletableFuture[]::new)))
+                .thenMany(Flux.fromIterable(writes).map(CompletableFuture::join));
+    }
+
+    /**
+     * Changes whenever the ordered reads start to reflect later writes. Stores that order
+     * from a copy refreshed in the background lag behind the catalog until it changes.
+     */
+    public long getOrderedVersion() {
+        return products.orderedVersion();
+    }
+
+    public Mono<Long> count() {
+        return Mono.fromSupplier(() -> (long) products.size());
     }
 
     public Mono<Void> deleteById(String id) {
-        products.remove(id);
-        return Mono.empty();
+        return remove(id).then();
+    }
+
+    /**
+     * Deletes the product and emits it, once the delete is durable; empty if there was none.
+     */
+    public Mono<Product> remove(String id) {
+        return Mono.defer(() -> {
+            Runnable[] published = new Runnable[1];
+            CompletableFuture<Product> durable = publishedEitherWay(published, () -> journal.write(() -> {
+                @SuppressWarnings("unchecked")
+                CompletableFuture<Void>[] appended = new CompletableFuture[1];
+                // Logged before anything changes, so a failed append leaves the product in place
+                Product removed = products.remove(id, existing -> {
+                    appended[0] = journal.appendDelete(id);
+                    published[0] = writeListener.written(existing, null);
+                });
+                searchIndex.refresh(id);
+                return removed == null ? null : appended[0].thenApply(done -> removed);
+            }));
+            return durable == null
+                    ? Mono.empty()
+                    : Mono.fromFuture(durable.whenComplete((removed, error) -> published[0].run()));
+        });
+    }
+
+    // Completes with the product that was replaced (or null) once the write is durable. The
+    // check sees the product about to be replaced and abandons the write by throwing. The
+    // listener hears of the write in the same step as its version is stamped, but what it
+    // returns runs only once the write is durable (or failed to be: it is in the store either
+    // way), and outside the store
+    private CompletableFuture<ProductWrite> put(Product product, Consumer<Product> check) {
+        Runnable[] published = new Runnable[1];
+        CompletableFuture<ProductWrite> durable = publishedEitherWay(published, () -> journal.write(() -> {
+            @SuppressWarnings("unchecked")
+            CompletableFuture<Void>[] appended = new CompletableFuture[1];
+            Product previous = products.put(product, replaced -> {
+                check.accept(replaced);
+                product.setVersion(lastVersion.incrementAndGet());
+                appended[0] = journal.appendSave(product);
+                published[0] = writeListener.written(replaced, product);
+            });
+            searchIndex.refresh(product.getId());
+            return appended[0].thenApply(done -> new ProductWrite(previous, product));
+        }));
+        return durable.whenComplete((write, error) -> published[0].run());
+    }
+
+    // A write that fails after the listener heard of it (the store running out of memory, the
+    // index failing to refresh) never gets a future to publish from, so it is published here:
+    // the listener has numbered it already, and every later write would wait on it for good
+    private static <T> T publishedEitherWay(Runnable[] published, Supplier<T> write) {
+        try {
+            return write.get();
+        } catch (RuntimeException | Error failure) {
+            if (published[0] != null) {
+                published[0].run();
+            }
+            throw failure;
+        }
+    }
+
+    // Replayed writes are already in the journal; versions are not, and start again from 1
+    private void restore(Product product) {
+        products.put(product, previous -> product.setVersion(lastVersion.incrementAndGet()));
+        searchIndex.refresh(product.getId());
+    }
+
+    private void restoreDelete(String id) {
+        products.remove(id, removed -> { });
+        searchIndex.refresh(id);
+    }
+
+    // Abandons a conditional write that has no product, or not the expected one, to replace;
+    // never leaves the repository
+    private static final class NoProductToReplace extends RuntimeException {
+
+        NoProductToReplace() {
+            super(null, null, false, false);
+        }
     }
 }
@@ -0,0 +1,292 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Inverted index over product names: each lower-cased word maps to the ids of the products
+ * whose name contains it. Words are kept in a sorted dictionary, so query words also match
+ * as a prefix ("lap" finds "Laptop").
+ * <p>
+ * A query is answered by walking the posting lists of its rarest word only and checking
+ * the other words against each candidate's name, so its cost follows the number of
+ * products matching that word rather than the size of the catalog. A word shorter than
+ * {@link #MIN_PREFIX} would match a large part of the catalog as a prefix, so it is never
+ * walked as one: next to a longer word it only narrows that word's candidates, and on its
+ * own it matches whole words only. Candidates are ranked by the words they are indexed
+ * under, and only those that can make the results are read from the store.
+ * <p>
+ * The index costs heap for every product and every distinct word, which a catalog kept
+ * off-heap to spare the heap may not want to pay. Disabled, it holds nothing and a query
+ * scans the whole store instead.
+ */
+final class ProductSearchIndex {
+
+    static final int MIN_PREFIX = 3;
+
+    private static final long NO_MATCH = -1;
+
+    private final Function<String, Product> lookup;
+    private final Supplier<Iterable<Product>> all;
+    private final boolean enabled;
+
+    // word -> ids of products whose name contains it; a word is in the dictionary while its
+    // postings are not empty. Both only change inside postings.compute(word, ...)
+    private final ConcurrentMap<String, Set<String>> postings = new ConcurrentHashMap<>();
+    private final NavigableSet<String> dictionary = new ConcurrentSkipListSet<>();
+
+    // The words each product is currently indexed under
+    private final ConcurrentMap<String, Set<String>> indexed = new ConcurrentHashMap<>();
+
+    /**
+     * @param lookup reads the current product for an id, or null once it has been deleted
+     * @param all reads every product, for queries when the index is disabled
+     * @param enabled whether to keep the index, or to scan every product per query instead
+     */
+    ProductSearchIndex(Function<String, Product> lookup, Supplier<Iterable<Product>> all, boolean enabled) {
+        this.lookup = lookup;
+        this.all = all;
+        this.enabled = enabled;
+    }
+
+    /**
+     * Brings the entry for {@code id} in line with the product currently stored under it.
+     * Call after every write; concurrent calls for the same id are serialized and the last
+     * one always reads the latest product, so the index cannot be left behind the store.
+     */
+    void refresh(String id) {
+        if (!enabled) {
+            return;
+        }
+        indexed.compute(id, (key, previous) -> {
+            Product current = lookup.apply(key);
+            Set<String> words = current == null ? Set.of() : words(current.getName());
+            for (String word : words) {
+                if (previous == null || !previous.contains(word)) {
+                    postings.compute(word, (w, ids) -> {
+                        if (ids == null) {
+                            ids = ConcurrentHashMap.newKeySet();
+                            dictionary.add(w);
+                        }
+                        ids.add(key);
+                        return ids;
+                    });
+                }
+            }
+            if (previous != null) {
+                for (String word : previous) {
+                    if (!words.contains(word)) {
+                        postings.computeIfPresent(word, (w, ids) -> {
+                            ids.remove(key);
+                            if (!ids.isEmpty()) {
+                                return ids;
+                            }
+                            dictionary.remove(w);
+                            return null;
+                        });
+                    }
+                }
+            }
+            return words.isEmpty() ? null : words;
+        });
+    }
+
+    /**
+     * Up to {@code limit} products whose name has a word starting with every word of
+     * {@code query}, best match first: more query words matched in full, then names with
+     * fewer words, then by name and id. Query words shorter than {@link #MIN_PREFIX} match
+     * as a prefix only when the query also has a longer word.
+     */
+    List<Product> search(String query, int limit) {
+        Set<String> terms = words(query);
+        if (terms.isEmpty() || limit < 1) {
+            return List.of();
+        }
+        boolean hasLongTerm = false;
+        for (String term : terms) {
+            hasLongTerm |= term.length() >= MIN_PREFIX;
+        }
+        if (!enabled) {
+            return scan(terms, hasLongTerm, limit);
+        }
+
+        // Drive the search from the term with the fewest candidates, never from a short prefix
+        NavigableSet<String> rarest = null;
+        long fewest = Long.MAX_VALUE;
+        for (String term : terms) {
+            boolean prefix = term.length() >= MIN_PREFIX;
+            if (!prefix && hasLongTerm) {
+                continue;
+            }
+            NavigableSet<String> matching = prefix
+                    ? dictionary.subSet(term, true, term + Character.MAX_VALUE, false)
+                    : dictionary.subSet(term, true, term, true);
+            long candidates = 0;
+            for (String word : matching) {
+                Set<String> ids = postings.get(word);
+                candidates += ids == null ? 0 : ids.size();
+                if (candidates >= fewest) {
+                    break;
+                }
+            }
+            if (candidates < fewest) {
+                rarest = matching;
+                fewest = candidates;
+            }
+            if (fewest == 0) {
+                return List.of();
+            }
+        }
+
+        // Candidates are scored from the words they are indexed under, without reading them
+        // from the store, and the score the last of the results needs is kept on the way
+        Map<String, Long> scores = new HashMap<>();
+        PriorityQueue<Long> cutoff = new PriorityQueue<>(Math.min(limit, 64) + 1);
+        for (String word : rarest) {
+            Set<String> ids = postings.get(word);
+            if (ids == null) {
+                continue;
+            }
+            for (String id : ids) {
+                if (scores.containsKey(id)) {
+                    continue;
+                }
+                Set<String> words = indexed.get(id);
+                long score = words == null ? NO_MATCH : scoreOf(words, terms, hasLongTerm);
+                scores.put(id, score);
+                if (score != NO_MATCH) {
+                    cutoff.add(score);
+                    if (cutoff.size() > limit) {
+                        cutoff.poll();
+                    }
+                }
+            }
+        }
+        if (cutoff.isEmpty()) {
+            return List.of();
+        }
+
+        // Only candidates scoring at least that are read, to be ordered by name and id
+        long least = cutoff.peek();
+        PriorityQueue<Match> best = best(limit);
+        for (Map.Entry<String, Long> candidate : scores.entrySet()) {
+            if (candidate.getValue() >= least) {
+                offer(best, Match.of(lookup.apply(candidate.getKey()), terms, hasLongTerm), limit);
+            }
+        }
+        return results(best);
+    }
+
+    // Without the index: every product in the store is a candidate
+    private List<Product> scan(Set<String> terms, boolean hasLongTerm, int limit) {
+        PriorityQueue<Match> best = best(limit);
+        for (Product product : all.get()) {
+            offer(best, Match.of(product, terms, hasLongTerm), limit);
+        }
+        return results(best);
+    }
+
+    // Worst match at the head, so it is the one dropped once the queue is full
+    private static PriorityQueue<Match> best(int limit) {
+        return new PriorityQueue<>(Math.min(limit, 64) + 1, Match.ORDER.reversed());
+    }
+
+    private static void offer(PriorityQueue<Match> best, Match match, int limit) {
+        if (match != null) {
+            best.add(match);
+            if (best.size() > limit) {
+                best.poll();
+            }
+        }
+    }
+
+    private static List<Product> results(PriorityQueue<Match> best) {
+        List<Product> results = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            results.add(best.poll().product());
+        }
+        // Polled worst first
+        Collections.reverse(results);
+        return results;
+    }
+
+    // Distinct lower-cased runs of letters and digits
+    static Set<String> words(String text) {
+        if (text == null) {
+            return Set.of();
+        }
+        Set<String> words = new HashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // Higher for a better match: more terms matched in full, then fewer words in the name.
+    // NO_MATCH unless every term matches one of the words, terms shorter than MIN_PREFIX in
+    // full unless the query has a longer term
+    private static long scoreOf(Set<String> words, Set<String> terms, boolean hasLongTerm) {
+        int exact = 0;
+        for (String term : terms) {
+            if (words.contains(term)) {
+                exact++;
+                continue;
+            }
+            if (!hasLongTerm && term.length() < MIN_PREFIX) {
+                return NO_MATCH;
+            }
+            boolean prefix = false;
+            for (String word : words) {
+                if (word.startsWith(term)) {
+                    prefix = true;
+                    break;
+                }
+            }
+            if (!prefix) {
+                return NO_MATCH;
+            }
+        }
+        return ((long) exact << 32) | (Integer.MAX_VALUE - words.size());
+    }
+
+    private record Match(Product product, long score) {
+
+        static final Comparator<Match> ORDER = Comparator
+                .comparingLong(Match::score).reversed()
+                .thenComparing(match -> match.product().getName())
+                .thenComparing(match -> match.product().getId());
+
+        // Null unless the product's current name matches; the postings may briefly run ahead
+        // of or behind the store, so candidates are always rechecked
+        static Match of(Product product, Set<String> terms, boolean hasLongTerm) {
+            if (product == null) {
+                return null;
+            }
+            long score = scoreOf(words(product.getName()), terms, hasLongTerm);
+            return score == NO_MATCH ? null : new Match(product, score);
+        }
+    }
+}
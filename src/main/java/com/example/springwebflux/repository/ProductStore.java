@@ -0,0 +1,53 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+import java.util.function.Consumer;
+
+/**
+ * Storage behind {@link ProductRepository}: the products themselves plus the orders the
+ * repository queries them in. Writes to the same id are atomic with respect to each other;
+ * reads never block writes and see each product either before or after a write.
+ * <p>
+ * Every write takes a {@code beforeWrite} callback that runs while the write holds the
+ * product, before anything changes, so the repository can journal it (and stamp its
+ * version) in the order writes are applied. If the callback throws, the write is abandoned.
+ * The callback is given the product about to be replaced or removed (null for a creation),
+ * so the repository can also make a put conditional on it.
+ */
+public interface ProductStore {
+
+    Product get(String id);
+
+    // Returns the product that was replaced, or null
+    Product put(Product product, Consumer<Product> beforeWrite);
+
+    // Returns the product that was removed; null (without running beforeWrite) if there was none
+    Product remove(String id, Consumer<Product> beforeWrite);
+
+    int size();
+
+    // Every product, in no particular order
+    Iterable<Product> all();
+
+    // Changes whenever the orders below catch up with later writes; constant for a store
+    // whose orders are always current
+    default long orderedVersion() {
+        return 0;
+    }
+
+    // Products ordered by id, starting after afterId (or from the first when it is null)
+    Iterable<Product> byId(String afterId);
+
+    // Products ordered by name (nulls first), then id
+    Iterable<Product> byName();
+
+    // Products priced from fromInclusive up to toExclusive, cheapest first, then by id
+    default Iterable<Product> byPrice(double fromInclusive, double toExclusive) {
+        return byPrice(fromInclusive, null, toExclusive);
+    }
+
+    // The same order, but of the products priced exactly fromInclusive only those with an id
+    // after afterId (all of them when it is null): a keyset page resuming after one product
+    Iterable<Product> byPrice(double fromInclusive, String afterId, double toExclusive);
+}
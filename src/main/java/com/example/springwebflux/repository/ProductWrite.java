@@ -0,0 +1,13 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+/**
+ * Outcome of a single write: the product now stored and the one it replaced, if any.
+ */
+public record ProductWrite(Product previous, Product saved) {
+
+    public boolean created() {
+        return previous == null;
+    }
+}
@@ -0,0 +1,38 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+/**
+ * Told of each write to {@link ProductRepository} while the write still holds the product,
+ * so that the writes to one product reach it in the order they were applied rather than in
+ * the order they happen to become durable.
+ */
+@FunctionalInterface
+public interface ProductWriteListener {
+
+    Runnable NOTHING = () -> { };
+
+    ProductWriteListener NONE = (previous, current) -> NOTHING;
+
+    /**
+     * Called with the product replaced or removed (null for a creation) and the one stored,
+     * version stamped (null for a deletion). Runs inside the store, so it must be quick and
+     * must not touch the repository. Returns what to run once the write is durable, outside
+     * the store.
+     */
+    Runnable written(Product previous, Product current);
+
+    /**
+     * Tells this listener of each write, then {@code next}, and runs what both return.
+     */
+    default ProductWriteListener andThen(ProductWriteListener next) {
+        return (previous, current) -> {
+            Runnable first = written(previous, current);
+            Runnable second = next.written(previous, current);
+            return () -> {
+                first.run();
+                second.run();
+            };
+        };
+    }
+}
@@ -0,0 +1,42 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+
+/**
+ * Concurrent secondary index that keeps products ordered by a derived key.
+ * Callers must serialize updates per product id (HeapProductStore does this via
+ * ConcurrentHashMap.compute), while reads can run concurrently at any time.
+ */
+final class SortedIndex<K extends Comparable<K>> {
+
+    private final ConcurrentSkipListMap<K, Product> entries = new ConcurrentSkipListMap<>();
+    private final Function<Product, K> keyExtractor;
+
+    SortedIndex(Function<Product, K> keyExtractor) {
+        this.keyExtractor = keyExtractor;
+    }
+
+    void update(Product previous, Product current) {
+        K key = keyExtractor.apply(current);
+        // Add the new entry before dropping the old one so scans never miss the product
+        entries.put(key, current);
+        if (previous != null) {
+            K previousKey = keyExtractor.apply(previous);
+            if (!previousKey.equals(key)) {
+                entries.remove(previousKey);
+            }
+        }
+    }
+
+    void remove(Product previous) {
+        entries.remove(keyExtractor.apply(previous));
+    }
+
+    NavigableMap<K, Product> entries() {
+        return entries;
+    }
+}
@@ -1,5 +1,6 @@
 package com.example.springwebflux.router;
 
+import com.example.springwebflux.codec.ProductMediaTypes;
 import com.example.springwebflux.handler.ProductHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -19,11 +20,17 @@ public class ProductRouter {
                 .GET("/api/functional/products", handler::getAllProducts)
                 .GET("/api/functional/products/sorted", handler::getSortedProducts)
                 .GET("/api/functional/products/cheaper", handler::getCheaperProducts)
+                .GET("/api/functional/products/search", handler::searchProducts)
+                .GET("/api/functional/products/stats", handler::getStats)
                 .GET("/api/functional/products/events",
-                        accept(MediaType.TEXT_EVENT_STREAM), handler::streamProducts)
+                        accept(MediaType.TEXT_EVENT_STREAM, ProductMediaTypes.APPLICATION_STREAM_SMILE),
+                        handler::streamProducts)
                 .GET("/api/functional/products/{id}", handler::getProductById)
                 .POST("/api/functional/products", handler::createProduct)
+                .POST("/api/functional/products/bulk", handler::saveProducts)
+                .POST("/api/functional/products/reprice", handler::repriceProducts)
                 .PUT("/api/functional/products/{id}", handler::updateProduct)
+                .PATCH("/api/functional/products/{id}", handler::patchProduct)
                 .DELETE("/api/functional/products/{id}", handler::deleteProduct)
                 .build();
     }
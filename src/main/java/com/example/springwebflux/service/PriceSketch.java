@@ -0,0 +1,122 @@
+package com.example.springwebflux.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Quantile sketch over prices with a fixed relative accuracy, in the style of DDSketch:
+ * each value is counted in a logarithmic bucket, so any quantile is reported to within
+ * {@code relativeAccuracy} of the true value using a few thousand counters whatever the
+ * number of products.
+ * <p>
+ * Because it only holds counts, a value can be removed again (a price change is a removal
+ * plus an addition), and sketches with the same accuracy merge by adding their counts.
+ * Updates are lock-free; a read racing an update may or may not include it.
+ */
+public final class PriceSketch {
+
+    // Magnitudes below this count as zero; above MAX_VALUE they share the top bucket
+    private static final double MIN_VALUE = 1e-3;
+    private static final double MAX_VALUE = 1e12;
+
+    private final double relativeAccuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final int minIndex;
+    private final AtomicLongArray positive;
+    private final AtomicLongArray negative;
+    private final AtomicLong zero = new AtomicLong();
+
+    public PriceSketch(double relativeAccuracy) {
+        if (!(relativeAccuracy > 0 && relativeAccuracy < 1)) {
+            throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+        }
+        this.relativeAccuracy = relativeAccuracy;
+        this.gamma = (1 + relativeAccuracy) / (1 - relativeAccuracy);
+        this.logGamma = Math.log(gamma);
+        this.minIndex = (int) Math.ceil(Math.log(MIN_VALUE) / logGamma);
+        int buckets = (int) Math.ceil(Math.log(MAX_VALUE) / logGamma) - minIndex + 1;
+        this.positive = new AtomicLongArray(buckets);
+        this.negative = new AtomicLongArray(buckets);
+    }
+
+    public void add(double value) {
+        update(value, 1);
+    }
+
+    public void remove(double value) {
+        update(value, -1);
+    }
+
+    private void update(double value, int delta) {
+        if (Double.isNaN(value)) {
+            return;
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude < MIN_VALUE) {
+            zero.addAndGet(delta);
+        } else {
+            (value > 0 ? positive : negative).addAndGet(index(magnitude), delta);
+        }
+    }
+
+    /**
+     * Adds every value counted by {@code other} to this sketch.
+     */
+    public void merge(PriceSketch other) {
+        if (other.relativeAccuracy != relativeAccuracy) {
+            throw new IllegalArgumentException("Cannot merge sketches with different accuracies");
+        }
+        for (int i = 0; i < positive.length(); i++) {
+            positive.addAndGet(i, other.positive.get(i));
+            negative.addAndGet(i, other.negative.get(i));
+        }
+        zero.addAndGet(other.zero.get());
+    }
+
+    /**
+     * Value at quantile {@code q} (0 to 1), or NaN when the sketch is empty.
+     */
+    public double quantile(double q) {
+        long total = zero.get();
+        for (int i = 0; i < positive.length(); i++) {
+            total += positive.get(i) + negative.get(i);
+        }
+        if (total <= 0) {
+            return Double.NaN;
+        }
+        long rank = (long) (q * (total - 1));
+        long seen = 0;
+        // Ascending order: most negative first, then zero, then positive
+        for (int i = negative.length() - 1; i >= 0; i--) {
+            seen += negative.get(i);
+            if (seen > rank) {
+                return -value(i);
+            }
+        }
+        seen += zero.get();
+        if (seen > rank) {
+            return 0;
+        }
+        for (int i = 0; i < positive.length(); i++) {
+            seen += positive.get(i);
+            if (seen > rank) {
+                return value(i);
+            }
+        }
+        return value(positive.length() - 1);
+    }
+
+    public double getRelativeAccuracy() {
+        return relativeAccuracy;
+    }
+
+    private int index(double magnitude) {
+        return (int) Math.ceil(Math.log(Math.min(magnitude, MAX_VALUE)) / logGamma) - minIndex;
+    }
+
+    // Midpoint (in relative terms) of bucket i, within relativeAccuracy of every value in it
+    private double value(int index) {
+        return 2 * Math.pow(gamma, index + minIndex) / (gamma + 1);
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.repository.ProductWriteListener;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of products by id, bounded in size (Caffeine's W-TinyLFU policy) and
+ * in age.
+ * <p>
+ * Concurrent misses for the same id share one pending lookup. Products that don't exist are
+ * not cached. The cache listens to the repository's writes directly (through the service,
+ * which {@link ProductWriteListener#andThen composes} it with the change feed), so every
+ * stored write invalidates its product once durable, including those that change nothing
+ * but the version, and none can be missed the way a feed subscriber can miss events.
+ */
+@Component
+public class ProductCache implements ProductWriteListener {
+
+    public static final long DEFAULT_MAXIMUM_SIZE = 10_000;
+    public static final Duration DEFAULT_EXPIRE_AFTER_WRITE = Duration.ofMinutes(5);
+
+    private final AsyncCache<String, Product> cache;
+
+    public ProductCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRE_AFTER_WRITE);
+    }
+
+    @Autowired
+    public ProductCache(@Value("${products.cache.maximum-size:10000}") long maximumSize,
+                        @Value("${products.cache.expire-after-write:5m}") Duration expireAfterWrite) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWrite)
+                .recordStats()
+                .buildAsync();
+    }
+
+    /**
+     * The cached product for {@code id}, or else the one emitted by {@code loader}, which is
+     * only called when no lookup for this id is already cached or in flight.
+     */
+    public Mono<Product> get(String id, Function<String, Mono<Product>> loader) {
+        // A cancelled caller must not cancel a lookup that other callers may be waiting on
+        return Mono.fromFuture(() -> cache.get(id, (key, executor) -> loader.apply(key).toFuture()), true);
+    }
+
+    public void invalidate(String id) {
+        cache.synchronous().invalidate(id);
+    }
+
+    // Invalidated once the write is in the store, so a lookup racing it cannot cache the old product
+    @Override
+    public Runnable written(Product previous, Product current) {
+        String id = current != null ? current.getId() : previous.getId();
+        return () -> invalidate(id);
+    }
+
+    // For metrics
+    public AsyncCache<String, Product> getCache() {
+        return cache;
+    }
+}
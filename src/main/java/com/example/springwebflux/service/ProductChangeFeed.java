@@ -0,0 +1,493 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.repository.ProductWriteListener;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sequence-numbered ring buffer of recent product changes with a fixed memory budget.
+ * <p>
+ * The repository hands every write to the feed while the write still holds its product, so
+ * the changes to a product are numbered in the order they were applied. A change is only
+ * read by subscribers once it, and every change numbered before it, is durable.
+ * <p>
+ * Every subscriber reads the ring through its own cursor at the pace of its own demand, so
+ * a slow subscriber never holds back the others and nothing is buffered on its behalf.
+ * Cursors are drained on a worker of their own, never on the thread that made a change
+ * durable, so the cost of a write doesn't grow with the number of subscribers.
+ * A subscriber that falls more than the ring size behind (or resumes from an event that is
+ * no longer buffered) is handled according to the configured {@link OverflowPolicy}.
+ * <p>
+ * Conflating subscribers instead drain the ring eagerly into a per-subscriber map holding
+ * one merged pending event per product, so their memory is bounded by catalog size rather
+ * than update rate; only a burst of more changes than the ring holds, published before their
+ * worker gets to run, makes them overflow. The map is flushed on demand, or every conflation interval when one is
+ * configured.
+ * <p>
+ * The sequence number of an event is its version; its SSE id is the sequence prefixed with
+ * the epoch of this feed, so that an id from before a restart, when sequences began again
+ * from 1, is recognized as foreign and answered with a resync. Each buffered event is
+ * encoded into a complete SSE frame at most once; every subscriber is then handed a
+ * {@link DataBuffer} view over the same immutable bytes, so serialization cost grows with
+ * the number of events rather than events times subscribers.
+ */
+@Component
+public class ProductChangeFeed implements ProductWriteListener {
+
+    public static final String LAST_EVENT_ID_HEADER = "Last-Event-ID";
+
+    // SSE event name of the marker telling a client it missed events
+    public static final String RESYNC_EVENT = "resync";
+
+    // Carries the epoch on streams without SSE ids, for clients to build a Last-Event-ID from
+    public static final String EVENT_EPOCH_HEADER = "X-Event-Epoch";
+
+    public enum OverflowPolicy {
+        // Send a resync marker and continue from the oldest event still buffered
+        DROP_OLDEST,
+        // Send a resync marker and complete the stream
+        DISCONNECT
+    }
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+    private final AtomicReferenceArray<Entry> ring;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final Duration conflationInterval;
+    private final ObjectMapper objectMapper;
+    private final Set<Cursor> cursors = ConcurrentHashMap.newKeySet();
+    // Times a subscriber fell more than the ring behind and was resynced or disconnected
+    private final LongAdder overflows = new LongAdder();
+
+    // Sequence of the last event written to the ring, durable or not
+    private volatile long lastAppended;
+    // Sequence up to which every event is durable; slots up to it are safe to read
+    private volatile long lastSequence;
+
+    @Autowired
+    public ProductChangeFeed(@Value("${products.events.buffer-size:1024}") int bufferSize,
+                             @Value("${products.events.overflow-policy:drop-oldest}") OverflowPolicy overflowPolicy,
+                             @Value("${products.events.conflation-interval:0ms}") Duration conflationInterval,
+                             ObjectMapper objectMapper) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Event buffer size must be positive: " + bufferSize);
+        }
+        int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        this.ring = new AtomicReferenceArray<>(Math.max(capacity, 1));
+        this.mask = ring.length() - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.conflationInterval = conflationInterval;
+        this.objectMapper = objectMapper;
+    }
+
+    /**
+     * Publishes the change from {@code previous} to {@code current} straight away; either may
+     * be null for a creation or a deletion. Writes that change nothing are not published.
+     */
+    public void publish(Product previous, Product current) {
+        written(previous, current).run();
+    }
+
+    /**
+     * Numbers the change from {@code previous} to {@code current} and appends it to the ring,
+     * where subscribers see it once the returned action has run.
+     */
+    @Override
+    public Runnable written(Product previous, Product current) {
+        Change change = Change.of(previous, current);
+        if (change == null) {
+            return NOTHING;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = append(change);
+        }
+        return () -> durable(entry);
+    }
+
+    /**
+     * Streams changes after {@code lastEventId}, or only new changes when it is null. An id
+     * this feed did not issue, from an earlier epoch or malformed, starts a live stream with
+     * a resync. When {@code conflate} is set, changes to a product that the subscriber has not
+     * yet received are merged into one event.
+     */
+    public Flux<ProductChangeEvent> subscribe(String lastEventId, boolean conflate) {
+        return entries(lastEventId, conflate).map(Entry::event);
+    }
+
+    /**
+     * Same as {@link #subscribe(String, boolean)} as ready-to-write SSE frames, with the
+     * {@link #eventId event id} as the SSE id so browsers resume automatically. Buffers wrap
+     * the shared frame bytes without copying, so there is nothing to release once they are
+     * written.
+     */
+    public Flux<DataBuffer> serverSentEvents(String lastEventId, boolean conflate, DataBufferFactory bufferFactory) {
+        return entries(lastEventId, conflate).map(entry -> bufferFactory.wrap(entry.frame()));
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    // The id of the event with this version, as sent in SSE frames and accepted back as Last-Event-ID
+    public String eventId(long version) {
+        return epoch + "-" + version;
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    public int getSubscriberCount() {
+        return cursors.size();
+    }
+
+    public int getBufferSize() {
+        return ring.length();
+    }
+
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Number of published events the furthest-behind subscriber has yet to read; once it
+     * passes {@link #getBufferSize()} that subscriber overflows. Approximate, as it reads
+     * the cursors without synchronizing with their drain loops.
+     */
+    public long getMaxSubscriberLag() {
+        long last = lastSequence;
+        long lag = 0;
+        for (Cursor cursor : cursors) {
+            lag = Math.max(lag, last + 1 - cursor.next);
+        }
+        return lag;
+    }
+
+    private Flux<Entry> entries(String lastEventId, boolean conflate) {
+        return Flux.create(sink -> {
+            Cursor cursor = conflate ? new ConflatingCursor(sink) : new Cursor(sink);
+            long last = lastSequence;
+            long lastSeen = lastEventId == null ? 0 : sequenceOf(lastEventId);
+            if (lastEventId == null) {
+                cursor.next = last + 1;
+            } else if (lastSeen < 0 || lastSeen > last) {
+                // Not an id we issued (for example from before a restart): start live after a resync
+                cursor.next = last + 1;
+                cursor.resyncPending = true;
+            } else {
+                // Anything no longer in the ring is detected as an overflow on the first read
+                cursor.next = lastSeen + 1;
+            }
+
+            // Events published from here on are picked up by the drain loop
+            cursors.add(cursor);
+            sink.onDispose(() -> {
+                cursors.remove(cursor);
+                cursor.dispose();
+            });
+            sink.onRequest(n -> cursor.drain());
+        });
+    }
+
+    // The sequence an event id of this epoch carries, or -1 for any other id
+    private long sequenceOf(String eventId) {
+        String id = eventId.trim();
+        if (!id.startsWith(epoch) || id.length() <= epoch.length() + 1 || id.charAt(epoch.length()) != '-') {
+            return -1;
+        }
+        try {
+            long sequence = Long.parseLong(id.substring(epoch.length() + 1));
+            return sequence < 0 ? -1 : sequence;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Must hold the monitor
+    private Entry append(Change change) {
+        long sequence = lastAppended + 1;
+        ProductChangeEvent event = new ProductChangeEvent(change.type(), sequence,
+                System.currentTimeMillis(), change.id(), change.changes());
+        Entry entry = new Entry(event);
+        ring.set((int) sequence & mask, entry);
+        lastAppended = sequence;
+        return entry;
+    }
+
+    // Makes readable every event up to the first one not yet durable, in sequence order
+    private void durable(Entry entry) {
+        entry.durable = true;
+        long readable;
+        synchronized (this) {
+            readable = lastSequence;
+            while (readable < lastAppended) {
+                Entry next = ring.get((int) (readable + 1) & mask);
+                // One overwritten before it was readable is left to subscribers to find as an overflow
+                if (next.event().getVersion() == readable + 1 && !next.durable) {
+                    break;
+                }
+                readable++;
+            }
+            if (readable == lastSequence) {
+                return;
+            }
+            lastSequence = readable;
+        }
+        signalAll();
+    }
+
+    private void signalAll() {
+        for (Cursor cursor : cursors) {
+            cursor.signal();
+        }
+    }
+
+    // Computed before taking the lock so that diffing doesn't hold up other publishers
+    private record Change(ProductChangeEvent.Type type, String id, Map<String, Object> changes) {
+
+        static Change of(Product previous, Product current) {
+            ProductChangeEvent.Type type = ProductChangeEvent.typeOf(previous, current);
+            Map<String, Object> changes = ProductChangeEvent.changes(previous, current);
+            if (type == ProductChangeEvent.Type.UPDATED && changes.isEmpty()) {
+                return null;
+            }
+            return new Change(type, current != null ? current.getId() : previous.getId(), changes);
+        }
+    }
+
+    private final class Entry {
+        private final ProductChangeEvent event;
+        private volatile boolean durable;
+        private volatile byte[] frame;
+
+        Entry(ProductChangeEvent event) {
+            this.event = event;
+        }
+
+        ProductChangeEvent event() {
+            return event;
+        }
+
+        // Benign race: two subscribers may both encode, but every later one reuses the result
+        byte[] frame() {
+            byte[] encoded = frame;
+            if (encoded == null) {
+                encoded = encode(event);
+                frame = encoded;
+            }
+            return encoded;
+        }
+    }
+
+    private byte[] encode(ProductChangeEvent event) {
+        String json;
+        try {
+            json = objectMapper.writeValueAsString(event);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Cannot encode " + event, e);
+        }
+        // Compact JSON never contains a raw line break, so the data fits on one line
+        StringBuilder frame = new StringBuilder(json.length() + 48)
+                .append("id:").append(eventId(event.getVersion())).append('\n');
+        if (event.getType() == ProductChangeEvent.Type.RESYNC) {
+            frame.append("event:").append(RESYNC_EVENT).append('\n');
+        }
+        frame.append("data:").append(json).append("\n\n");
+        return frame.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private class Cursor {
+        protected final FluxSink<Entry> sink;
+        protected final Scheduler.Worker worker = Schedulers.parallel().createWorker();
+        private final AtomicInteger wip = new AtomicInteger();
+        // Set while a drain is scheduled on the worker, so a burst of writes schedules one
+        private final AtomicBoolean signalled = new AtomicBoolean();
+
+        // Only touched by the thread that currently owns the drain loop
+        protected long next;
+        protected boolean resyncPending;
+        protected boolean done;
+
+        Cursor(FluxSink<Entry> sink) {
+            this.sink = sink;
+        }
+
+        // Has the worker drain the cursor, off the thread that published
+        final void signal() {
+            if (signalled.compareAndSet(false, true)) {
+                worker.schedule(() -> {
+                    signalled.set(false);
+                    drain();
+                });
+            }
+        }
+
+        final void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                drainLoop();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        void drainLoop() {
+            while (!done && !sink.isCancelled() && sink.requestedFromDownstream() > 0) {
+                if (resyncPending) {
+                    resync();
+                    continue;
+                }
+                if (next > lastSequence) {
+                    break;
+                }
+                Entry entry = read();
+                if (entry != null) {
+                    sink.next(entry);
+                }
+            }
+        }
+
+        // Returns the entry at the cursor and advances it, or flags an overflow and returns null
+        protected final Entry read() {
+            Entry entry = ring.get((int) next & mask);
+            if (entry.event().getVersion() != next) {
+                // Overwritten by a newer event: this subscriber fell behind the ring
+                overflows.increment();
+                resyncPending = true;
+                // The ring holds the last events appended, some perhaps not readable yet
+                next = Math.max(next, lastAppended - mask);
+                return null;
+            }
+            next++;
+            return entry;
+        }
+
+        protected void resync() {
+            resyncPending = false;
+            boolean disconnect = overflowPolicy == OverflowPolicy.DISCONNECT;
+            // A disconnected client reloads the catalog, so it should come back from the head
+            long resumeFrom = disconnect ? lastSequence : next - 1;
+            sink.next(new Entry(ProductChangeEvent.resync(resumeFrom, System.currentTimeMillis())));
+            if (disconnect) {
+                done = true;
+                cursors.remove(this);
+                sink.complete();
+            }
+        }
+
+        void dispose() {
+            worker.dispose();
+        }
+    }
+
+    private final class ConflatingCursor extends Cursor {
+        // One pending entry per product id, in ascending version order so that the SSE ids a
+        // client sees keep increasing and Last-Event-ID resumption stays correct
+        private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+        private final Disposable flushTimer;
+        private volatile boolean flushing;
+
+        ConflatingCursor(FluxSink<Entry> sink) {
+            super(sink);
+            if (conflationInterval.isZero() || conflationInterval.isNegative()) {
+                this.flushing = true;
+                this.flushTimer = null;
+            } else {
+                long period = conflationInterval.toMillis();
+                this.flushTimer = worker.schedulePeriodically(() -> {
+                    flushing = true;
+                    drain();
+                }, period, period, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override
+        void drainLoop() {
+            while (!done && !sink.isCancelled()) {
+                // Always take everything published so far, demand or not, so this cursor
+                // never falls behind the ring
+                while (!resyncPending && next <= lastSequence) {
+                    Entry entry = read();
+                    if (entry != null) {
+                        conflate(entry);
+                    }
+                }
+                if (resyncPending) {
+                    if (sink.requestedFromDownstream() == 0) {
+                        return;
+                    }
+                    resync();
+                    continue;
+                }
+                if (flushing) {
+                    Iterator<Entry> iterator = pending.values().iterator();
+                    while (iterator.hasNext() && sink.requestedFromDownstream() > 0) {
+                        Entry entry = iterator.next();
+                        iterator.remove();
+                        sink.next(entry);
+                    }
+                    if (pending.isEmpty() && flushTimer != null) {
+                        flushing = false;
+                    }
+                }
+                return;
+            }
+        }
+
+        private void conflate(Entry entry) {
+            String id = entry.event().getId();
+            Entry previous = pending.remove(id);
+            // Unmerged entries keep their shared frame; merged ones are encoded for this subscriber
+            pending.put(id, previous == null
+                    ? entry
+                    : new Entry(previous.event().mergeWith(entry.event())));
+        }
+
+        @Override
+        protected void resync() {
+            // The client reloads the catalog on a resync, which supersedes anything pending
+            pending.clear();
+            super.resync();
+        }
+
+        @Override
+        void dispose() {
+            if (flushTimer != null) {
+                flushTimer.dispose();
+            }
+            super.dispose();
+        }
+    }
+}
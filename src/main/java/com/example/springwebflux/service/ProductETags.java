@@ -0,0 +1,63 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import org.springframework.http.MediaType;
+
+/**
+ * Strong ETags for product reads: a product's tag is its version and a listing's tag is the
+ * catalog version. Versions start again when the application restarts, so every tag also
+ * carries the start time and a tag issued before a restart never matches one issued after.
+ * <p>
+ * A strong tag stands for one representation, byte for byte, so every format but JSON, the
+ * default, adds its subtype ({@code "...-7+cbor"}); a cache holding the JSON body never
+ * answers a request for CBOR with it.
+ */
+public final class ProductETags {
+
+    private static final String EPOCH = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+
+    private ProductETags() {
+    }
+
+    public static String of(Product product) {
+        return of(product, MediaType.APPLICATION_JSON);
+    }
+
+    public static String of(Product product, MediaType format) {
+        return "\"" + EPOCH + "-" + product.getVersion() + suffix(format) + "\"";
+    }
+
+    public static String ofCatalog(long catalogVersion) {
+        return ofCatalog(catalogVersion, MediaType.APPLICATION_JSON);
+    }
+
+    public static String ofCatalog(long catalogVersion, MediaType format) {
+        return "\"" + EPOCH + "-c" + catalogVersion + suffix(format) + "\"";
+    }
+
+    private static String suffix(MediaType format) {
+        return MediaType.APPLICATION_JSON.equalsTypeAndSubtype(format) ? "" : "+" + format.getSubtype();
+    }
+
+    /**
+     * The product version an {@code If-Match} header asks for: null when any version will do
+     * (no header, or {@code *}), and -1, which no product has, for a tag this application did
+     * not issue. Only a single tag is understood; the tag of any format of the version will do.
+     */
+    public static Long requiredVersion(String ifMatch) {
+        if (ifMatch == null || ifMatch.isBlank() || ifMatch.trim().equals("*")) {
+            return null;
+        }
+        String tag = ifMatch.trim();
+        String prefix = "\"" + EPOCH + "-";
+        if (!tag.startsWith(prefix) || !tag.endsWith("\"") || tag.length() <= prefix.length() + 1) {
+            return -1L;
+        }
+        int end = tag.indexOf('+', prefix.length());
+        try {
+            return Long.parseLong(tag.substring(prefix.length(), end < 0 ? tag.length() - 1 : end));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+}
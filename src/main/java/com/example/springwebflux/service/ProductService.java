@@ -1,88 +1,483 @@
 package com.example.springwebflux.service;
 
+import com.example.springwebflux.exception.VersionConflictException;
+import com.example.springwebflux.model.BulkResult;
+import com.example.springwebflux.model.PricingRules;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.model.ProductPatch;
+import com.example.springwebflux.model.ProductStats;
+import com.example.springwebflux.model.RepricingProgress;
 import com.example.springwebflux.repository.ProductRepository;
+import com.example.springwebflux.repository.ProductWrite;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
 import org.springframework.stereotype.Service;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.function.Tuple2;
+import reactor.util.retry.Retry;
 
 import java.time.Duration;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ProductService {
+    // Listing pages are capped server-side whatever limit the client asks for
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    public static final int DEFAULT_SEARCH_LIMIT = 20;
+
+    // Bulk writes are applied to the repository in batches of this size (or whatever has
+    // arrived when the timeout elapses, so a slow upload still makes progress)
+    public static final int BULK_BATCH_SIZE = 500;
+    public static final Duration BULK_BATCH_TIMEOUT = Duration.ofMillis(100);
+
+    // A patch without If-Match is re-applied this many times when other writes keep winning
+    public static final int PATCH_RETRIES = 16;
+
+    // Products priced per task when repricing the catalog, and written back per batch
+    public static final int REPRICE_CHUNK_SIZE = 1000;
+
     private final ProductRepository productRepository;
 
     // For broadcasting product events to clients (for SSE)
-    private final Sinks.Many<Product> productSink = Sinks.many().multicast().onBackpressureBuffer();
-//    private final Sinks.Many<Product> productSink = Sinks.many().replay().limit(10);
+    private final ProductChangeFeed changeFeed;
+
+    // Updated on every write, so aggregates never need a pass over the repository
+    private final ProductStatistics statistics;
+
+    // Lookups by id, invalidated by every write to the repository
+    private final ProductCache productCache;
+
+    // Bumped once a write is visible to readers, so a listing read after reading the version
+    // is at least as new as that version
+    private final AtomicLong catalogVersion = new AtomicLong();
+
+    public ProductService(ProductRepository productRepository, ProductChangeFeed changeFeed) {
+        this(productRepository, changeFeed, new ProductStatistics(), new ProductCache());
+    }
 
     @Autowired
-    public ProductService(ProductRepository productRepository) {
+    public ProductService(ProductRepository productRepository, ProductChangeFeed changeFeed,
+                          ProductStatistics statistics, ProductCache productCache) {
         this.productRepository = productRepository;
+        this.changeFeed = changeFeed;
+        this.statistics = statistics;
+        this.productCache = productCache;
+        // Changes are numbered inside the repository's writes, so that those to one product
+        // are published in the order they were applied
+        productRepository.setWriteListener(changeFeed.andThen(productCache));
+        // One pass at startup over whatever the repository was seeded or recovered with
+        productRepository.findAll().doOnNext(product -> statistics.update(null, product)).blockLast();
     }
 
     public Flux<Product> getAllProducts() {
         return productRepository.findAll();
     }
 
+    public Mono<ProductPage> getProductsPage(String pageToken, Integer limit) {
+        if (limit != null && limit < 1) {
+            return Mono.error(new IllegalArgumentException("Page limit must be positive: " + limit));
+        }
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        String afterId;
+        try {
+            afterId = pageToken == null ? null : ProductPage.decodeToken(pageToken);
+        } catch (IllegalArgumentException e) {
+            return Mono.error(e);
+        }
+        // Fetch one extra product to find out whether another page follows
+        return productRepository.findPage(afterId, pageSize + 1)
+                .collectList()
+                .map(products -> {
+                    if (products.size() <= pageSize) {
+                        return new ProductPage(products, null);
+                    }
+                    List<Product> page = products.subList(0, pageSize);
+                    return new ProductPage(page, ProductPage.encodeToken(page.get(pageSize - 1).getId()));
+                });
+    }
+
+    /**
+     * Products ordered by id after {@code pageToken}, up to {@code limit} or else to the end of
+     * the catalog. For streamed listings, which are never held in memory whole and so need no
+     * page size cap; the token of any product received resumes after it.
+     */
+    public Flux<Product> getProductsAfter(String pageToken, Integer limit) {
+        if (limit != null && limit < 1) {
+            return Flux.error(new IllegalArgumentException("Page limit must be positive: " + limit));
+        }
+        String afterId;
+        try {
+            afterId = pageToken == null ? null : ProductPage.decodeToken(pageToken);
+        } catch (IllegalArgumentException e) {
+            return Flux.error(e);
+        }
+        return productRepository.findPage(afterId, limit == null ? Integer.MAX_VALUE : limit);
+    }
+
     public Flux<Product> getAllProductsSorted() {
-        return productRepository.findAll()
-                .sort(Comparator.comparing(Product::getName));
+        return productRepository.findAllOrderByName();
     }
 
     public Flux<Product> getProductsCheaperThan(double maxPrice) {
-        return productRepository.findAll()
-                .filter(product -> product.getPrice() < maxPrice);
+        return productRepository.findByPriceLessThan(maxPrice);
+    }
+
+    /**
+     * A page of the products priced below {@code maxPrice}, cheapest first, capped like
+     * {@link #getProductsPage}. The listing is ordered by price and then id, and its tokens
+     * carry both, so a page costs the same however deep it is.
+     */
+    public Mono<ProductPage> getProductsCheaperThanPage(double maxPrice, String pageToken, Integer limit) {
+        if (limit != null && limit < 1) {
+            return Mono.error(new IllegalArgumentException("Page limit must be positive: " + limit));
+        }
+        int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+        return cheaperThan(maxPrice, pageToken, pageSize + 1)
+                .collectList()
+                .map(products -> {
+                    if (products.size() <= pageSize) {
+                        return new ProductPage(products, null);
+                    }
+                    List<Product> page = products.subList(0, pageSize);
+                    Product last = page.get(pageSize - 1);
+                    return new ProductPage(page, ProductPage.encodeToken(last.getPrice(), last.getId()));
+                });
+    }
+
+    /**
+     * The products priced below {@code maxPrice} after {@code pageToken}, up to {@code limit}
+     * or else all of them; the streamed counterpart of {@link #getProductsCheaperThanPage}.
+     */
+    public Flux<Product> getProductsCheaperThanAfter(double maxPrice, String pageToken, Integer limit) {
+        if (limit != null && limit < 1) {
+            return Flux.error(new IllegalArgumentException("Page limit must be positive: " + limit));
+        }
+        return cheaperThan(maxPrice, pageToken, limit == null ? Integer.MAX_VALUE : limit);
+    }
+
+    private Flux<Product> cheaperThan(double maxPrice, String pageToken, int limit) {
+        if (pageToken == null) {
+            return productRepository.findPageByPriceLessThan(maxPrice, Double.NEGATIVE_INFINITY, null, limit);
+        }
+        double afterPrice;
+        String afterId;
+        try {
+            // A price never contains '/', so the first one ends it
+            String after = ProductPage.decodeToken(pageToken);
+            int separator = after.indexOf('/');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid page token: " + pageToken);
+            }
+            afterPrice = Double.parseDouble(after.substring(0, separator));
+            afterId = after.substring(separator + 1);
+        } catch (IllegalArgumentException e) {
+            // NumberFormatException included
+            return Flux.error(new IllegalArgumentException("Invalid page token: " + pageToken));
+        }
+        return productRepository.findPageByPriceLessThan(maxPrice, afterPrice, afterId, limit);
+    }
+
+    /**
+     * Products whose name matches every word of {@code query} (the words may be prefixes),
+     * best match first. Results are capped like listing pages.
+     */
+    public Flux<Product> searchProducts(String query, Integer limit) {
+        if (query == null || query.isBlank()) {
+            return Flux.error(new IllegalArgumentException("Search query cannot be empty"));
+        }
+        if (limit != null && limit < 1) {
+            return Flux.error(new IllegalArgumentException("Search limit must be positive: " + limit));
+        }
+        return productRepository.search(query, limit == null ? DEFAULT_SEARCH_LIMIT : Math.min(limit, MAX_PAGE_SIZE));
     }
 
     public Mono<Product> getProductById(String id) {
-        return productRepository.findById(id);
+        return productCache.get(id, productRepository::findById);
     }
 
     public Mono<Product> createProduct(Product product) {
         if (product.getId() == null || product.getId().isEmpty()) {
-            product.setId(UUID.randomUUID().toString());
-        }
-        return productRepository.save(product)
-                .doOnNext(p -> {
-                    // Use a more robust emission method
-                    Sinks.EmitResult result = productSink.tryEmitNext(p);
-                    if (result.isFailure()) {
-                        System.err.println("Failed to emit product: " + result);
+            product.setId(newId());
+        }
+        return productRepository.upsert(product)
+                .doOnNext(this::applied)
+                .map(ProductWrite::saved);
+    }
+
+    /**
+     * Creates or updates every product in the stream, writing them to the repository in batches.
+     * Results come back in request order, one per product; invalid products are rejected
+     * individually without failing the rest of the stream.
+     */
+    public Flux<BulkResult> saveProducts(Flux<Product> products) {
+        return products.index()
+                .bufferTimeout(BULK_BATCH_SIZE, BULK_BATCH_TIMEOUT, true)
+                .concatMap(this::saveBatch);
+    }
+
+    private Flux<BulkResult> saveBatch(List<Tuple2<Long, Product>> items) {
+        BulkResult[] results = new BulkResult[items.size()];
+        List<Product> batch = new ArrayList<>(items.size());
+        int[] positions = new int[items.size()];
+
+        for (int i = 0; i < items.size(); i++) {
+            Product product = items.get(i).getT2();
+            String error = validate(product);
+            if (error != null) {
+                results[i] = BulkResult.rejected(items.get(i).getT1(), product.getId(), error);
+                continue;
+            }
+            if (product.getId() == null || product.getId().isEmpty()) {
+                product.setId(newId());
+            }
+            positions[batch.size()] = i;
+            batch.add(product);
+        }
+        if (batch.isEmpty()) {
+            return Flux.fromArray(results);
+        }
+
+        return productRepository.saveAll(batch)
+                .collectList()
+                .flatMapMany(writes -> {
+                    for (int j = 0; j < writes.size(); j++) {
+                        ProductWrite write = writes.get(j);
+                        int position = positions[j];
+                        results[position] = BulkResult.saved(items.get(position).getT1(),
+                                write.saved().getId(), write.created());
                     }
+                    appliedAll(writes);
+                    return Flux.fromArray(results);
                 });
     }
 
+    private static String validate(Product product) {
+        if (product.getName() == null || product.getName().isEmpty()) {
+            return "Product name cannot be empty";
+        }
+        if (product.getPrice() < 0) {
+            return "Product price cannot be negative";
+        }
+        return null;
+    }
+
     public Mono<Product> updateProduct(String id, Product product) {
-        return productRepository.findById(id)
-                .flatMap(existingProduct -> {
-                    product.setId(id);
-                    return productRepository.save(product);
-                })
-                .doOnNext(p -> productSink.tryEmitNext(p));
+        return updateProduct(id, product, null);
+    }
+
+    /**
+     * Replaces the product, or emits nothing when there is none. Given an expected version the
+     * replacement is a compare-and-set, failing with {@link VersionConflictException} when
+     * another write got there first.
+     */
+    public Mono<Product> updateProduct(String id, Product product, Long expectedVersion) {
+        return Mono.defer(() -> {
+            product.setId(id);
+            // Existence (and the version) is checked atomically with the write
+            Mono<ProductWrite> write = expectedVersion == null
+                    ? productRepository.replace(product)
+                    : productRepository.saveIfVersion(product, expectedVersion);
+            return write.doOnNext(this::applied).map(ProductWrite::saved);
+        });
+    }
+
+    /**
+     * Changes the fields set in {@code patch}, or emits nothing when there is no such product.
+     * Given an expected version this is a single compare-and-set like
+     * {@link #updateProduct(String, Product, Long)}. Without one, a patch that loses a race is
+     * re-applied to the newer product, so concurrent patches all take effect without locking.
+     */
+    public Mono<Product> patchProduct(String id, ProductPatch patch, Long expectedVersion) {
+        String error = validate(patch);
+        if (error != null) {
+            return Mono.error(new IllegalArgumentException(error));
+        }
+        // Deferred so that every retry reads the product afresh
+        Mono<ProductWrite> write = Mono.defer(() -> productRepository.findById(id))
+                .flatMap(current -> {
+                    if (expectedVersion != null && current.getVersion() != expectedVersion) {
+                        return Mono.error(new VersionConflictException(current));
+                    }
+                    return productRepository.saveIfVersion(patch.applyTo(current), current.getVersion());
+                });
+        if (expectedVersion == null) {
+            write = write.retryWhen(Retry.max(PATCH_RETRIES)
+                    .filter(VersionConflictException.class::isInstance)
+                    .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+        }
+        return write.doOnNext(this::applied).map(ProductWrite::saved);
+    }
+
+    private static String validate(ProductPatch patch) {
+        if (patch.getName() != null && patch.getName().isEmpty()) {
+            return "Product name cannot be empty";
+        }
+        if (patch.getPrice() != null && patch.getPrice() < 0) {
+            return "Product price cannot be negative";
+        }
+        return null;
     }
 
     public Mono<Void> deleteProduct(String id) {
         return productRepository.findById(id)
-                .flatMap(existingProduct -> {
-                    productSink.tryEmitNext(existingProduct);  // Notify about deletion
-                    return productRepository.deleteById(id);
-                });
+                .flatMap(existingProduct -> productRepository.remove(id)
+                        // Notify about deletion once it has happened
+                        .doOnNext(removed -> applied(new ProductWrite(removed, null)))
+                        .then());
+    }
+
+    // Brings statistics and the catalog version up to date with a stored write; subscribers
+    // and the cache have heard of it from the repository
+    private void applied(ProductWrite write) {
+        statistics.update(write.previous(), write.saved());
+        catalogVersion.incrementAndGet();
+    }
+
+    // Same for a batch, with one catalog version
+    private void appliedAll(List<ProductWrite> writes) {
+        for (ProductWrite write : writes) {
+            statistics.update(write.previous(), write.saved());
+        }
+        catalogVersion.incrementAndGet();
+    }
+
+    /**
+     * Applies {@code rules} to the price of every product, streaming progress after each
+     * batch is written.
+     * <p>
+     * The catalog is walked in chunks of {@link #REPRICE_CHUNK_SIZE}, off the event loop, and
+     * the chunks are priced in parallel on {@link Schedulers#parallel()}, one rail per core.
+     * Each rail takes a new chunk only once it has finished its last one, so a rail that is
+     * held up never sits on work the others could do. Priced chunks are written back one
+     * batch at a time, each product only if it is unchanged since it was read: a concurrent
+     * edit always wins and that product is counted as skipped. Cancelling stops the reprice
+     * after the batch being written.
+     */
+    public Flux<RepricingProgress> repriceAll(PricingRules rules) {
+        String error = validate(rules);
+        if (error != null) {
+            return Flux.error(new IllegalArgumentException(error));
+        }
+        return productRepository.count().flatMapMany(total -> productRepository.findAll()
+                .subscribeOn(Schedulers.parallel())
+                .buffer(REPRICE_CHUNK_SIZE)
+                .parallel(Schedulers.DEFAULT_POOL_SIZE)
+                .runOn(Schedulers.parallel(), 1)
+                .map(chunk -> reprice(chunk, rules))
+                .sequential()
+                .concatMap(this::write, 1)
+                .scan(new RepricingProgress(total, 0, 0, 0), (progress, written) ->
+                        progress.plus(written.processed(), written.repriced(), written.skipped())));
+    }
+
+    // A priced chunk: how many products were looked at, and those whose price changes
+    private record PricedChunk(int size, List<Product> changed) {
+    }
+
+    private static PricedChunk reprice(List<Product> chunk, PricingRules rules) {
+        List<Product> changed = new ArrayList<>();
+        for (Product product : chunk) {
+            double price = rules.apply(product.getPrice());
+            if (Double.compare(price, product.getPrice()) != 0) {
+                Product repriced = new Product(product.getId(), product.getName(), price);
+                // The version it was priced from, checked when it is written
+                repriced.setVersion(product.getVersion());
+                changed.add(repriced);
+            }
+        }
+        return new PricedChunk(chunk.size(), changed);
+    }
+
+    // Outcome of writing back one priced chunk
+    private record Written(long processed, long repriced, long skipped) {
+    }
+
+    private Mono<Written> write(PricedChunk chunk) {
+        if (chunk.changed().isEmpty()) {
+            return Mono.just(new Written(chunk.size(), 0, 0));
+        }
+        return productRepository.saveAllIfUnchanged(chunk.changed())
+                .collectList()
+                .doOnNext(writes -> {
+                    if (!writes.isEmpty()) {
+                        appliedAll(writes);
+                    }
+                })
+                .map(writes -> new Written(chunk.size(), writes.size(), chunk.changed().size() - writes.size()));
+    }
+
+    private static String validate(PricingRules rules) {
+        if (!(rules.getPercentChange() > -100) || Double.isInfinite(rules.getPercentChange())) {
+            return "Percent change must be more than -100";
+        }
+        if ((rules.getMinPrice() != null && rules.getMinPrice() < 0)
+                || (rules.getMaxPrice() != null && rules.getMaxPrice() < 0)) {
+            return "Price bounds cannot be negative";
+        }
+        if (rules.getMinPrice() != null && rules.getMaxPrice() != null && rules.getMinPrice() > rules.getMaxPrice()) {
+            return "Minimum price cannot be above maximum price";
+        }
+        return null;
+    }
+
+    /**
+     * Version of the catalog as a whole, changed by every write and by every refresh of the
+     * orders that lag behind writes, so a listing read from stale orders never carries the
+     * tag of the fresh ones. Read it before reading the products it is meant to describe.
+     */
+    public long getCatalogVersion() {
+        // Both only grow, so the sum moves whenever either does
+        return catalogVersion.get() + productRepository.getOrderedVersion();
+    }
+
+    /**
+     * Catalog count and price statistics, read from running totals in O(1) of catalog size.
+     */
+    public Mono<ProductStats> getStats() {
+        return Mono.fromSupplier(statistics::snapshot);
+    }
+
+    // Random (version 4) UUID without contending on the SecureRandom behind UUID.randomUUID()
+    private static String newId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (random.nextLong() & ~0xF000L) | 0x4000L;
+        long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits).toString();
+    }
+
+    public Flux<ProductChangeEvent> getProductUpdates() {
+        return changeFeed.subscribe(null, false);
+    }
+
+    /**
+     * Product changes after {@code lastEventId}, for streams in a format other than SSE. Such
+     * a stream has no event ids: a client resumes with the id {@code <epoch>-<version>}, the
+     * epoch being {@link #getEventEpoch()}.
+     */
+    public Flux<ProductChangeEvent> getProductUpdates(String lastEventId, boolean conflate) {
+        return changeFeed.subscribe(lastEventId, conflate);
+    }
+
+    /**
+     * Encoded SSE frames of product changes, resuming after {@code lastEventId} when the client
+     * reconnects with a Last-Event-ID header. A conflating stream merges the changes to each
+     * product that the client has not received yet into a single event.
+     */
+    public Flux<DataBuffer> getProductUpdates(String lastEventId, boolean conflate, DataBufferFactory bufferFactory) {
+        return changeFeed.serverSentEvents(lastEventId, conflate, bufferFactory);
     }
 
-    public Flux<Product> getProductUpdates() {
-        return productSink.asFlux();
-        // Return a heartbeat signal combined with product updates
-//        return Flux.merge(
-//                // Regular product updates
-//                productSink.asFlux(),
-//                // Heartbeat every 15 seconds to keep connection alive
-//                Flux.interval(Duration.ofSeconds(15))
-//                        .map(i -> new Product("heartbeat", "Connection alive", 0))
-//        );
+    public String getEventEpoch() {
+        return changeFeed.getEpoch();
     }
 }
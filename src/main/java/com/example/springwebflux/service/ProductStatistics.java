@@ -0,0 +1,148 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductStats;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Catalog statistics kept up to date on every write, so reading them never touches the
+ * repository: a running count, mean and sum of squared deviations of the prices (Welford's
+ * method, which unlike sums of prices and their squares does not lose the variance to
+ * cancellation when prices are large and close together), a {@link PriceSketch} for
+ * percentiles (and for min/max, which are therefore accurate to the sketch's relative
+ * accuracy), and counts per fixed price bucket.
+ * <p>
+ * Every write is applied as "remove the product it replaced, add the new one". The running
+ * moments are updated under a short lock; the sketch and buckets commute and need no
+ * coordination, so a snapshot taken during a write may include only part of it.
+ */
+@Component
+public class ProductStatistics {
+
+    public static final double[] DEFAULT_PRICE_BUCKETS = {10, 50, 100, 500, 1000};
+
+    private static final double SKETCH_ACCURACY = 0.01;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    // Count, mean and sum of squared deviations from the mean, guarded by momentsLock
+    private final Object momentsLock = new Object();
+    private long count;
+    private double mean;
+    private double squaredDeviations;
+    private final PriceSketch sketch = new PriceSketch(SKETCH_ACCURACY);
+
+    // Bucket i holds prices from bounds[i - 1] up to bounds[i]; the first and last are open
+    private final double[] bucketBounds;
+    private final AtomicLongArray buckets;
+
+    public ProductStatistics() {
+        this(DEFAULT_PRICE_BUCKETS);
+    }
+
+    @Autowired
+    public ProductStatistics(@Value("${products.stats.price-buckets:10,50,100,500,1000}") double[] bucketBounds) {
+        for (int i = 1; i < bucketBounds.length; i++) {
+            if (!(bucketBounds[i] > bucketBounds[i - 1])) {
+                throw new IllegalArgumentException("Price buckets must be ascending: " + Arrays.toString(bucketBounds));
+            }
+        }
+        this.bucketBounds = bucketBounds.clone();
+        this.buckets = new AtomicLongArray(bucketBounds.length + 1);
+    }
+
+    /**
+     * Applies one write: {@code previous} is the product it replaced (null for a creation) and
+     * {@code current} the product stored (null for a delete).
+     */
+    public void update(Product previous, Product current) {
+        synchronized (momentsLock) {
+            if (previous != null) {
+                removeMoment(previous.getPrice());
+            }
+            if (current != null) {
+                addMoment(current.getPrice());
+            }
+        }
+        if (previous != null) {
+            apply(previous.getPrice(), -1);
+        }
+        if (current != null) {
+            apply(current.getPrice(), 1);
+        }
+    }
+
+    private void addMoment(double price) {
+        count++;
+        double deviation = price - mean;
+        mean += deviation / count;
+        squaredDeviations += deviation * (price - mean);
+    }
+
+    // Welford's update run backwards
+    private void removeMoment(double price) {
+        if (count <= 1) {
+            count = 0;
+            mean = 0;
+            squaredDeviations = 0;
+            return;
+        }
+        count--;
+        double deviation = price - mean;
+        mean -= deviation / count;
+        squaredDeviations -= deviation * (price - mean);
+    }
+
+    private void apply(double price, int delta) {
+        if (delta > 0) {
+            sketch.add(price);
+        } else {
+            sketch.remove(price);
+        }
+        buckets.addAndGet(bucket(price), delta);
+    }
+
+    private int bucket(double price) {
+        int position = Arrays.binarySearch(bucketBounds, price);
+        // A price equal to a bound starts the bucket above it
+        return position >= 0 ? position + 1 : -(position + 1);
+    }
+
+    public ProductStats snapshot() {
+        long n;
+        double average;
+        double deviations;
+        synchronized (momentsLock) {
+            n = count;
+            average = mean;
+            deviations = squaredDeviations;
+        }
+        List<ProductStats.PriceBucket> histogram = new ArrayList<>(buckets.length());
+        for (int i = 0; i < buckets.length(); i++) {
+            histogram.add(new ProductStats.PriceBucket(
+                    i == 0 ? null : bucketBounds[i - 1],
+                    i == bucketBounds.length ? null : bucketBounds[i],
+                    buckets.get(i)));
+        }
+        if (n <= 0) {
+            return new ProductStats(0, null, null, null, null, Map.of(), histogram);
+        }
+
+        // Rounding can leave a catalog of equal prices a hair below zero
+        double variance = Math.max(0, deviations / n);
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        for (double p : PERCENTILES) {
+            percentiles.put("p" + (int) Math.round(p * 100), sketch.quantile(p));
+        }
+        return new ProductStats(n, average, Math.sqrt(variance), sketch.quantile(0), sketch.quantile(1),
+                percentiles, histogram);
+    }
+}
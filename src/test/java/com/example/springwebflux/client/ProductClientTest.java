@@ -0,0 +1,136 @@
+package com.example.springwebflux.client;
+
+import com.example.springwebflux.model.Product;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerResponse;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class ProductClientTest {
+
+    private static final String LAPTOP = "{\"id\":\"1\",\"name\":\"Laptop\",\"price\":999.99}";
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final AtomicInteger requests = new AtomicInteger();
+
+    // Answers the nth request (from 1)
+    private volatile BiFunction<Integer, HttpServerResponse, Publisher<Void>> server;
+
+    private DisposableServer disposableServer;
+    private ProductClient client;
+
+    @BeforeEach
+    public void setUp() {
+        disposableServer = HttpServer.create()
+                .port(0)
+                .handle((request, response) -> server.apply(requests.incrementAndGet(), response))
+                .bindNow();
+        client = ProductClient.builder("http://localhost:" + disposableServer.port())
+                .meterRegistry(registry)
+                .maxConnections(8)
+                .attemptTimeout(Duration.ofMillis(500))
+                .retries(2, Duration.ofMillis(1), Duration.ofMillis(5))
+                .hedging(Duration.ofMillis(50), 1.0)
+                .build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        client.close();
+        disposableServer.disposeNow();
+    }
+
+    @Test
+    public void testReadIsRetriedAfterServiceUnavailable() {
+        server = (n, response) -> n == 1 ? response.status(503).send() : laptop(response);
+
+        StepVerifier.create(client.getProductById("1").map(Product::getName))
+                .expectNext("Laptop")
+                .verifyComplete();
+
+        assertEquals(2, requests.get());
+        assertEquals(1, registry.get("products.client.retries").tag("operation", "getProductById").counter().count());
+        assertEquals(1, registry.get("products.client.requests").tag("outcome", "SUCCESS").timer().count());
+    }
+
+    @Test
+    public void testCreateIsNotRetried() {
+        server = (n, response) -> response.status(503).send();
+
+        StepVerifier.create(client.createProduct(new Product(null, "Laptop", 999.99)))
+                .expectError(WebClientResponseException.ServiceUnavailable.class)
+                .verify();
+
+        assertEquals(1, requests.get());
+        assertEquals(1, registry.get("products.client.requests").tag("outcome", "SERVER_ERROR").timer().count());
+    }
+
+    @Test
+    public void testMissingProductIsEmpty() {
+        server = (n, response) -> response.status(404).send();
+
+        StepVerifier.create(client.getProductById("missing"))
+                .verifyComplete();
+
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testCallFailsAtItsDeadline() {
+        server = (n, response) -> Mono.delay(Duration.ofSeconds(5)).thenEmpty(laptop(response));
+
+        StepVerifier.create(client.withDeadline(Duration.ofMillis(200)).updateProduct("1", new Product()))
+                .expectError(TimeoutException.class)
+                .verify(Duration.ofSeconds(2));
+
+        assertEquals(1, registry.get("products.client.requests").tag("outcome", "TIMEOUT").timer().count());
+    }
+
+    @Test
+    public void testSlowReadIsHedged() {
+        server = (n, response) -> n == 1
+                ? Mono.delay(Duration.ofSeconds(5)).thenEmpty(laptop(response))
+                : laptop(response);
+
+        StepVerifier.create(client.getProductById("1").map(Product::getName))
+                .expectNext("Laptop")
+                .verifyComplete();
+
+        assertEquals(2, requests.get());
+        assertEquals(1, registry.get("products.client.hedges").tag("result", "won").counter().count());
+    }
+
+    @Test
+    public void testPoolMetricsArePublished() {
+        server = (n, response) -> laptop(response);
+
+        StepVerifier.create(client.getProductById("1")).expectNextCount(1).verifyComplete();
+        // Gauges must keep reading the pool after a collection
+        System.gc();
+
+        assertEquals(8, registry.get("products.client.pool.connections.max").gauge().value());
+        assertEquals(0, registry.get("products.client.pool.pending").gauge().value());
+
+        client.close();
+        assertNull(registry.find("products.client.pool.connections.max").gauge());
+    }
+
+    private static Publisher<Void> laptop(HttpServerResponse response) {
+        return response.header("Content-Type", "application/json").sendString(Mono.just(LAPTOP));
+    }
+}
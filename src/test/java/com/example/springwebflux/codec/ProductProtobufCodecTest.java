@@ -0,0 +1,93 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ProductProtobufCodecTest {
+
+    private static final ResolvableType PRODUCT = ResolvableType.forClass(Product.class);
+
+    private final DefaultDataBufferFactory bufferFactory = DefaultDataBufferFactory.sharedInstance;
+    private final ProductProtobufEncoder encoder = new ProductProtobufEncoder();
+    private final ProductProtobufDecoder decoder = new ProductProtobufDecoder();
+
+    @Test
+    public void testSingleProductMatchesTheSchema() {
+        DataBuffer buffer = encoder.encodeValue(new Product("1", "Pen", 2.5), bufferFactory, PRODUCT,
+                ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap());
+
+        // id = 1, name = 2 (length-delimited), price = 3 (fixed64, little-endian)
+        assertArrayEquals(HexFormat.of().parseHex("0a0131" + "120350656e" + "190000000000000440"), bytes(buffer));
+    }
+
+    @Test
+    public void testDefaultValuesAreLeftOut() {
+        DataBuffer buffer = encoder.encodeValue(new Product(null, "", 0.0), bufferFactory, PRODUCT,
+                ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap());
+
+        assertEquals(0, buffer.readableByteCount());
+    }
+
+    @Test
+    public void testStreamSplitAcrossBuffers() {
+        List<Product> products = List.of(new Product("1", "Pen", 2.5),
+                new Product("2", "x".repeat(300), 1999.99), new Product("3", "Ünïcode", 0.01));
+        byte[] encoded = bytes(DataBufferUtils.join(encoder.encode(Flux.fromIterable(products), bufferFactory,
+                PRODUCT, ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap())).block());
+
+        // One byte per buffer, so every length prefix and field straddles buffers
+        List<DataBuffer> chunks = new ArrayList<>();
+        for (byte b : encoded) {
+            chunks.add(bufferFactory.wrap(new byte[]{b}));
+        }
+        StepVerifier.create(decoder.decode(Flux.fromIterable(chunks), PRODUCT,
+                        ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap()))
+                .expectNextSequence(products)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() {
+        // field 4 varint 150, then field 5 length-delimited "ab", around a known name field
+        byte[] message = HexFormat.of().parseHex("209601" + "120350656e" + "2a026162");
+
+        StepVerifier.create(decoder.decodeToMono(Mono.just(bufferFactory.wrap(message)), PRODUCT,
+                        ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap()))
+                .expectNext(new Product(null, "Pen", 0.0))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testTruncatedStreamFails() {
+        byte[] encoded = bytes(encoder.encode(Flux.just(new Product("1", "Pen", 2.5)), bufferFactory, PRODUCT,
+                ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap()).blockFirst());
+        byte[] truncated = Arrays.copyOf(encoded, encoded.length - 1);
+
+        StepVerifier.create(decoder.decode(Flux.just(bufferFactory.wrap(truncated)), PRODUCT,
+                        ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap()))
+                .verifyError(DecodingException.class);
+    }
+
+    private static byte[] bytes(DataBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableByteCount()];
+        buffer.read(bytes);
+        return bytes;
+    }
+}
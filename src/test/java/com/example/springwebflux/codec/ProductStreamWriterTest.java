@@ -0,0 +1,69 @@
+package com.example.springwebflux.codec;
+
+import com.example.springwebflux.model.Product;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.http.server.reactive.ServerHttpResponseDecorator;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProductStreamWriterTest {
+
+    private static final ResolvableType PRODUCT = ResolvableType.forClass(Product.class);
+
+    private final ProductStreamWriter writer = new ProductStreamWriter();
+
+    @Test
+    public void testOnlyWritesLineDelimitedProducts() {
+        assertTrue(writer.canWrite(PRODUCT, MediaType.APPLICATION_NDJSON));
+        assertTrue(writer.canWrite(PRODUCT, ProductMediaTypes.APPLICATION_STREAM_JSON));
+        assertFalse(writer.canWrite(PRODUCT, MediaType.APPLICATION_JSON));
+        assertFalse(writer.canWrite(PRODUCT, null));
+        assertFalse(writer.canWrite(ResolvableType.forClass(String.class), MediaType.APPLICATION_NDJSON));
+    }
+
+    @Test
+    public void testWritesOneLinePerProductInOneContinuousWrite() {
+        MockServerHttpResponse response = new MockServerHttpResponse();
+        FlushCountingResponse counting = new FlushCountingResponse(response);
+
+        StepVerifier.create(writer.write(Flux.just(new Product("1", "Pen", 2.5), new Product("2", "Ink", 7.0)),
+                        PRODUCT, PRODUCT, MediaType.APPLICATION_NDJSON, MockServerHttpRequest.get("/").build(),
+                        counting, Collections.emptyMap()))
+                .verifyComplete();
+
+        assertEquals(0, counting.flushedWrites);
+        assertEquals(MediaType.APPLICATION_NDJSON, response.getHeaders().getContentType());
+        StepVerifier.create(response.getBodyAsString())
+                .expectNext("{\"id\":\"1\",\"name\":\"Pen\",\"price\":2.5}\n{\"id\":\"2\",\"name\":\"Ink\",\"price\":7.0}\n")
+                .verifyComplete();
+    }
+
+    private static final class FlushCountingResponse extends ServerHttpResponseDecorator {
+
+        int flushedWrites;
+
+        FlushCountingResponse(ServerHttpResponse delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {
+            flushedWrites++;
+            return super.writeAndFlushWith(body);
+        }
+    }
+}
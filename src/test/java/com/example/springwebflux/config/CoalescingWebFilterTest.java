@@ -0,0 +1,88 @@
+package com.example.springwebflux.config;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class CoalescingWebFilterTest {
+
+    private final CoalescingWebFilter filter = new CoalescingWebFilter(4, Duration.ofSeconds(5));
+
+    @Test
+    public void testStreamedBodyIsWrittenInJoinedChunks() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/"));
+        WebFilterChain chain = filtered -> filtered.getResponse().writeWith(Flux.fromStream(
+                IntStream.range(0, 10).mapToObj(i -> buffer(String.valueOf(i)))));
+
+        StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+
+        StepVerifier.create(exchange.getResponse().getBody().map(CoalescingWebFilterTest::text))
+                .expectNext("0123", "4567", "89")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSlowBodyIsNotHeldBackPastTheDelay() {
+        CoalescingWebFilter quick = new CoalescingWebFilter(4, Duration.ofMillis(20));
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/"));
+        WebFilterChain chain = filtered -> filtered.getResponse().writeWith(
+                Flux.concat(Mono.just(buffer("a")), Mono.delay(Duration.ofMillis(200)).map(tick -> buffer("b"))));
+
+        StepVerifier.create(quick.filter(exchange, chain)).verifyComplete();
+
+        StepVerifier.create(exchange.getResponse().getBody().map(CoalescingWebFilterTest::text))
+                .expectNext("a", "b")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testLineDelimitedStreamIsLeftAlone() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/"));
+        WebFilterChain chain = filtered -> {
+            filtered.getResponse().getHeaders().setContentType(MediaType.APPLICATION_NDJSON);
+            return filtered.getResponse().writeWith(Flux.just("{}\n", "{}\n", "{}\n").map(this::buffer));
+        };
+
+        StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+
+        StepVerifier.create(exchange.getResponse().getBody().map(CoalescingWebFilterTest::text))
+                .expectNext("{}\n", "{}\n", "{}\n")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testFlushedStreamIsLeftAlone() {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/"));
+        WebFilterChain chain = filtered -> filtered.getResponse().writeAndFlushWith(
+                Flux.just(List.of("x"), List.of("y")).map(frame -> Flux.fromIterable(frame).map(this::buffer)));
+
+        StepVerifier.create(filter.filter(exchange, chain)).verifyComplete();
+
+        StepVerifier.create(exchange.getResponse().getBody().map(CoalescingWebFilterTest::text))
+                .expectNext("x", "y")
+                .verifyComplete();
+    }
+
+    private DataBuffer buffer(String text) {
+        return DefaultDataBufferFactory.sharedInstance.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(DataBuffer buffer) {
+        String text = buffer.toString(StandardCharsets.UTF_8);
+        DataBufferUtils.release(buffer);
+        return text;
+    }
+}
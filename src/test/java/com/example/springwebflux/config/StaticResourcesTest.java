@@ -0,0 +1,85 @@
+package com.example.springwebflux.config;
+
+import com.example.springwebflux.service.ProductService;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.util.DigestUtils;
+
+import java.io.IOException;
+
+// The .br and .gz variants are written by the build before tests run
+@WebFluxTest
+public class StaticResourcesTest {
+
+    @Autowired
+    private WebTestClient webTestClient;
+
+    @MockBean
+    private ProductService productService;
+
+    @Test
+    public void testPrecompressedVariantServedToClientThatAcceptsIt() throws IOException {
+        webTestClient.get()
+                .uri("/index.html")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate, br")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "br")
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .expectBody(byte[].class).isEqualTo(read("static/index.html.br"));
+
+        webTestClient.get()
+                .uri("/index.html")
+                .header(HttpHeaders.ACCEPT_ENCODING, "gzip")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+                .expectBody(byte[].class).isEqualTo(read("static/index.html.gz"));
+    }
+
+    @Test
+    public void testResourceServedAsIsWithoutAcceptEncoding() throws IOException {
+        webTestClient.get()
+                .uri("/index.html")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().doesNotExist(HttpHeaders.CONTENT_ENCODING)
+                .expectHeader().valueEquals(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .expectBody(byte[].class).isEqualTo(read("static/index.html"));
+    }
+
+    @Test
+    public void testContentHashedPathResolved() throws IOException {
+        String hash = DigestUtils.md5DigestAsHex(read("static/index.html"));
+
+        webTestClient.get()
+                .uri("/index-" + hash + ".html")
+                .header(HttpHeaders.ACCEPT_ENCODING, "br")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "br")
+                .expectHeader().valueEquals(HttpHeaders.CACHE_CONTROL, "max-age=31536000, public, immutable");
+
+        // Requested by its plain name again, it is not cached for good
+        webTestClient.get()
+                .uri("/index.html")
+                .header(HttpHeaders.ACCEPT_ENCODING, "br")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+        webTestClient.get()
+                .uri("/index-0123456789abcdef0123456789abcdef.html")
+                .exchange()
+                .expectStatus().isNotFound();
+    }
+
+    private static byte[] read(String path) throws IOException {
+        return new ClassPathResource(path).getContentAsByteArray();
+    }
+}
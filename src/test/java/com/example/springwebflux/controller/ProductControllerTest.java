@@ -1,17 +1,41 @@
 package com.example.springwebflux.controller;
 
+import com.example.springwebflux.codec.ProductMediaTypes;
+import com.example.springwebflux.codec.ProductProtobufDecoder;
+import com.example.springwebflux.exception.VersionConflictException;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.service.ProductChangeFeed;
+import com.example.springwebflux.service.ProductETags;
 import com.example.springwebflux.service.ProductService;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
+import com.fasterxml.jackson.dataformat.smile.databind.SmileMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @WebFluxTest(ProductController.class)
@@ -28,19 +52,81 @@ public class ProductControllerTest {
         Product product1 = new Product("1", "Test Product 1", 99.99);
         Product product2 = new Product("2", "Test Product 2", 199.99);
 
-        when(productService.getAllProducts())
-                .thenReturn(Flux.just(product1, product2));
+        when(productService.getProductsPage(null, null))
+                .thenReturn(Mono.just(new ProductPage(List.of(product1, product2), null)));
 
         webTestClient.get()
                 .uri("/api/products")
                 .accept(MediaType.APPLICATION_JSON)
                 .exchange()
                 .expectStatus().isOk()
+                .expectHeader().doesNotExist(ProductPage.NEXT_PAGE_HEADER)
                 .expectBodyList(Product.class)
                 .hasSize(2)
                 .contains(product1, product2);
     }
 
+    @Test
+    public void testStreamAllProductsAsNdjson() {
+        Product product1 = new Product("1", "Test Product 1", 99.99);
+        Product product2 = new Product("2", "Test Product 2", 199.99);
+
+        when(productService.getProductsAfter(null, null)).thenReturn(Flux.just(product1, product2));
+
+        webTestClient.get()
+                .uri("/api/products")
+                .accept(MediaType.APPLICATION_NDJSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_NDJSON)
+                .expectHeader().doesNotExist(ProductPage.NEXT_PAGE_HEADER)
+                .expectBody(String.class)
+                .isEqualTo("{\"id\":\"1\",\"name\":\"Test Product 1\",\"price\":99.99}\n"
+                        + "{\"id\":\"2\",\"name\":\"Test Product 2\",\"price\":199.99}\n");
+
+        verify(productService, never()).getProductsPage(any(), any());
+    }
+
+    @Test
+    public void testGetProductsPage() {
+        Product product = new Product("2", "Test Product 2", 199.99);
+        String token = ProductPage.encodeToken("1");
+
+        when(productService.getProductsPage(token, 1))
+                .thenReturn(Mono.just(new ProductPage(List.of(product), ProductPage.encodeToken("2"))));
+
+        webTestClient.get()
+                .uri("/api/products?after={after}&limit=1", token)
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(ProductPage.NEXT_PAGE_HEADER, ProductPage.encodeToken("2"))
+                .expectBodyList(Product.class)
+                .hasSize(1)
+                .contains(product);
+    }
+
+    @Test
+    public void testGetProductsCheaperThanIsPaged() {
+        Product product = new Product("5", "Mouse", 49.99);
+        String next = ProductPage.encodeToken(49.99, "5");
+
+        when(productService.getProductsCheaperThanPage(100.0, null, 1))
+                .thenReturn(Mono.just(new ProductPage(List.of(product), next)));
+
+        webTestClient.get()
+                .uri("/api/products?cheaperThan=100&limit=1")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals(ProductPage.NEXT_PAGE_HEADER, next)
+                .expectBodyList(Product.class)
+                .hasSize(1)
+                .contains(product);
+
+        verify(productService, never()).getProductsCheaperThan(anyDouble());
+    }
+
     @Test
     public void testGetProductById() {
         Product product = new Product("1", "Test Product", 99.99);
@@ -86,4 +172,265 @@ public class ProductControllerTest {
                 .expectBody(Product.class)
                 .isEqualTo(savedProduct);
     }
+
+    @Test
+    public void testStreamProductsWritesEncodedFrames() {
+        String frame = "id:lq2n4x-7\ndata:{\"type\":\"DELETED\",\"version\":7,\"id\":\"1\"}\n\n";
+
+        when(productService.getProductUpdates(eq("lq2n4x-6"), eq(false), any()))
+                .thenReturn(Flux.just(DefaultDataBufferFactory.sharedInstance.wrap(frame.getBytes(StandardCharsets.UTF_8))));
+
+        webTestClient.get()
+                .uri("/api/products/events")
+                .header(ProductChangeFeed.LAST_EVENT_ID_HEADER, "lq2n4x-6")
+                .accept(MediaType.TEXT_EVENT_STREAM)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM)
+                .expectBody(String.class)
+                .isEqualTo(frame);
+    }
+
+    @Test
+    public void testStreamProductsAsSmile() throws IOException {
+        ProductChangeEvent event = new ProductChangeEvent(ProductChangeEvent.Type.UPDATED, 7, 1000, "1",
+                Map.of("price", 79.99));
+
+        when(productService.getProductUpdates("lq2n4x-6", true)).thenReturn(Flux.just(event));
+        when(productService.getEventEpoch()).thenReturn("lq2n4x");
+
+        byte[] body = webTestClient.get()
+                .uri("/api/products/events?conflate=true")
+                .header(ProductChangeFeed.LAST_EVENT_ID_HEADER, "lq2n4x-6")
+                .accept(ProductMediaTypes.APPLICATION_STREAM_SMILE)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(ProductMediaTypes.APPLICATION_STREAM_SMILE)
+                .expectHeader().valueEquals(ProductChangeFeed.EVENT_EPOCH_HEADER, "lq2n4x")
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        List<ProductChangeEvent> events = new SmileMapper().readerFor(ProductChangeEvent.class)
+                .<ProductChangeEvent>readValues(body).readAll();
+        assertEquals(1, events.size());
+        assertEquals(ProductChangeEvent.Type.UPDATED, events.get(0).getType());
+        assertEquals(7, events.get(0).getVersion());
+        assertEquals("1", events.get(0).getId());
+        assertEquals(Map.of("price", 79.99), events.get(0).getChanges());
+    }
+
+    @Test
+    public void testStreamProductsDefaultsToServerSentEvents() {
+        when(productService.getProductUpdates(eq(null), eq(false), any())).thenReturn(Flux.empty());
+
+        webTestClient.get()
+                .uri("/api/products/events")
+                .accept(MediaType.ALL)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM);
+    }
+
+    @Test
+    public void testGetProductByIdAsCbor() throws IOException {
+        Product product = new Product("1", "Test Product", 99.99);
+
+        when(productService.getProductById("1")).thenReturn(Mono.just(product));
+
+        byte[] body = webTestClient.get()
+                .uri("/api/products/1")
+                .accept(MediaType.APPLICATION_CBOR)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_CBOR)
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        assertEquals(product, new CBORMapper().readValue(body, Product.class));
+    }
+
+    @Test
+    public void testGetAllProductsAsCborIsAnIndefiniteArrayWithItsOwnETag() throws IOException {
+        Product product1 = new Product("1", "Test Product 1", 99.99);
+        Product product2 = new Product("2", "Test Product 2", 199.99);
+        when(productService.getCatalogVersion()).thenReturn(3L);
+        when(productService.getProductsPage(null, null))
+                .thenReturn(Mono.just(new ProductPage(List.of(product1, product2), null)));
+
+        byte[] body = webTestClient.get()
+                .uri("/api/products")
+                .accept(MediaType.APPLICATION_CBOR)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_CBOR)
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT)
+                .expectHeader().valueEquals(HttpHeaders.ETAG, ProductETags.ofCatalog(3, MediaType.APPLICATION_CBOR))
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        // Written element by element: no length up front, a break at the end
+        assertEquals((byte) 0x9f, body[0]);
+        assertEquals((byte) 0xff, body[body.length - 1]);
+        assertEquals(List.of(product1, product2), List.of(new CBORMapper().readValue(body, Product[].class)));
+
+        // The JSON tag names another representation, so it does not revalidate the CBOR one
+        webTestClient.get()
+                .uri("/api/products")
+                .accept(MediaType.APPLICATION_CBOR)
+                .header(HttpHeaders.IF_NONE_MATCH, ProductETags.ofCatalog(3))
+                .exchange()
+                .expectStatus().isOk();
+        webTestClient.get()
+                .uri("/api/products")
+                .accept(MediaType.APPLICATION_CBOR)
+                .header(HttpHeaders.IF_NONE_MATCH, ProductETags.ofCatalog(3, MediaType.APPLICATION_CBOR))
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+    }
+
+    @Test
+    public void testIfMatchAcceptsTheTagOfAnyFormat() {
+        Product product = new Product("1", "Test Product", 99.99);
+        product.setVersion(9);
+
+        assertEquals(9L, ProductETags.requiredVersion(ProductETags.of(product, MediaType.APPLICATION_CBOR)));
+        assertEquals(9L, ProductETags.requiredVersion(ProductETags.of(product)));
+    }
+
+    @Test
+    public void testGetAllProductsAsProtobuf() {
+        Product product1 = new Product("1", "Test Product 1", 99.99);
+        Product product2 = new Product("2", "Test Product 2", 199.99);
+
+        when(productService.getProductsPage(null, null))
+                .thenReturn(Mono.just(new ProductPage(List.of(product1, product2), null)));
+
+        byte[] body = webTestClient.get()
+                .uri("/api/products")
+                .accept(ProductMediaTypes.APPLICATION_PROTOBUF)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(ProductMediaTypes.APPLICATION_PROTOBUF)
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        List<Product> products = new ProductProtobufDecoder()
+                .decode(Mono.just(DefaultDataBufferFactory.sharedInstance.wrap(body)),
+                        ResolvableType.forClass(Product.class), ProductMediaTypes.APPLICATION_PROTOBUF,
+                        Collections.emptyMap())
+                .collectList()
+                .block();
+        assertEquals(List.of(product1, product2), products);
+    }
+
+    @Test
+    public void testConditionalGetProductById() {
+        Product product = new Product("1", "Test Product", 99.99);
+        product.setVersion(7);
+        String eTag = ProductETags.of(product);
+
+        when(productService.getProductById("1"))
+                .thenReturn(Mono.just(product));
+
+        webTestClient.get()
+                .uri("/api/products/1")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("ETag", eTag);
+
+        webTestClient.get()
+                .uri("/api/products/1")
+                .header("If-None-Match", eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", eTag)
+                .expectBody().isEmpty();
+    }
+
+    @Test
+    public void testETagIsExposedToCrossOriginClients() {
+        when(productService.getProductById("1")).thenReturn(Mono.just(new Product("1", "Test Product", 99.99)));
+
+        webTestClient.get()
+                .uri("http://localhost:8080/api/products/1")
+                .header(HttpHeaders.ORIGIN, "http://localhost:3000")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().value(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS,
+                        exposed -> assertTrue(exposed.contains(HttpHeaders.ETAG), exposed));
+    }
+
+    @Test
+    public void testPatchIsAllowedForCrossOriginClients() {
+        webTestClient.options()
+                .uri("http://localhost:8080/api/products/1")
+                .header(HttpHeaders.ORIGIN, "http://localhost:3000")
+                .header(HttpHeaders.ACCESS_CONTROL_REQUEST_METHOD, "PATCH")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().value(HttpHeaders.ACCESS_CONTROL_ALLOW_METHODS,
+                        allowed -> assertTrue(allowed.contains("PATCH"), allowed));
+    }
+
+    @Test
+    public void testConditionalGetAllProductsSkipsTheRead() {
+        when(productService.getCatalogVersion()).thenReturn(3L);
+        String eTag = ProductETags.ofCatalog(3);
+
+        webTestClient.get()
+                .uri("/api/products")
+                .header("If-None-Match", eTag)
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", eTag)
+                .expectBody().isEmpty();
+        verify(productService, never()).getProductsPage(any(), any());
+
+        // A write moves the catalog on, so the old tag no longer matches
+        when(productService.getCatalogVersion()).thenReturn(4L);
+        when(productService.getProductsPage(null, null))
+                .thenReturn(Mono.just(new ProductPage(List.of(), null)));
+        webTestClient.get()
+                .uri("/api/products")
+                .header("If-None-Match", eTag)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("ETag", ProductETags.ofCatalog(4));
+    }
+
+    @Test
+    public void testUpdateProductIfMatch() {
+        Product current = new Product("1", "Test Product", 99.99);
+        current.setVersion(9);
+        Product updated = new Product("1", "Test Product", 79.99);
+        updated.setVersion(10);
+        when(productService.updateProduct(eq("1"), any(Product.class), eq(9L)))
+                .thenReturn(Mono.just(updated));
+        when(productService.updateProduct(eq("1"), any(Product.class), eq(-1L)))
+                .thenReturn(Mono.error(new VersionConflictException(current)));
+
+        webTestClient.put()
+                .uri("/api/products/1")
+                .header("If-Match", ProductETags.of(current))
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Product(null, "Test Product", 79.99))
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("ETag", ProductETags.of(updated));
+
+        // A tag from before a restart never matches
+        webTestClient.put()
+                .uri("/api/products/1")
+                .header("If-Match", "\"0-9\"")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Product(null, "Test Product", 79.99))
+                .exchange()
+                .expectStatus().isEqualTo(412)
+                .expectHeader().valueEquals("ETag", ProductETags.of(current));
+    }
 }
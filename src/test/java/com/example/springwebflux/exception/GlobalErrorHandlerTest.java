@@ -0,0 +1,112 @@
+package com.example.springwebflux.exception;
+
+import com.example.springwebflux.model.Product;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.server.MethodNotAllowedException;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebInputException;
+import org.springframework.web.server.UnsupportedMediaTypeStatusException;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GlobalErrorHandlerTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final GlobalErrorHandler handler = new GlobalErrorHandler(
+            new StaticListableBeanFactory(Map.of("registry", registry)).getBeanProvider(
+                    MeterRegistry.class));
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private MockServerWebExchange handle(Throwable error) {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/api/products/x"));
+        StepVerifier.create(handler.handle(exchange, error)).verifyComplete();
+        return exchange;
+    }
+
+    private String errorOf(MockServerWebExchange exchange) throws Exception {
+        String body = exchange.getResponse().getBodyAsString().block();
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length,
+                exchange.getResponse().getHeaders().getContentLength());
+        return objectMapper.readTree(body).get("error").asText();
+    }
+
+    @Test
+    public void testMessagesAreEscapedIntoValidJson() throws Exception {
+        String message = "Bad \"name\" \\ line\nbreak\u0001 café € 😀";
+        MockServerWebExchange exchange = handle(new IllegalArgumentException(message));
+
+        assertEquals(HttpStatus.BAD_REQUEST, exchange.getResponse().getStatusCode());
+        assertEquals(MediaType.APPLICATION_JSON, exchange.getResponse().getHeaders().getContentType());
+        assertEquals(message, errorOf(exchange));
+    }
+
+    @Test
+    public void testLongMessagesAreCut() throws Exception {
+        String error = errorOf(handle(new IllegalArgumentException("x".repeat(5000))));
+
+        assertEquals(ErrorBodies.MAX_DETAIL_LENGTH + 3, error.length());
+        assertTrue(error.endsWith("..."));
+    }
+
+    @Test
+    public void testStatusesFollowTheExceptionType() throws Exception {
+        MockServerWebExchange conflict = handle(new VersionConflictException(new Product("1", "Laptop", 1)));
+        assertEquals(HttpStatus.PRECONDITION_FAILED, conflict.getResponse().getStatusCode());
+        assertEquals("Product 1 has been modified", errorOf(conflict));
+
+        MockServerWebExchange notFound = handle(new ResponseStatusException(HttpStatus.NOT_FOUND, "/secret/path"));
+        assertEquals(HttpStatus.NOT_FOUND, notFound.getResponse().getStatusCode());
+        assertEquals("Not Found", errorOf(notFound));
+
+        MockServerWebExchange badInput = handle(new ServerWebInputException("Failed to read HTTP message"));
+        assertEquals(HttpStatus.BAD_REQUEST, badInput.getResponse().getStatusCode());
+        assertEquals("Failed to read HTTP message", errorOf(badInput));
+
+        // Internal details are logged, never sent
+        MockServerWebExchange failure = handle(new IllegalStateException("connection string with password"));
+        assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, failure.getResponse().getStatusCode());
+        assertEquals("Internal Server Error", errorOf(failure));
+    }
+
+    @Test
+    public void testHeadersOfTheErrorAreSent() {
+        MockServerWebExchange notAllowed = handle(new MethodNotAllowedException(HttpMethod.PATCH,
+                Set.of(HttpMethod.GET, HttpMethod.PUT)));
+        assertEquals(HttpStatus.METHOD_NOT_ALLOWED, notAllowed.getResponse().getStatusCode());
+        assertEquals(Set.of(HttpMethod.GET, HttpMethod.PUT), notAllowed.getResponse().getHeaders().getAllow());
+
+        MockServerWebExchange unsupported = handle(new UnsupportedMediaTypeStatusException(MediaType.TEXT_PLAIN,
+                List.of(MediaType.APPLICATION_JSON)));
+        assertEquals(HttpStatus.UNSUPPORTED_MEDIA_TYPE, unsupported.getResponse().getStatusCode());
+        assertEquals(List.of(MediaType.APPLICATION_JSON), unsupported.getResponse().getHeaders().getAccept());
+        assertEquals(MediaType.APPLICATION_JSON, unsupported.getResponse().getHeaders().getContentType());
+    }
+
+    @Test
+    public void testErrorsAreCountedByTypeAndStatus() {
+        handle(new IllegalArgumentException("a"));
+        handle(new IllegalArgumentException("b"));
+        handle(new NumberFormatException("c"));
+
+        assertEquals(2, registry.get("http.server.errors")
+                .tags("exception", "IllegalArgumentException", "status", "400").counter().count());
+        assertEquals(1, registry.get("http.server.errors")
+                .tags("exception", "NumberFormatException", "status", "400").counter().count());
+    }
+}
@@ -0,0 +1,53 @@
+package com.example.springwebflux.metrics;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class PayloadSizeWebFilterTest {
+
+    @RestController
+    static class EchoController {
+
+        @PostMapping("/echo/{id}")
+        public String echo(@PathVariable String id, @RequestBody String body) {
+            return body + body;
+        }
+    }
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final WebTestClient webTestClient = WebTestClient.bindToController(new EchoController())
+            .webFilter(new PayloadSizeWebFilter(registry))
+            .build();
+
+    @Test
+    public void testSizesAreRecordedPerRoutePattern() {
+        webTestClient.post().uri("/echo/1").bodyValue("abc").exchange().expectStatus().isOk();
+        webTestClient.post().uri("/echo/2").bodyValue("abcde").exchange().expectStatus().isOk();
+
+        DistributionSummary requests = registry.find("http.server.request.size")
+                .tags("method", "POST", "uri", "/echo/{id}").summary();
+        DistributionSummary responses = registry.find("http.server.response.size")
+                .tags("method", "POST", "uri", "/echo/{id}").summary();
+        assertEquals(2, requests.count());
+        assertEquals(8, requests.totalAmount());
+        assertEquals(16, responses.totalAmount());
+        assertNull(registry.find("http.server.request.size").tag("uri", "/echo/1").summary());
+    }
+
+    @Test
+    public void testUnmatchedPathIsNotTaggedWithItsRawPath() {
+        webTestClient.get().uri("/missing/42").exchange().expectStatus().isNotFound();
+
+        assertEquals(1, registry.find("http.server.response.size").tag("uri", "NOT_FOUND").summary().count());
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.springwebflux.metrics;
+
+import com.example.springwebflux.repository.OffHeapProductStore;
+import com.example.springwebflux.repository.ProductJournal;
+import com.example.springwebflux.repository.ProductRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class ReactorSchedulerMetricsTest {
+
+    private final ReactorSchedulerMetrics metrics = new ReactorSchedulerMetrics();
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @AfterEach
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void testSchedulersCreatedBeforeBindingAreMetered() {
+        Scheduler early = Schedulers.newParallel("early", 2);
+        try {
+            metrics.bindTo(registry);
+
+            assertEquals(2, registry.get("reactor.scheduler.workers").tag("scheduler", "early").gauge().value());
+        } finally {
+            early.dispose();
+        }
+    }
+
+    @Test
+    public void testSharedSchedulerFirstUsedByTheOffHeapStoreIsMetered() {
+        // Drops the shared schedulers, so that the store is the first to use boundedElastic again
+        Schedulers.shutdownNow();
+        new ProductRepository(new OffHeapProductStore(16, Duration.ZERO), ProductJournal.NONE);
+
+        metrics.bindTo(registry);
+
+        assertNotNull(registry.find("reactor.scheduler.workers").tag("scheduler", "boundedElastic").gauge());
+    }
+}
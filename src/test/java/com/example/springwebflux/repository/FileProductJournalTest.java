@@ -0,0 +1,236 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileProductJournalTest {
+
+    @TempDir
+    Path directory;
+
+    private FileProductJournal journal() {
+        return new FileProductJournal(directory, 1 << 20, FileProductJournal.SyncPolicy.ALWAYS, Duration.ZERO, 0);
+    }
+
+    @Test
+    public void testFirstRunSeedsSampleProducts() {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+        journal.close();
+
+        StepVerifier.create(repository.findAll())
+                .expectNextCount(5)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testWritesSurviveRestart() {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+        repository.save(new Product("1", "Gaming Laptop", 1599.99)).block();
+        repository.save(new Product("6", "Monitor", 249.99)).block();
+        repository.deleteById("2").block();
+        journal.close();
+
+        journal = journal();
+        ProductRepository restarted = new ProductRepository(journal);
+        journal.close();
+
+        StepVerifier.create(restarted.findPage(null, 10).map(Product::getId))
+                .expectNext("1", "3", "4", "5", "6")
+                .verifyComplete();
+        StepVerifier.create(restarted.findById("1"))
+                .expectNext(new Product("1", "Gaming Laptop", 1599.99))
+                .verifyComplete();
+        // Indexes are rebuilt too
+        StepVerifier.create(restarted.findByPriceLessThan(100).map(Product::getId))
+                .expectNext("5", "4")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSaveCompletesOnceItsBatchIsDurable() {
+        FileProductJournal journal = new FileProductJournal(directory, 1 << 20,
+                FileProductJournal.SyncPolicy.INTERVAL, Duration.ofMillis(300), 0);
+        ProductRepository repository = new ProductRepository(journal);
+        // Waits out the batch holding the sample products, so the next write starts a new one
+        repository.save(new Product("1", "Laptop", 1299.99)).block();
+
+        StepVerifier.create(repository.save(new Product("6", "Monitor", 249.99)))
+                .expectSubscription()
+                .expectNoEvent(Duration.ofMillis(100))
+                .expectNextMatches(p -> p.getId().equals("6"))
+                .verifyComplete();
+        // Visible to readers before it is durable
+        StepVerifier.create(repository.findById("6"))
+                .expectNextCount(1)
+                .verifyComplete();
+        journal.close();
+    }
+
+    @Test
+    public void testByteThresholdCutsTheBatchEarly() {
+        FileProductJournal journal = new FileProductJournal(directory, 1 << 20,
+                FileProductJournal.SyncPolicy.BYTES, Duration.ofHours(1), 256);
+        ProductRepository repository = new ProductRepository(journal);
+
+        // Big enough to fill a batch on its own, so it does not wait out the interval
+        StepVerifier.create(repository.save(new Product("6", "Monitor ".repeat(40), 249.99)))
+                .expectNextCount(1)
+                .expectComplete()
+                .verify(Duration.ofSeconds(5));
+        journal.close();
+    }
+
+    @Test
+    public void testConcurrentWritesDuringSnapshotAreKept() throws InterruptedException {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+
+        Thread snapshots = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                journal.snapshot().join();
+            }
+        });
+        snapshots.start();
+        Flux.range(0, 2000)
+                .parallel(4)
+                .runOn(Schedulers.parallel())
+                .flatMap(i -> repository.save(new Product("p" + (i % 500), "Product " + i, i)))
+                .sequential()
+                .blockLast();
+        snapshots.join();
+        journal.close();
+
+        FileProductJournal reopened = journal();
+        ProductRepository restarted = new ProductRepository(reopened);
+        reopened.close();
+
+        StepVerifier.create(restarted.findAll().collectList())
+                .expectNextMatches(products -> products.size() == 505
+                        && products.stream().filter(p -> p.getId().startsWith("p"))
+                        .allMatch(p -> repository.findById(p.getId()).block().equals(p)))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testCloseDuringRollOverCompletesEveryWrite() throws Exception {
+        // Nothing is synced until close cuts the one batch, which takes the log past the
+        // threshold, so the writer rolls over on its way out
+        FileProductJournal journal = new FileProductJournal(directory, 1,
+                FileProductJournal.SyncPolicy.INTERVAL, Duration.ofHours(1), 0);
+        ProductRepository repository = new ProductRepository(journal);
+        List<CompletableFuture<Product>> saves = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            saves.add(repository.save(new Product("p" + i, "Product " + i, i)).toFuture());
+        }
+        journal.close();
+
+        for (CompletableFuture<Product> save : saves) {
+            save.get(5, TimeUnit.SECONDS);
+        }
+        // The snapshot of that roll-over was still taken
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of("products-1.log", "products-1.snapshot"),
+                    files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+        FileProductJournal reopened = journal();
+        ProductRepository restarted = new ProductRepository(reopened);
+        reopened.close();
+
+        StepVerifier.create(restarted.findAll())
+                .expectNextCount(205)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testDeletingEverythingDoesNotReseed() {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+        for (String id : List.of("1", "2", "3", "4", "5")) {
+            repository.deleteById(id).block();
+        }
+        journal.close();
+
+        journal = journal();
+        ProductRepository restarted = new ProductRepository(journal);
+        journal.close();
+
+        StepVerifier.create(restarted.findAll())
+                .verifyComplete();
+    }
+
+    @Test
+    public void testRecoversFromSnapshotAndLogTail() throws IOException {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+        repository.save(new Product("6", "Monitor", 249.99)).block();
+        journal.snapshot().join();
+        repository.save(new Product("6", "Curved Monitor", 299.99)).block();
+        repository.deleteById("5").block();
+        journal.close();
+
+        try (Stream<Path> files = Files.list(directory)) {
+            assertEquals(List.of("products-1.log", "products-1.snapshot"),
+                    files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+
+        journal = journal();
+        ProductRepository restarted = new ProductRepository(journal);
+        journal.close();
+
+        StepVerifier.create(restarted.findPage(null, 10).map(Product::getName))
+                .expectNext("Laptop", "Smartphone", "Headphones", "Keyboard", "Curved Monitor")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        FileProductJournal journal = journal();
+        ProductRepository repository = new ProductRepository(journal);
+        repository.save(new Product("6", "Monitor", 249.99)).block();
+        journal.close();
+
+        // Cut the last record short, as a crash part-way through the write would
+        Path log = directory.resolve("products-0.log");
+        long size = Files.size(log);
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+
+        journal = journal();
+        ProductRepository restarted = new ProductRepository(journal);
+        restarted.save(new Product("7", "Webcam", 59.99)).block();
+        journal.close();
+
+        journal = journal();
+        ProductRepository again = new ProductRepository(journal);
+        journal.close();
+
+        assertFalse(again.findById("6").blockOptional().isPresent());
+        assertTrue(again.findById("7").blockOptional().isPresent());
+        StepVerifier.create(again.findAll())
+                .expectNextCount(6)
+                .verifyComplete();
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.springwebflux.repository;
+
+import com.example.springwebflux.model.Product;
+import org.junit.jupiter.api.Test;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OffHeapProductStoreTest {
+
+    private static final Consumer<Product> NOTHING = removed -> { };
+    private static final Consumer<Product> UNCHECKED = previous -> { };
+
+    private final OffHeapProductStore store = new OffHeapProductStore(16, Duration.ZERO);
+
+    @Test
+    public void testPutGetAndRemove() {
+        assertNull(store.put(new Product("1", "Laptop", 1299.99), UNCHECKED));
+        assertEquals(new Product("1", "Laptop", 1299.99),
+                store.put(new Product("1", "Gaming Laptop", 1599.99), UNCHECKED));
+        store.put(new Product("2", null, 5), UNCHECKED);
+
+        assertEquals(new Product("1", "Gaming Laptop", 1599.99), store.get("1"));
+        assertEquals(new Product("2", null, 5), store.get("2"));
+        assertNull(store.get("3"));
+
+        assertEquals(new Product("1", "Gaming Laptop", 1599.99), store.remove("1", NOTHING));
+        assertNull(store.remove("1", NOTHING));
+        assertNull(store.get("1"));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void testVersionIsStoredWithTheProduct() {
+        Product product = new Product("1", "Laptop", 1299.99);
+        store.put(product, previous -> product.setVersion(42));
+
+        assertEquals(42, store.get("1").getVersion());
+        store.refresh();
+        assertEquals(42, list(store.byId(null)).get(0).getVersion());
+    }
+
+    @Test
+    public void testFailedBeforeWriteLeavesStoreUnchanged() {
+        store.put(new Product("1", "Laptop", 1299.99), UNCHECKED);
+        Runnable failing = () -> {
+            throw new IllegalStateException("journal down");
+        };
+
+        assertThrows(IllegalStateException.class,
+                () -> store.put(new Product("1", "Other", 1), previous -> failing.run()));
+        assertThrows(IllegalStateException.class, () -> store.remove("1", removed -> failing.run()));
+        assertEquals(new Product("1", "Laptop", 1299.99), store.get("1"));
+    }
+
+    @Test
+    public void testMatchesHeapStoreUnderRandomWrites() {
+        HeapProductStore expected = new HeapProductStore();
+        Random random = new Random(42);
+        // Enough churn to grow the columns and table, and to compact the arena
+        for (int i = 0; i < 20_000; i++) {
+            String id = "p" + random.nextInt(2_000);
+            if (random.nextInt(4) == 0) {
+                assertEquals(expected.remove(id, NOTHING), store.remove(id, NOTHING));
+            } else {
+                Product product = new Product(id, random.nextInt(10) == 0 ? null : "Name " + random.nextInt(500),
+                        random.nextInt(1000) / 10.0);
+                assertEquals(expected.put(product, UNCHECKED), store.put(product, UNCHECKED));
+            }
+        }
+
+        assertEquals(expected.size(), store.size());
+        store.refresh();
+        assertEquals(list(expected.byId(null)), list(store.byId(null)));
+        assertEquals(list(expected.byId("p1000")), list(store.byId("p1000")));
+        assertEquals(list(expected.byName()), list(store.byName()));
+        assertEquals(list(expected.byPrice(10, 20)), list(store.byPrice(10, 20)));
+        assertEquals(list(expected.byPrice(Double.NEGATIVE_INFINITY, 5)),
+                list(store.byPrice(Double.NEGATIVE_INFINITY, 5)));
+        assertEquals(list(expected.byPrice(10, "p1000", 20)), list(store.byPrice(10, "p1000", 20)));
+        List<Product> all = list(store.all());
+        all.sort((a, b) -> a.getId().compareTo(b.getId()));
+        assertEquals(list(expected.byId(null)), all);
+    }
+
+    @Test
+    public void testWritesDuringBackgroundMaintenanceAreKept() {
+        // Builds copy a slot at a time; sorted copies are left out, as rebuilding one after
+        // every write would dominate
+        OffHeapProductStore store = new OffHeapProductStore(16, Duration.ofHours(1), 1);
+        HeapProductStore expected = new HeapProductStore();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        // Builds, in the background or not, write between every two slots they copy, to ids
+        // of their own, so the writes land on both sides of their progress and keep adding slots
+        Random betweenRanges = new Random(7);
+        int[] written = new int[1];
+        store.betweenRanges = () -> {
+            try {
+                write(store, expected, betweenRanges, "b", ++written[0] / 2 + 1);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        };
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            write(store, expected, random, "p", i / 2 + 1);
+            if (i % 1_000 == 0) {
+                store.maintain();
+            }
+        }
+        store.maintain();
+        assertNull(failure.get());
+
+        store.betweenRanges = () -> { };
+        assertEquals(expected.size(), store.size());
+        for (Product product : expected.all()) {
+            assertEquals(product, store.get(product.getId()));
+        }
+        List<Product> all = list(store.all());
+        all.sort((a, b) -> a.getId().compareTo(b.getId()));
+        assertEquals(list(expected.byId(null)), all);
+        store.refresh();
+        assertEquals(list(expected.byId(null)), list(store.byId(null)));
+    }
+
+    // A random write of one of ids products to both stores
+    private static void write(OffHeapProductStore store, HeapProductStore expected, Random random,
+                              String prefix, int ids) {
+        String id = prefix + random.nextInt(ids);
+        if (random.nextInt(4) == 0) {
+            assertEquals(expected.remove(id, NOTHING), store.remove(id, NOTHING));
+        } else {
+            Product product = new Product(id, "Name " + random.nextInt(5_000), random.nextInt(1000) / 10.0);
+            assertEquals(expected.put(product, UNCHECKED), store.put(product, UNCHECKED));
+        }
+    }
+
+    @Test
+    public void testOrderedReadsSkipDeletedAndRefreshAfterInterval() {
+        OffHeapProductStore slow = new OffHeapProductStore(16, Duration.ofHours(1));
+        slow.put(new Product("1", "Laptop", 1299.99), UNCHECKED);
+        slow.put(new Product("2", "Mouse", 49.99), UNCHECKED);
+        slow.refresh();
+        assertEquals(2, list(slow.byId(null)).size());
+
+        // Within the refresh interval new products are not in the sorted copy yet, but
+        // deletes and updates are seen straight away
+        slow.put(new Product("3", "Keyboard", 99.99), UNCHECKED);
+        slow.remove("2", NOTHING);
+        slow.put(new Product("1", "Gaming Laptop", 1599.99), UNCHECKED);
+        assertEquals(List.of(new Product("1", "Gaming Laptop", 1599.99)), list(slow.byId(null)));
+
+        slow.refresh();
+        assertEquals(List.of(new Product("1", "Gaming Laptop", 1599.99), new Product("3", "Keyboard", 99.99)),
+                list(slow.byId(null)));
+    }
+
+    @Test
+    public void testSortedCopyIsRebuiltInTheBackground() throws InterruptedException {
+        store.put(new Product("1", "Laptop", 1299.99), UNCHECKED);
+
+        // No ordered read rebuilds the copy itself; a write has it rebuilt off the caller
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (list(store.byId(null)).isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(List.of(new Product("1", "Laptop", 1299.99)), list(store.byId(null)));
+    }
+
+    @Test
+    public void testReadsDuringWritesNeverSeeTornProducts() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            store.put(new Product("p" + i, "Name " + i, i), UNCHECKED);
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (!done.get()) {
+                    for (int i = 0; i < 100; i++) {
+                        Product product = store.get("p" + i);
+                        // Name and price are always written together
+                        if (product != null && !product.getName().equals("Name " + (int) product.getPrice())) {
+                            throw new AssertionError("Torn read: " + product);
+                        }
+                    }
+                    list(store.byName());
+                }
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+        Random random = new Random(7);
+        for (int i = 0; i < 50_000; i++) {
+            int n = random.nextInt(1000);
+            String id = "p" + random.nextInt(100);
+            if (n % 5 == 0) {
+                store.remove(id, NOTHING);
+            } else {
+                store.put(new Product(id, "Name " + n, n), UNCHECKED);
+            }
+        }
+        done.set(true);
+        reader.join();
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testRepositoryOnOffHeapStore() {
+        ProductRepository repository = new ProductRepository(store, ProductJournal.NONE);
+        store.refresh();
+
+        StepVerifier.create(repository.findPage("2", 2).map(Product::getId))
+                .expectNext("3", "4")
+                .verifyComplete();
+        StepVerifier.create(repository.findByPriceBetween(99.99, 799.99).map(Product::getId))
+                .expectNext("4", "3", "2")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testOrderedVersionMovesOnlyWhenTheSortedCopyCatchesUp() {
+        OffHeapProductStore slow = new OffHeapProductStore(16, Duration.ofHours(1));
+        slow.put(new Product("1", "Laptop", 1299.99), UNCHECKED);
+        slow.refresh();
+        long refreshed = slow.orderedVersion();
+
+        slow.put(new Product("2", "Smartphone", 799.99), UNCHECKED);
+        assertEquals(refreshed, slow.orderedVersion());
+
+        slow.refresh();
+        assertTrue(slow.orderedVersion() > refreshed);
+    }
+
+    private static List<Product> list(Iterable<Product> products) {
+        List<Product> list = new ArrayList<>();
+        products.forEach(list::add);
+        return list;
+    }
+}
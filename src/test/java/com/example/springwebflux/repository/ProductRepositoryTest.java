@@ -1,5 +1,6 @@
 package com.example.springwebflux.repository;
 
+import com.example.springwebflux.exception.VersionConflictException;
 import com.example.springwebflux.model.Product;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -7,6 +8,13 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
 public class ProductRepositoryTest {
 
     private ProductRepository productRepository;
@@ -51,6 +59,45 @@ public class ProductRepositoryTest {
                 .verifyComplete();
     }
 
+    @Test
+    public void testSaveAll() {
+        Product updated = new Product("1", "Gaming Laptop", 1599.99);
+        Product created = new Product("6", "Monitor", 249.99);
+
+        StepVerifier.create(productRepository.saveAll(List.of(updated, created)))
+                .expectNextMatches(w -> !w.created() && w.previous().getName().equals("Laptop")
+                        && w.saved() == updated)
+                .expectNextMatches(w -> w.created() && w.saved() == created)
+                .verifyComplete();
+
+        StepVerifier.create(productRepository.findAll())
+                .expectNextCount(6)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSaveAllIfUnchangedSkipsProductsChangedSinceRead() {
+        Product laptop = productRepository.findById("1").block();
+        Product phone = productRepository.findById("2").block();
+        Product mouse = productRepository.findById("5").block();
+        productRepository.save(new Product("2", "Smartphone", 749.99)).block();
+        productRepository.deleteById("5").block();
+
+        List<Product> repriced = List.of(laptop, phone, mouse).stream()
+                .map(read -> {
+                    Product product = new Product(read.getId(), read.getName(), 1);
+                    product.setVersion(read.getVersion());
+                    return product;
+                })
+                .toList();
+
+        StepVerifier.create(productRepository.saveAllIfUnchanged(repriced))
+                .expectNextMatches(w -> w.saved().getId().equals("1") && w.previous().getPrice() == 1299.99)
+                .verifyComplete();
+        assertEquals(749.99, productRepository.findById("2").block().getPrice());
+        StepVerifier.create(productRepository.findById("5")).verifyComplete();
+    }
+
     @Test
     public void testDeleteById() {
         // First verify the product exists
@@ -72,4 +119,229 @@ public class ProductRepositoryTest {
         StepVerifier.create(deletedProductMono)
                 .verifyComplete(); // No elements expected
     }
+
+    @Test
+    public void testFindPage() {
+        StepVerifier.create(productRepository.findPage(null, 2).map(Product::getId))
+                .expectNext("1", "2")
+                .verifyComplete();
+
+        StepVerifier.create(productRepository.findPage("2", 10).map(Product::getId))
+                .expectNext("3", "4", "5")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testFindPageByPriceLessThan() {
+        productRepository.save(new Product("6", "Mouse Pad", 99.99)).block();
+        productRepository.save(new Product("0", "Cable", 99.99)).block();
+
+        StepVerifier.create(productRepository.findPageByPriceLessThan(500, Double.NEGATIVE_INFINITY, null, 3)
+                        .map(Product::getId))
+                .expectNext("5", "0", "4")
+                .verifyComplete();
+
+        // Resumes among the products priced the same as the last one seen
+        StepVerifier.create(productRepository.findPageByPriceLessThan(500, 99.99, "4", 10)
+                        .map(Product::getId))
+                .expectNext("6", "3")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testFindAllOrderByName() {
+        productRepository.save(new Product("3", "Trackpad", 199.99)).block();
+
+        StepVerifier.create(productRepository.findAllOrderByName().map(Product::getName))
+                .expectNext("Keyboard", "Laptop", "Mouse", "Smartphone", "Trackpad")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testFindByPriceLessThan() {
+        Flux<Product> productFlux = productRepository.findByPriceLessThan(199.99);
+
+        StepVerifier.create(productFlux)
+                .expectNextMatches(p -> p.getName().equals("Mouse"))
+                .expectNextMatches(p -> p.getName().equals("Keyboard"))
+                .verifyComplete(); // Headphones cost exactly 199.99 and are excluded
+    }
+
+    @Test
+    public void testFindByPriceBetween() {
+        Flux<Product> productFlux = productRepository.findByPriceBetween(99.99, 799.99);
+
+        StepVerifier.create(productFlux)
+                .expectNextMatches(p -> p.getName().equals("Keyboard"))
+                .expectNextMatches(p -> p.getName().equals("Headphones"))
+                .expectNextMatches(p -> p.getName().equals("Smartphone"))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testPriceIndexFollowsUpdatesAndDeletes() {
+        productRepository.save(new Product("5", "Mouse", 999.99)).block();
+        productRepository.deleteById("4").block();
+
+        StepVerifier.create(productRepository.findByPriceLessThan(1000.0))
+                .expectNextMatches(p -> p.getName().equals("Headphones"))
+                .expectNextMatches(p -> p.getName().equals("Smartphone"))
+                .expectNextMatches(p -> p.getId().equals("5") && p.getPrice() == 999.99)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSearchRanksFullWordsFirst() {
+        productRepository.saveAll(List.of(
+                new Product("6", "Gaming Laptop Stand", 39.99),
+                new Product("7", "Laptop Sleeve", 24.99),
+                new Product("8", "Lapel Pin", 4.99))).blockLast();
+
+        StepVerifier.create(productRepository.search("laptop", 10).map(Product::getId))
+                .expectNext("1", "7", "6")
+                .verifyComplete();
+        // Every word must match, the last one here only as a prefix
+        StepVerifier.create(productRepository.search("LAPTOP sl", 10).map(Product::getId))
+                .expectNext("7")
+                .verifyComplete();
+        StepVerifier.create(productRepository.search("lap", 2).map(Product::getId))
+                .expectNext("1", "8")
+                .verifyComplete();
+        StepVerifier.create(productRepository.search("laptop tablet", 10))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSearchWithoutTheIndexRanksTheSame() {
+        ProductRepository unindexed = new ProductRepository(new HeapProductStore(), ProductJournal.NONE, false);
+        unindexed.saveAll(List.of(
+                new Product("6", "Gaming Laptop Stand", 39.99),
+                new Product("7", "Laptop Sleeve", 24.99),
+                new Product("8", "Lapel Pin", 4.99))).blockLast();
+
+        StepVerifier.create(unindexed.search("laptop", 10).map(Product::getId))
+                .expectNext("1", "7", "6")
+                .verifyComplete();
+        StepVerifier.create(unindexed.search("lap", 2).map(Product::getId))
+                .expectNext("1", "8")
+                .verifyComplete();
+        StepVerifier.create(unindexed.search("la", 10))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testShortQueryWordsMatchWholeWordsOnTheirOwn() {
+        productRepository.saveAll(List.of(
+                new Product("6", "Laptop Sleeve", 24.99),
+                new Product("7", "LA Cap", 14.99))).blockLast();
+
+        // "la" alone would be a prefix of a large part of the catalog
+        StepVerifier.create(productRepository.search("la", 10).map(Product::getId))
+                .expectNext("7")
+                .verifyComplete();
+        // Next to a longer word it narrows that word's matches as a prefix
+        StepVerifier.create(productRepository.search("sleeve la", 10).map(Product::getId))
+                .expectNext("6")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSearchFollowsUpdatesAndDeletes() {
+        productRepository.save(new Product("5", "Wireless Mouse", 49.99)).block();
+        productRepository.deleteById("4").block();
+
+        StepVerifier.create(productRepository.search("wireless", 10).map(Product::getId))
+                .expectNext("5")
+                .verifyComplete();
+        StepVerifier.create(productRepository.search("keyboard", 10))
+                .verifyComplete();
+
+        productRepository.save(new Product("5", "Trackball", 59.99)).block();
+        StepVerifier.create(productRepository.search("mouse", 10))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testEveryWriteStampsANewVersion() {
+        long seeded = productRepository.findById("1").block().getVersion();
+
+        Product updated = productRepository.save(new Product("1", "Laptop", 1199.99)).block();
+        Product unchanged = productRepository.save(new Product("1", "Laptop", 1199.99)).block();
+
+        assertTrue(updated.getVersion() > seeded);
+        assertTrue(unchanged.getVersion() > updated.getVersion());
+        assertEquals(unchanged.getVersion(), productRepository.findById("1").block().getVersion());
+    }
+
+    @Test
+    public void testSaveIfVersion() {
+        long version = productRepository.findById("1").block().getVersion();
+
+        StepVerifier.create(productRepository.saveIfVersion(new Product("1", "Laptop", 999.99), version - 1))
+                .expectErrorMatches(e -> e instanceof VersionConflictException conflict
+                        && conflict.getCurrent().getVersion() == version)
+                .verify();
+        StepVerifier.create(productRepository.saveIfVersion(new Product("1", "Laptop", 999.99), version))
+                .expectNextMatches(write -> write.previous().getPrice() == 1299.99
+                        && write.saved().getVersion() > version)
+                .verifyComplete();
+        StepVerifier.create(productRepository.saveIfVersion(new Product("9", "Tablet", 1), 0))
+                .verifyComplete();
+        StepVerifier.create(productRepository.replace(new Product("9", "Tablet", 1)))
+                .verifyComplete();
+        StepVerifier.create(productRepository.findById("9"))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testConcurrentCompareAndSetLosesNoUpdates() throws InterruptedException {
+        int threads = 8;
+        int increments = 500;
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < increments; i++) {
+                    while (true) {
+                        Product current = productRepository.findById("5").block();
+                        Product next = new Product("5", "Mouse", current.getPrice() + 1);
+                        try {
+                            productRepository.saveIfVersion(next, current.getVersion()).block();
+                            break;
+                        } catch (VersionConflictException e) {
+                            // Lost the race: read again and retry
+                        }
+                    }
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertEquals(49.99 + threads * increments, productRepository.findById("5").block().getPrice(), 1e-6);
+    }
+
+    @Test
+    public void testWriteThatFailsAfterItWasHeardOfIsStillPublished() {
+        ProductStore failing = new HeapProductStore() {
+            @Override
+            public Product put(Product product, Consumer<Product> beforeWrite) {
+                Product previous = super.put(product, beforeWrite);
+                if (product.getId().equals("6")) {
+                    throw new IllegalStateException("out of room");
+                }
+                return previous;
+            }
+        };
+        ProductRepository repository = new ProductRepository(failing, ProductJournal.NONE);
+        List<Product> published = new ArrayList<>();
+        repository.setWriteListener((previous, current) -> () -> published.add(current));
+        Product product = new Product("6", "Monitor", 249.99);
+
+        StepVerifier.create(repository.save(product))
+                .verifyError(IllegalStateException.class);
+
+        assertEquals(List.of(product), published);
+    }
 }
@@ -1,20 +1,46 @@
 package com.example.springwebflux.router;
 
+import com.example.springwebflux.codec.ProductMediaTypes;
+import com.example.springwebflux.codec.ProductProtobufDecoder;
+import com.example.springwebflux.codec.ProductProtobufEncoder;
+import com.example.springwebflux.exception.VersionConflictException;
 import com.example.springwebflux.handler.ProductHandler;
+import com.example.springwebflux.model.BulkResult;
+import com.example.springwebflux.model.PricingRules;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.model.ProductPatch;
+import com.example.springwebflux.model.ProductStats;
+import com.example.springwebflux.model.RepricingProgress;
+import com.example.springwebflux.service.ProductETags;
 import com.example.springwebflux.service.ProductService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.dataformat.cbor.databind.CBORMapper;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.WebFluxTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.context.annotation.Import;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @WebFluxTest
@@ -32,8 +58,8 @@ public class ProductRouterTest {
         Product product1 = new Product("1", "Test Product 1", 99.99);
         Product product2 = new Product("2", "Test Product 2", 199.99);
 
-        when(productService.getAllProducts())
-                .thenReturn(Flux.just(product1, product2));
+        when(productService.getProductsPage(null, null))
+                .thenReturn(Mono.just(new ProductPage(List.of(product1, product2), null)));
 
         webTestClient.get()
                 .uri("/api/functional/products")
@@ -45,6 +71,15 @@ public class ProductRouterTest {
                 .contains(product1, product2);
     }
 
+    @Test
+    public void testGetProductsPageWithInvalidLimit() {
+        webTestClient.get()
+                .uri("/api/functional/products?limit=abc")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
     @Test
     public void testGetProductById() {
         Product product = new Product("1", "Test Product", 99.99);
@@ -79,11 +114,75 @@ public class ProductRouterTest {
                 .isEqualTo(savedProduct);
     }
 
+    @Test
+    public void testCreateProductAsProtobuf() {
+        Product product = new Product(null, "New Product", 99.99);
+        Product savedProduct = new Product("1", "New Product", 99.99);
+        ResolvableType productType = ResolvableType.forClass(Product.class);
+
+        when(productService.createProduct(product)).thenReturn(Mono.just(savedProduct));
+
+        DataBuffer request = new ProductProtobufEncoder().encodeValue(product, DefaultDataBufferFactory.sharedInstance,
+                productType, ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap());
+        byte[] body = webTestClient.post()
+                .uri("/api/functional/products")
+                .contentType(ProductMediaTypes.APPLICATION_PROTOBUF)
+                .accept(ProductMediaTypes.APPLICATION_PROTOBUF)
+                .bodyValue(request)
+                .exchange()
+                .expectStatus().isCreated()
+                .expectHeader().contentType(ProductMediaTypes.APPLICATION_PROTOBUF)
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        Product created = new ProductProtobufDecoder()
+                .decodeToMono(Mono.just(DefaultDataBufferFactory.sharedInstance.wrap(body)), productType,
+                        ProductMediaTypes.APPLICATION_PROTOBUF, Collections.emptyMap())
+                .block();
+        assertEquals(savedProduct, created);
+    }
+
+    @Test
+    public void testSaveProducts() {
+        when(productService.saveProducts(any()))
+                .thenReturn(Flux.just(BulkResult.saved(0, "1", true), BulkResult.rejected(1, null, "Invalid")));
+
+        webTestClient.post()
+                .uri("/api/functional/products/bulk")
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .bodyValue("{\"name\":\"A\",\"price\":1.0}\n{\"name\":\"\",\"price\":2.0}\n")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(BulkResult.class)
+                .hasSize(2);
+    }
+
+    @Test
+    public void testRepriceProductsStreamsProgress() {
+        when(productService.repriceAll(any(PricingRules.class)))
+                .thenReturn(Flux.just(new RepricingProgress(2, 0, 0, 0), new RepricingProgress(2, 2, 1, 1)));
+
+        webTestClient.post()
+                .uri("/api/functional/products/reprice")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"percentChange\":-5,\"rounding\":\"CHARM\"}")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON)
+                .expectBodyList(RepricingProgress.class)
+                .hasSize(2);
+
+        verify(productService).repriceAll(argThat(rules -> rules.getPercentChange() == -5
+                && rules.getRounding() == PricingRules.Rounding.CHARM));
+    }
+
     @Test
     public void testUpdateProduct() {
         Product product = new Product("1", "Updated Product", 149.99);
 
-        when(productService.updateProduct(anyString(), any(Product.class)))
+        when(productService.updateProduct(anyString(), any(Product.class), any()))
                 .thenReturn(Mono.just(product));
 
         webTestClient.put()
@@ -111,4 +210,147 @@ public class ProductRouterTest {
                 .exchange()
                 .expectStatus().isNoContent();
     }
+
+    @Test
+    public void testGetStats() {
+        when(productService.getStats())
+                .thenReturn(Mono.just(new ProductStats(2, 150.0, 50.0, 100.0, 200.0, Map.of("p50", 100.0),
+                        List.of(new ProductStats.PriceBucket(null, 500.0, 2),
+                                new ProductStats.PriceBucket(500.0, null, 0)))));
+
+        webTestClient.get()
+                .uri("/api/functional/products/stats")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBody()
+                .jsonPath("$.count").isEqualTo(2)
+                .jsonPath("$.pricePercentiles.p50").isEqualTo(100.0)
+                .jsonPath("$.priceHistogram[0].from").doesNotExist()
+                .jsonPath("$.priceHistogram[1].count").isEqualTo(0);
+    }
+
+    @Test
+    public void testGetSortedProductsAsStreamJson() {
+        Product product1 = new Product("2", "Desk", 250.0);
+        Product product2 = new Product("1", "Lamp", 40.0);
+
+        when(productService.getAllProductsSorted()).thenReturn(Flux.just(product1, product2));
+
+        webTestClient.get()
+                .uri("/api/functional/products/sorted")
+                .accept(ProductMediaTypes.APPLICATION_STREAM_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(ProductMediaTypes.APPLICATION_STREAM_JSON)
+                .expectBody(String.class)
+                .isEqualTo("{\"id\":\"2\",\"name\":\"Desk\",\"price\":250.0}\n"
+                        + "{\"id\":\"1\",\"name\":\"Lamp\",\"price\":40.0}\n");
+    }
+
+    @Test
+    public void testGetStatsAsCbor() throws IOException {
+        when(productService.getStats())
+                .thenReturn(Mono.just(new ProductStats(2, 150.0, 50.0, 100.0, 200.0, Map.of(), List.of())));
+
+        byte[] body = webTestClient.get()
+                .uri("/api/functional/products/stats")
+                .accept(MediaType.APPLICATION_CBOR)
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().contentType(MediaType.APPLICATION_CBOR)
+                .expectBody(byte[].class)
+                .returnResult()
+                .getResponseBody();
+
+        JsonNode stats = new CBORMapper().readTree(body);
+        assertEquals(2, stats.get("count").asLong());
+        assertEquals(150.0, stats.get("averagePrice").asDouble());
+    }
+
+    @Test
+    public void testSearchProducts() {
+        Product product = new Product("1", "Laptop", 1299.99);
+
+        when(productService.searchProducts("lap", 5)).thenReturn(Flux.just(product));
+
+        webTestClient.get()
+                .uri("/api/functional/products/search?q=lap&limit=5")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isOk()
+                .expectBodyList(Product.class)
+                .hasSize(1)
+                .contains(product);
+
+        webTestClient.get()
+                .uri("/api/functional/products/search")
+                .accept(MediaType.APPLICATION_JSON)
+                .exchange()
+                .expectStatus().isBadRequest();
+    }
+
+    @Test
+    public void testConditionalGets() {
+        Product product = new Product("1", "Test Product", 99.99);
+        product.setVersion(7);
+        when(productService.getProductById("1")).thenReturn(Mono.just(product));
+        when(productService.getCatalogVersion()).thenReturn(3L);
+
+        webTestClient.get()
+                .uri("/api/functional/products/1")
+                .header("If-None-Match", ProductETags.of(product))
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectBody().isEmpty();
+
+        webTestClient.get()
+                .uri("/api/functional/products/sorted")
+                .header("If-None-Match", ProductETags.ofCatalog(3))
+                .exchange()
+                .expectStatus().isNotModified()
+                .expectHeader().valueEquals("ETag", ProductETags.ofCatalog(3))
+                .expectBody().isEmpty();
+        verify(productService, never()).getAllProductsSorted();
+    }
+
+    @Test
+    public void testPatchProduct() {
+        Product patched = new Product("1", "Test Product", 79.99);
+        patched.setVersion(8);
+        when(productService.patchProduct(eq("1"), any(ProductPatch.class), eq(7L)))
+                .thenReturn(Mono.just(patched));
+
+        webTestClient.patch()
+                .uri("/api/functional/products/1")
+                .header("If-Match", ProductETags.of(versioned(7)))
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"price\":79.99}")
+                .exchange()
+                .expectStatus().isOk()
+                .expectHeader().valueEquals("ETag", ProductETags.of(patched))
+                .expectBody(Product.class)
+                .isEqualTo(patched);
+    }
+
+    @Test
+    public void testUpdateProductVersionConflict() {
+        when(productService.updateProduct(eq("1"), any(Product.class), eq(7L)))
+                .thenReturn(Mono.error(new VersionConflictException(versioned(9))));
+
+        webTestClient.put()
+                .uri("/api/functional/products/1")
+                .header("If-Match", ProductETags.of(versioned(7)))
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(new Product(null, "Test Product", 79.99))
+                .exchange()
+                .expectStatus().isEqualTo(412)
+                .expectHeader().valueEquals("ETag", ProductETags.of(versioned(9)));
+    }
+
+    private static Product versioned(long version) {
+        Product product = new Product("1", "Test Product", 99.99);
+        product.setVersion(version);
+        return product;
+    }
 }
@@ -0,0 +1,82 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ProductCacheTest {
+
+    private final ProductCache cache = new ProductCache();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    @Test
+    public void testConcurrentMissesShareOneLookup() {
+        Product product = new Product("1", "Laptop", 1299.99);
+        Mono<Product> slow = Mono.just(product).delayElement(Duration.ofMillis(100));
+
+        StepVerifier.create(Mono.zip(
+                        cache.get("1", id -> load(slow)),
+                        cache.get("1", id -> load(slow)),
+                        cache.get("1", id -> load(slow))))
+                .expectNextMatches(results -> results.getT1() == product && results.getT3() == product)
+                .verifyComplete();
+        StepVerifier.create(cache.get("1", id -> load(Mono.empty())))
+                .expectNext(product)
+                .verifyComplete();
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testMissingProductsAreNotCached() {
+        StepVerifier.create(cache.get("1", id -> load(Mono.empty()))).verifyComplete();
+        StepVerifier.create(cache.get("1", id -> load(Mono.just(new Product("1", "Laptop", 1)))))
+                .expectNextCount(1)
+                .verifyComplete();
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testWritesInvalidateOnceDurable() {
+        Product laptop = new Product("1", "Laptop", 1299.99);
+        Product gamingLaptop = new Product("1", "Gaming Laptop", 1599.99);
+        cache.get("1", id -> load(Mono.just(laptop))).block();
+
+        Runnable durable = cache.written(laptop, gamingLaptop);
+        StepVerifier.create(cache.get("1", id -> load(Mono.empty())))
+                .expectNext(laptop)
+                .verifyComplete();
+        durable.run();
+        StepVerifier.create(cache.get("1", id -> load(Mono.just(gamingLaptop))))
+                .expectNext(gamingLaptop)
+                .verifyComplete();
+
+        cache.written(gamingLaptop, null).run();
+        StepVerifier.create(cache.get("1", id -> load(Mono.empty()))).verifyComplete();
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void testMetrics() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        CaffeineCacheMetrics.monitor(registry, cache.getCache(), "products");
+
+        cache.get("1", id -> load(Mono.just(new Product("1", "Laptop", 1)))).block();
+        cache.get("1", id -> load(Mono.empty())).block();
+
+        assertEquals(1, registry.get("cache.gets").tag("result", "hit").functionCounter().count());
+        assertEquals(1, registry.get("cache.gets").tag("result", "miss").functionCounter().count());
+    }
+
+    private Mono<Product> load(Mono<Product> product) {
+        lookups.incrementAndGet();
+        return product;
+    }
+}
@@ -0,0 +1,248 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import reactor.test.StepVerifier;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ProductChangeFeedTest {
+
+    private static ProductChangeFeed feed(int bufferSize, ProductChangeFeed.OverflowPolicy policy) {
+        return new ProductChangeFeed(bufferSize, policy, Duration.ZERO, new ObjectMapper());
+    }
+
+    private static Product product(int i) {
+        return new Product(Integer.toString(i), "Product " + i, i);
+    }
+
+    private static void create(ProductChangeFeed feed, int from, int to) {
+        for (int i = from; i <= to; i++) {
+            feed.publish(null, product(i));
+        }
+    }
+
+    // Cursors drain on their own workers; a burst larger than the ring between two drains overflows
+    private static void awaitDrained(ProductChangeFeed feed) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (feed.getMaxSubscriberLag() > 0) {
+            assertTrue(System.nanoTime() < deadline, "Subscriber never drained the ring");
+            Thread.onSpinWait();
+        }
+    }
+
+    @Test
+    public void testLiveSubscriberReceivesTypedEvents() {
+        ProductChangeFeed feed = feed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+
+        StepVerifier.create(feed.subscribe(null, false))
+                .then(() -> {
+                    feed.publish(null, product(1));
+                    feed.publish(product(2), new Product("2", "Renamed", 2));
+                    feed.publish(product(3), product(3));
+                })
+                .expectNextMatches(e -> e.getVersion() == 1 && e.getType() == ProductChangeEvent.Type.CREATED
+                        && e.getChanges().equals(Map.of("name", "Product 1", "price", 1.0)))
+                .expectNextMatches(e -> e.getVersion() == 2 && e.getType() == ProductChangeEvent.Type.UPDATED
+                        && e.getChanges().equals(Map.of("name", "Renamed")))
+                .then(() -> feed.publish(product(1), null))
+                // The unchanged write of product 3 was not published
+                .expectNextMatches(e -> e.getVersion() == 3 && e.getType() == ProductChangeEvent.Type.DELETED)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testServerSentEventFramesAreEncodedOnce() throws Exception {
+        ObjectMapper objectMapper = spy(new ObjectMapper());
+        ProductChangeFeed feed = new ProductChangeFeed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST,
+                Duration.ZERO, objectMapper);
+        create(feed, 1, 1);
+
+        DataBuffer first = feed.serverSentEvents(feed.eventId(0), false, DefaultDataBufferFactory.sharedInstance)
+                .blockFirst();
+        DataBuffer second = feed.serverSentEvents(feed.eventId(0), false, DefaultDataBufferFactory.sharedInstance)
+                .blockFirst();
+
+        assertEquals("id:" + feed.eventId(1) + "\ndata:{\"type\":\"CREATED\",\"version\":1,\"timestamp\":"
+                        + feed.subscribe(feed.eventId(0), false).blockFirst().getTimestamp()
+                        + ",\"id\":\"1\",\"changes\":{\"name\":\"Product 1\",\"price\":1.0}}\n\n",
+                first.toString(StandardCharsets.UTF_8));
+        assertEquals(first.toString(StandardCharsets.UTF_8), second.toString(StandardCharsets.UTF_8));
+        verify(objectMapper, times(1)).writeValueAsString(any());
+    }
+
+    @Test
+    public void testResyncFrameIsNamedEvent() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+        create(feed, 1, 1);
+
+        DataBuffer frame = feed.serverSentEvents(feed.eventId(42), false, DefaultDataBufferFactory.sharedInstance)
+                .blockFirst();
+
+        assertTrue(frame.toString(StandardCharsets.UTF_8)
+                .startsWith("id:" + feed.eventId(1) + "\nevent:resync\ndata:{\"type\":\"RESYNC\""));
+    }
+
+    @Test
+    public void testResumeFromLastEventId() {
+        ProductChangeFeed feed = feed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+        create(feed, 1, 5);
+
+        StepVerifier.create(feed.subscribe(feed.eventId(3), false).map(ProductChangeEvent::getVersion))
+                .expectNext(4L, 5L)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testLastEventIdFromAnotherEpochTriggersResync() {
+        ProductChangeFeed feed = feed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+        create(feed, 1, 5);
+
+        // Sequences begin again after a restart, so a plausible id of an earlier run must not resume
+        for (String lastEventId : List.of("0-3", "3", feed.getEpoch() + "-x", feed.getEpoch() + "--1")) {
+            StepVerifier.create(feed.subscribe(lastEventId, false))
+                    .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.RESYNC && e.getVersion() == 5)
+                    .thenCancel()
+                    .verify();
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberDropsOldestAfterResync() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+
+        StepVerifier.create(feed.subscribe(null, false), 0)
+                .then(() -> create(feed, 1, 10))
+                .thenRequest(5)
+                .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.RESYNC && e.getVersion() == 6)
+                .expectNextMatches(e -> e.getVersion() == 7)
+                .expectNextMatches(e -> e.getVersion() == 8)
+                .expectNextMatches(e -> e.getVersion() == 9)
+                .expectNextMatches(e -> e.getVersion() == 10)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testSlowSubscriberDisconnectedWithResyncMarker() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DISCONNECT);
+
+        StepVerifier.create(feed.subscribe(null, false), 0)
+                .then(() -> create(feed, 1, 10))
+                .thenRequest(1)
+                .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.RESYNC && e.getVersion() == 10)
+                .verifyComplete();
+
+        StepVerifier.create(feed.subscribe(feed.eventId(10), false).map(ProductChangeEvent::getVersion))
+                .then(() -> create(feed, 11, 11))
+                .expectNext(11L)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testUnknownLastEventIdTriggersResync() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+        create(feed, 1, 1);
+
+        StepVerifier.create(feed.subscribe(feed.eventId(42), false))
+                .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.RESYNC && e.getVersion() == 1)
+                .then(() -> create(feed, 2, 2))
+                .expectNextMatches(e -> e.getVersion() == 2)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testSubscribersAreNotDrainedOnThePublishingThread() {
+        ProductChangeFeed feed = feed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+        Thread publisher = Thread.currentThread();
+
+        StepVerifier.create(feed.subscribe(null, false).map(event -> Thread.currentThread()))
+                .then(() -> create(feed, 1, 1))
+                .expectNextMatches(thread -> thread != publisher)
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    public void testConflatingSubscriberMergesPendingChangesPerProduct() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DISCONNECT);
+
+        StepVerifier.create(feed.subscribe(null, true), 0)
+                .then(() -> {
+                    // Far more updates than the ring holds, but only two distinct products
+                    create(feed, 0, 1);
+                    for (int i = 2; i <= 20; i++) {
+                        Product previous = new Product(Integer.toString(i % 2), "Product " + (i - 2), i - 2);
+                        feed.publish(previous, new Product(previous.getId(), previous.getName(), i));
+                        awaitDrained(feed);
+                    }
+                    feed.publish(product(1), new Product("1", "Renamed", 19));
+                })
+                .thenRequest(10)
+                .expectNextMatches(e -> e.getVersion() == 21 && e.getType() == ProductChangeEvent.Type.CREATED
+                        && e.getChanges().equals(Map.of("name", "Product 0", "price", 20.0)))
+                .expectNextMatches(e -> e.getVersion() == 22 && e.getType() == ProductChangeEvent.Type.CREATED
+                        && e.getChanges().equals(Map.of("name", "Renamed", "price", 19.0)))
+                .then(() -> create(feed, 3, 3))
+                .expectNextMatches(e -> e.getVersion() == 23)
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testConflatingSubscriberFlushesOnInterval() {
+        ProductChangeFeed feed = new ProductChangeFeed(8, ProductChangeFeed.OverflowPolicy.DROP_OLDEST,
+                Duration.ofMillis(50), new ObjectMapper());
+
+        StepVerifier.create(feed.subscribe(null, true))
+                .then(() -> {
+                    create(feed, 1, 1);
+                    feed.publish(product(1), new Product("1", "Renamed", 1));
+                })
+                .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.CREATED
+                        && "Renamed".equals(e.getChanges().get("name")))
+                .thenCancel()
+                .verify(Duration.ofSeconds(5));
+    }
+
+    @Test
+    public void testSubscriberLagAndOverflowsAreReported() {
+        ProductChangeFeed feed = feed(4, ProductChangeFeed.OverflowPolicy.DROP_OLDEST);
+
+        StepVerifier.create(feed.subscribe(null, false), 0)
+                .then(() -> {
+                    assertEquals(1, feed.getSubscriberCount());
+                    create(feed, 1, 3);
+                    assertEquals(3, feed.getMaxSubscriberLag());
+                    assertEquals(0, feed.getOverflowCount());
+                    create(feed, 4, 10);
+                })
+                .thenRequest(1)
+                .expectNextMatches(e -> e.getType() == ProductChangeEvent.Type.RESYNC)
+                .then(() -> {
+                    assertEquals(1, feed.getOverflowCount());
+                    assertEquals(4, feed.getMaxSubscriberLag());
+                })
+                .thenCancel()
+                .verify();
+        assertEquals(0, feed.getSubscriberCount());
+    }
+}
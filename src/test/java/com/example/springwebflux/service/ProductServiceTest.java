@@ -1,7 +1,17 @@
 package com.example.springwebflux.service;
 
+import com.example.springwebflux.exception.VersionConflictException;
+import com.example.springwebflux.model.BulkResult;
+import com.example.springwebflux.model.PricingRules;
 import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductChangeEvent;
+import com.example.springwebflux.model.ProductPage;
+import com.example.springwebflux.model.ProductPatch;
+import com.example.springwebflux.model.RepricingProgress;
+import com.example.springwebflux.repository.ProductJournal;
 import com.example.springwebflux.repository.ProductRepository;
+import com.example.springwebflux.repository.ProductWrite;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
@@ -9,10 +19,22 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.test.StepVerifier;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class ProductServiceTest {
@@ -20,10 +42,17 @@ public class ProductServiceTest {
     private ProductRepository productRepository;
     private ProductService productService;
 
+    private static ProductChangeFeed changeFeed() {
+        return new ProductChangeFeed(16, ProductChangeFeed.OverflowPolicy.DROP_OLDEST, Duration.ZERO, new ObjectMapper());
+    }
+
     @BeforeEach
     public void setUp() {
         productRepository = Mockito.mock(ProductRepository.class);
-        productService = new ProductService(productRepository);
+        when(productRepository.findAll()).thenReturn(Flux.empty());
+        productService = new ProductService(productRepository,
+                new ProductChangeFeed(16, ProductChangeFeed.OverflowPolicy.DROP_OLDEST, Duration.ZERO,
+                        new ObjectMapper()));
     }
 
     @Test
@@ -45,24 +74,21 @@ public class ProductServiceTest {
     public void testGetAllProductsSorted() {
         Product product1 = new Product("1", "B Test Product", 99.99);
         Product product2 = new Product("2", "A Test Product", 199.99);
-        List<Product> products = Arrays.asList(product1, product2);
 
-        when(productRepository.findAll()).thenReturn(Flux.fromIterable(products));
+        when(productRepository.findAllOrderByName()).thenReturn(Flux.just(product2, product1));
 
         Flux<Product> result = productService.getAllProductsSorted();
 
         StepVerifier.create(result)
-                .expectNext(product2, product1) // A should come before B
+                .expectNext(product2, product1) // Order comes straight from the name index
                 .verifyComplete();
     }
 
     @Test
     public void testGetProductsCheaperThan() {
         Product product1 = new Product("1", "Cheap Product", 49.99);
-        Product product2 = new Product("2", "Expensive Product", 149.99);
-        List<Product> products = Arrays.asList(product1, product2);
 
-        when(productRepository.findAll()).thenReturn(Flux.fromIterable(products));
+        when(productRepository.findByPriceLessThan(100.0)).thenReturn(Flux.just(product1));
 
         Flux<Product> result = productService.getProductsCheaperThan(100.0);
 
@@ -71,6 +97,70 @@ public class ProductServiceTest {
                 .verifyComplete();
     }
 
+    @Test
+    public void testGetProductsCheaperThanPage() {
+        Product product1 = new Product("5", "Mouse", 49.99);
+        Product product2 = new Product("4", "Keyboard", 99.99);
+        Product product3 = new Product("3", "Headphones", 199.99);
+
+        when(productRepository.findPageByPriceLessThan(500.0, Double.NEGATIVE_INFINITY, null, 3))
+                .thenReturn(Flux.just(product1, product2, product3));
+        when(productRepository.findPageByPriceLessThan(500.0, 99.99, "4", 3))
+                .thenReturn(Flux.just(product3));
+
+        ProductPage first = productService.getProductsCheaperThanPage(500.0, null, 2).block();
+        assertEquals(List.of(product1, product2), first.getProducts());
+
+        StepVerifier.create(productService.getProductsCheaperThanPage(500.0, first.getNextPageToken(), 2))
+                .expectNextMatches(page -> page.getProducts().equals(List.of(product3)) && !page.hasNextPage())
+                .verifyComplete();
+
+        StepVerifier.create(productService.getProductsCheaperThanPage(500.0, ProductPage.encodeToken("4"), 2))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+
+    @Test
+    public void testGetProductsPage() {
+        Product product1 = new Product("1", "Test Product 1", 99.99);
+        Product product2 = new Product("2", "Test Product 2", 199.99);
+        Product product3 = new Product("3", "Test Product 3", 299.99);
+
+        when(productRepository.findPage(null, 3)).thenReturn(Flux.just(product1, product2, product3));
+
+        StepVerifier.create(productService.getProductsPage(null, 2))
+                .expectNextMatches(page -> page.getProducts().equals(List.of(product1, product2))
+                        && page.getNextPageToken().equals(ProductPage.encodeToken("2")))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testGetProductsPageCapsLimit() {
+        when(productRepository.findPage("1", ProductService.MAX_PAGE_SIZE + 1)).thenReturn(Flux.empty());
+
+        StepVerifier.create(productService.getProductsPage(ProductPage.encodeToken("1"), 1_000_000))
+                .expectNextMatches(page -> page.getProducts().isEmpty() && !page.hasNextPage())
+                .verifyComplete();
+    }
+
+    @Test
+    public void testGetProductsPageRejectsInvalidToken() {
+        StepVerifier.create(productService.getProductsPage("not base64!", null))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+
+    @Test
+    public void testGetProductsAfterIsUncapped() {
+        Product product = new Product("2", "Test Product 2", 199.99);
+
+        when(productRepository.findPage("1", Integer.MAX_VALUE)).thenReturn(Flux.just(product));
+
+        StepVerifier.create(productService.getProductsAfter(ProductPage.encodeToken("1"), null))
+                .expectNext(product)
+                .verifyComplete();
+    }
+
     @Test
     public void testGetProductById() {
         Product product = new Product("1", "Test Product", 99.99);
@@ -89,7 +179,8 @@ public class ProductServiceTest {
         Product product = new Product(null, "New Product", 99.99);
         Product savedProduct = new Product("generated-id", "New Product", 99.99);
 
-        when(productRepository.save(any(Product.class))).thenReturn(Mono.just(savedProduct));
+        when(productRepository.upsert(any(Product.class)))
+                .thenReturn(Mono.just(new ProductWrite(null, savedProduct)));
 
         Mono<Product> result = productService.createProduct(product);
 
@@ -97,4 +188,280 @@ public class ProductServiceTest {
                 .expectNext(savedProduct)
                 .verifyComplete();
     }
+
+    @Test
+    public void testUpdateProductPublishesChangedFieldsOnly() {
+        // Changes are published by the repository's writes, so this needs a real one
+        productService = new ProductService(new ProductRepository(), changeFeed());
+        Product update = new Product(null, "Laptop", 79.99);
+
+        StepVerifier.create(productService.getProductUpdates())
+                .then(() -> productService.updateProduct("1", update).block())
+                .expectNextMatches(event -> event.getType() == ProductChangeEvent.Type.UPDATED
+                        && event.getId().equals("1")
+                        && event.getChanges().equals(Map.of("price", 79.99)))
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testDeleteProductPublishesDeletedEvent() {
+        productService = new ProductService(new ProductRepository(), changeFeed());
+
+        StepVerifier.create(productService.getProductUpdates())
+                .then(() -> productService.deleteProduct("1").block())
+                .expectNextMatches(event -> event.getType() == ProductChangeEvent.Type.DELETED
+                        && event.getId().equals("1")
+                        && event.getChanges().isEmpty())
+                .thenCancel()
+                .verify();
+    }
+
+    @Test
+    public void testConcurrentUpdatesArePublishedInTheOrderTheyWereApplied() {
+        // A journal whose appends become durable only when the test says so
+        List<CompletableFuture<Void>> appends = new ArrayList<>();
+        ProductJournal journal = new ProductJournal() {
+            @Override
+            public boolean replay(Consumer<Product> saved, Consumer<String> deleted) {
+                return false;
+            }
+
+            @Override
+            public void start(Supplier<? extends Iterable<Product>> state) {
+            }
+
+            @Override
+            public <T> T write(Supplier<T> write) {
+                return write.get();
+            }
+
+            @Override
+            public synchronized CompletableFuture<Void> appendSave(Product product) {
+                CompletableFuture<Void> durable = new CompletableFuture<>();
+                appends.add(durable);
+                return durable;
+            }
+
+            @Override
+            public CompletableFuture<Void> appendDelete(String id) {
+                return DURABLE;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ProductRepository repository = new ProductRepository(journal);
+        appends.forEach(durable -> durable.complete(null));
+        appends.clear();
+        productService = new ProductService(repository, changeFeed());
+
+        StepVerifier.create(productService.getProductUpdates().map(event -> event.getChanges().get("price")))
+                .then(() -> {
+                    productService.updateProduct("1", new Product(null, "Laptop", 1.0)).subscribe();
+                    productService.updateProduct("1", new Product(null, "Laptop", 2.0)).subscribe();
+                })
+                // Durable in reverse order, as dependents of one sync batch are run; nothing is
+                // published while the first write is not durable
+                .then(() -> appends.get(1).complete(null))
+                .expectNoEvent(Duration.ofMillis(50))
+                .then(() -> appends.get(0).complete(null))
+                .expectNext(1.0, 2.0)
+                .thenCancel()
+                .verify();
+        assertEquals(2.0, repository.findById("1").block().getPrice());
+    }
+
+    @Test
+    public void testWriteThatChangesNothingStillRefreshesTheCachedVersion() {
+        ProductRepository repository = new ProductRepository();
+        ProductService service = new ProductService(repository, changeFeed());
+        Product cached = service.getProductById("1").block();
+
+        // Not published on the feed, but stamped with a new version all the same
+        Product unchanged = service.updateProduct("1", new Product("1", cached.getName(), cached.getPrice())).block();
+
+        assertEquals(unchanged.getVersion(), service.getProductById("1").block().getVersion());
+        StepVerifier.create(service.updateProduct("1", new Product("1", "Renamed", cached.getPrice()),
+                        unchanged.getVersion()).map(Product::getName))
+                .expectNext("Renamed")
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSaveProducts() {
+        Product existing = new Product("1", "Existing Product", 99.99);
+        Product updated = new Product("1", "Updated Product", 89.99);
+        Product created = new Product(null, "New Product", 19.99);
+        Product invalid = new Product(null, "", 9.99);
+
+        when(productRepository.saveAll(anyList())).thenAnswer(invocation -> {
+            List<Product> batch = invocation.getArgument(0);
+            return Flux.just(new ProductWrite(existing, batch.get(0)), new ProductWrite(null, batch.get(1)));
+        });
+
+        StepVerifier.create(productService.saveProducts(Flux.just(updated, invalid, created)))
+                .expectNextMatches(r -> r.getIndex() == 0 && r.getStatus() == BulkResult.Status.UPDATED
+                        && r.getId().equals("1"))
+                .expectNextMatches(r -> r.getIndex() == 1 && r.getStatus() == BulkResult.Status.REJECTED)
+                .expectNextMatches(r -> r.getIndex() == 2 && r.getStatus() == BulkResult.Status.CREATED
+                        && r.getId() != null)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testRepriceAllWritesNewPricesInBatchesAndReportsProgress() {
+        ProductRepository repository = new ProductRepository();
+        List<Product> products = new ArrayList<>();
+        for (int i = 0; i < 2495; i++) {
+            products.add(new Product("p" + i, "Product " + i, 10 + i % 100));
+        }
+        repository.saveAll(products).blockLast();
+        ProductChangeFeed changeFeed = new ProductChangeFeed(16, ProductChangeFeed.OverflowPolicy.DROP_OLDEST,
+                Duration.ZERO, new ObjectMapper());
+        productService = new ProductService(repository, changeFeed);
+        long catalogVersion = productService.getCatalogVersion();
+
+        List<RepricingProgress> progress = productService
+                .repriceAll(new PricingRules(10, null, 100.0, PricingRules.Rounding.CHARM))
+                .collectList()
+                .block();
+
+        // The starting totals, then one update per chunk of 1000
+        assertEquals(4, progress.size());
+        assertEquals(0, progress.get(0).getProcessed());
+        RepricingProgress done = progress.get(3);
+        assertEquals(2500, done.getTotal());
+        assertEquals(2500, done.getProcessed());
+        // The sample keyboard is already at 99.99
+        assertEquals(2499, done.getRepriced());
+        assertEquals(0, done.getSkipped());
+        assertEquals(11.99, repository.findById("p1").block().getPrice());
+        assertEquals(99.99, repository.findById("p95").block().getPrice());
+        assertEquals(53.99, repository.findById("5").block().getPrice());
+        assertEquals(catalogVersion + 3, productService.getCatalogVersion());
+        assertEquals(2500, productService.getStats().block().getCount());
+    }
+
+    @Test
+    public void testRepriceAllRejectsInvalidRules() {
+        StepVerifier.create(productService.repriceAll(new PricingRules(-100, null, null, PricingRules.Rounding.CENTS)))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+        StepVerifier.create(productService.repriceAll(new PricingRules(5, 10.0, 1.0, PricingRules.Rounding.CENTS)))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+
+    @Test
+    public void testStatsFollowWrites() {
+        Product laptop = new Product("1", "Laptop", 1000);
+        Product mouse = new Product("2", "Mouse", 50);
+        when(productRepository.findAll()).thenReturn(Flux.just(laptop, mouse));
+        productService = new ProductService(productRepository,
+                new ProductChangeFeed(16, ProductChangeFeed.OverflowPolicy.DROP_OLDEST, Duration.ZERO,
+                        new ObjectMapper()));
+
+        Product cheaper = new Product("1", "Laptop", 800);
+        when(productRepository.replace(any(Product.class))).thenReturn(Mono.just(new ProductWrite(laptop, cheaper)));
+        when(productRepository.findById("2")).thenReturn(Mono.just(mouse));
+        when(productRepository.remove("2")).thenReturn(Mono.just(mouse));
+
+        productService.updateProduct("1", new Product(null, "Laptop", 800)).block();
+        productService.deleteProduct("2").block();
+
+        StepVerifier.create(productService.getStats())
+                .expectNextMatches(stats -> stats.getCount() == 1
+                        && stats.getAveragePrice() == 800
+                        && Math.abs(stats.getMaxPrice() - 800) <= 8
+                        && stats.getPriceHistogram().stream().mapToLong(b -> b.count()).sum() == 1)
+                .verifyComplete();
+    }
+
+    @Test
+    public void testSearchProductsCapsLimit() {
+        when(productRepository.search("lap", ProductService.MAX_PAGE_SIZE)).thenReturn(Flux.empty());
+        when(productRepository.search("lap", ProductService.DEFAULT_SEARCH_LIMIT)).thenReturn(Flux.empty());
+
+        StepVerifier.create(productService.searchProducts("lap", 1_000_000)).verifyComplete();
+        StepVerifier.create(productService.searchProducts("lap", null)).verifyComplete();
+        StepVerifier.create(productService.searchProducts(" ", null))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+        StepVerifier.create(productService.searchProducts("lap", 0))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+    }
+
+    @Test
+    public void testWritesMoveTheCatalogVersion() {
+        Product product = new Product("1", "Laptop", 1299.99);
+        when(productRepository.upsert(any(Product.class))).thenReturn(Mono.just(new ProductWrite(null, product)));
+        when(productRepository.findById("1")).thenReturn(Mono.just(product));
+        when(productRepository.remove("1")).thenReturn(Mono.just(product));
+        long initial = productService.getCatalogVersion();
+
+        productService.createProduct(new Product(null, "Laptop", 1299.99)).block();
+        assertEquals(initial + 1, productService.getCatalogVersion());
+
+        productService.deleteProduct("1").block();
+        assertEquals(initial + 2, productService.getCatalogVersion());
+    }
+
+    @Test
+    public void testCatalogVersionMovesWhenOrderedReadsCatchUp() {
+        when(productRepository.getOrderedVersion()).thenReturn(4L);
+        long stale = productService.getCatalogVersion();
+
+        when(productRepository.getOrderedVersion()).thenReturn(6L);
+        assertEquals(stale + 2, productService.getCatalogVersion());
+    }
+
+    @Test
+    public void testUpdateProductWithVersionIsCompareAndSet() {
+        Product current = new Product("1", "Laptop", 1299.99);
+        current.setVersion(5);
+        when(productRepository.saveIfVersion(any(Product.class), eq(4L)))
+                .thenReturn(Mono.error(new VersionConflictException(current)));
+
+        StepVerifier.create(productService.updateProduct("1", new Product(null, "Laptop", 999.99), 4L))
+                .expectErrorMatches(e -> e instanceof VersionConflictException conflict
+                        && conflict.getCurrent().getVersion() == 5)
+                .verify();
+        verify(productRepository, never()).replace(any());
+    }
+
+    @Test
+    public void testPatchProductIsReappliedAfterLosingARace() {
+        Product first = new Product("1", "Laptop", 1299.99);
+        first.setVersion(1);
+        Product second = new Product("1", "Gaming Laptop", 1299.99);
+        second.setVersion(2);
+        when(productRepository.findById("1")).thenReturn(Mono.just(first), Mono.just(second));
+        when(productRepository.saveIfVersion(any(Product.class), eq(1L)))
+                .thenReturn(Mono.error(new VersionConflictException(second)));
+        when(productRepository.saveIfVersion(any(Product.class), eq(2L)))
+                .thenAnswer(i -> Mono.just(new ProductWrite(second, i.getArgument(0))));
+
+        // The price change lands on top of the concurrent rename
+        StepVerifier.create(productService.patchProduct("1", new ProductPatch(null, 999.99), null))
+                .expectNext(new Product("1", "Gaming Laptop", 999.99))
+                .verifyComplete();
+    }
+
+    @Test
+    public void testPatchProductWithStaleVersionIsNotRetried() {
+        Product current = new Product("1", "Laptop", 1299.99);
+        current.setVersion(2);
+        when(productRepository.findById("1")).thenReturn(Mono.just(current));
+
+        StepVerifier.create(productService.patchProduct("1", new ProductPatch(null, 999.99), 1L))
+                .expectError(VersionConflictException.class)
+                .verify();
+        StepVerifier.create(productService.patchProduct("1", new ProductPatch("", null), null))
+                .expectError(IllegalArgumentException.class)
+                .verify();
+        verify(productRepository, never()).saveIfVersion(any(), anyLong());
+    }
 }
@@ -0,0 +1,120 @@
+package com.example.springwebflux.service;
+
+import com.example.springwebflux.model.Product;
+import com.example.springwebflux.model.ProductStats;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ProductStatisticsTest {
+
+    @Test
+    public void testEmptyCatalog() {
+        ProductStats stats = new ProductStatistics().snapshot();
+
+        assertEquals(0, stats.getCount());
+        assertNull(stats.getAveragePrice());
+        assertNull(stats.getMinPrice());
+        assertEquals(6, stats.getPriceHistogram().size());
+    }
+
+    @Test
+    public void testRunningTotalsAndBuckets() {
+        ProductStatistics statistics = new ProductStatistics(new double[]{10, 100});
+        statistics.update(null, new Product("1", "A", 5));
+        statistics.update(null, new Product("2", "B", 10));
+        statistics.update(null, new Product("3", "C", 150));
+        // Repricing moves the product between buckets; deleting takes it out
+        statistics.update(new Product("3", "C", 150), new Product("3", "C", 30));
+        statistics.update(new Product("1", "A", 5), null);
+
+        ProductStats stats = statistics.snapshot();
+        assertEquals(2, stats.getCount());
+        assertEquals(20, stats.getAveragePrice(), 1e-9);
+        assertEquals(10, stats.getPriceStdDev(), 1e-9);
+        assertEquals(List.of(
+                new ProductStats.PriceBucket(null, 10.0, 0),
+                new ProductStats.PriceBucket(10.0, 100.0, 2),
+                new ProductStats.PriceBucket(100.0, null, 0)), stats.getPriceHistogram());
+    }
+
+    @Test
+    public void testStdDevOfLargeCloseTogetherPricesAfterChurn() {
+        ProductStatistics statistics = new ProductStatistics();
+        List<Double> prices = new ArrayList<>();
+        Random random = new Random(3);
+        // Sums of squares of prices this large cancel each other out entirely
+        for (int i = 0; i < 10_000; i++) {
+            double price = 1e9 + random.nextInt(100) / 10.0;
+            prices.add(price);
+            statistics.update(null, new Product(String.valueOf(i), "P", price));
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            double repriced = 1e9 + random.nextInt(100) / 10.0;
+            statistics.update(new Product(String.valueOf(i), "P", prices.get(i)),
+                    new Product(String.valueOf(i), "P", repriced));
+            prices.set(i, repriced);
+        }
+        for (int i = 0; i < 5_000; i++) {
+            statistics.update(new Product(String.valueOf(i), "P", prices.get(i)), null);
+        }
+        List<Double> remaining = prices.subList(5_000, prices.size());
+
+        double mean = remaining.stream().mapToDouble(price -> price - 1e9).average().orElseThrow();
+        double variance = remaining.stream().mapToDouble(price -> Math.pow(price - 1e9 - mean, 2)).sum()
+                / remaining.size();
+        ProductStats stats = statistics.snapshot();
+        assertEquals(5_000, stats.getCount());
+        assertEquals(1e9 + mean, stats.getAveragePrice(), 1e-3);
+        assertEquals(Math.sqrt(variance), stats.getPriceStdDev(), 1e-3);
+    }
+
+    @Test
+    public void testBucketsMustAscend() {
+        assertThrows(IllegalArgumentException.class, () -> new ProductStatistics(new double[]{100, 10}));
+    }
+
+    @Test
+    public void testSketchQuantilesWithinRelativeAccuracy() {
+        PriceSketch sketch = new PriceSketch(0.01);
+        List<Double> prices = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            double price = Math.exp(random.nextGaussian() * 2 + 4);
+            prices.add(price);
+            sketch.add(price);
+        }
+        // Removed values no longer count
+        for (int i = 0; i < 50_000; i++) {
+            sketch.remove(prices.remove(prices.size() - 1));
+        }
+        Collections.sort(prices);
+
+        for (double q : new double[]{0, 0.5, 0.9, 0.99, 1}) {
+            double exact = prices.get((int) (q * (prices.size() - 1)));
+            assertEquals(exact, sketch.quantile(q), exact * 0.01, "quantile " + q);
+        }
+    }
+
+    @Test
+    public void testSketchesMerge() {
+        PriceSketch left = new PriceSketch(0.01);
+        PriceSketch right = new PriceSketch(0.01);
+        for (int i = 1; i <= 100; i++) {
+            (i % 2 == 0 ? left : right).add(i);
+        }
+        left.merge(right);
+
+        assertEquals(50, left.quantile(0.5), 0.5);
+        assertTrue(left.quantile(1) >= 99);
+        assertThrows(IllegalArgumentException.class, () -> left.merge(new PriceSketch(0.02)));
+    }
+}